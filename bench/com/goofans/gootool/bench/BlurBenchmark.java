@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import com.goofans.gootool.image.GaussianBlur;
+import com.goofans.gootool.image.GaussianFilter;
+
+/**
+ * Compares the original float Gaussian filter with the fixed-point, multi-threaded blur, exact and approximated by box
+ * blurs.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BlurBenchmark
+{
+  @Param({"4", "16", "48"})
+  public float radius;
+
+  @Param({"512"})
+  public int size;
+
+  private BufferedImage image;
+
+  @Setup
+  public void setUp()
+  {
+    image = Fixtures.image(size);
+  }
+
+  @Benchmark
+  public BufferedImage gaussianFilter()
+  {
+    return new GaussianFilter(radius).filter(image, null);
+  }
+
+  @Benchmark
+  public BufferedImage gaussianBlur()
+  {
+    return new GaussianBlur(radius).filter(image, null);
+  }
+
+  @Benchmark
+  public BufferedImage gaussianBlurApproximate()
+  {
+    return new GaussianBlur(radius, true).filter(image, null);
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import com.goofans.gootool.io.AESBinFormat;
+import com.goofans.gootool.io.MacBinFormat;
+import com.goofans.gootool.io.MacGraphicFormat;
+
+/**
+ * Measures encoding and decoding of the game's .bin files (AES on Windows/Linux, XOR on Mac) and of Mac .png.binltl
+ * images.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark
+{
+  @Param({"4096", "65536", "1048576"})
+  public int size;
+
+  private byte[] plain;
+  private File aesFile;
+  private File macFile;
+  private File outFile;
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    plain = Fixtures.randomBytes(size);
+
+    aesFile = Fixtures.tempFile(".bin");
+    AESBinFormat.encodeFile(aesFile, plain);
+
+    macFile = Fixtures.tempFile(".bin");
+    MacBinFormat.encodeFile(macFile, plain);
+
+    outFile = Fixtures.tempFile(".bin");
+  }
+
+  @Benchmark
+  public byte[] aesDecode() throws IOException
+  {
+    return AESBinFormat.decodeFile(aesFile);
+  }
+
+  @Benchmark
+  public void aesDecodeStream(Blackhole bh) throws IOException
+  {
+    byte[] buf = new byte[8192];
+    InputStream is = AESBinFormat.openDecodingStream(aesFile);
+    try {
+      int numRead;
+      while ((numRead = is.read(buf)) != -1) {
+        bh.consume(numRead);
+      }
+    }
+    finally {
+      is.close();
+    }
+  }
+
+  @Benchmark
+  public void aesEncode() throws IOException
+  {
+    AESBinFormat.encodeFile(outFile, plain);
+  }
+
+  @Benchmark
+  public byte[] macDecode() throws IOException
+  {
+    return MacBinFormat.decodeFile(macFile);
+  }
+
+  @Benchmark
+  public void macEncode() throws IOException
+  {
+    MacBinFormat.encodeFile(outFile, plain);
+  }
+
+  /**
+   * Mac .png.binltl images, both synthetic and the samples in testcases/mac-images.
+   */
+  @State(Scope.Thread)
+  public static class ImageState
+  {
+    @Param({"synthetic-256", "synthetic-1024", "bg.png.binltl", "cliff_left.png.binltl"})
+    public String image;
+
+    private File imageFile;
+    private BufferedImage decoded;
+    private File outFile;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+      if (image.startsWith("synthetic-")) {
+        int imageSize = Integer.parseInt(image.substring("synthetic-".length()));
+        imageFile = Fixtures.tempFile(".png.binltl");
+        MacGraphicFormat.encodeImage(imageFile, Fixtures.image(imageSize));
+      }
+      else {
+        imageFile = Fixtures.testcase("mac-images/" + image);
+      }
+
+      decoded = MacGraphicFormat.decodeImage(imageFile);
+      outFile = Fixtures.tempFile(".png.binltl");
+    }
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public BufferedImage macImageDecode(ImageState state) throws IOException
+  {
+    return MacGraphicFormat.decodeImage(state.imageFile);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void macImageEncode(ImageState state) throws IOException
+  {
+    MacGraphicFormat.encodeImage(state.outFile, state.decoded);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void macImageEncodeFast(ImageState state) throws IOException
+  {
+    MacGraphicFormat.encodeImage(state.outFile, state.decoded, Deflater.BEST_SPEED);
+  }
+}
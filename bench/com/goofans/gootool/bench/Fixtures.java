@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.Random;
+
+import com.goofans.gootool.profile.Tower;
+import com.goofans.gootool.profile.TowerSprites;
+import com.goofans.gootool.util.Utilities;
+
+/**
+ * Builds the synthetic inputs used by the benchmarks, and locates the sample files in testcases/.
+ * <p/>
+ * The synthetic inputs are generated from a fixed seed so that every run measures exactly the same data.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+public class Fixtures
+{
+  private static final long SEED = 0x600fa115L;
+
+  private static final int ANIM_HEADER_LENGTH = 52;
+  private static final int KEYFRAME_LENGTH = 32;
+  private static final int MOVIE_HEADER_LENGTH = 20;
+  private static final int BINACTOR_LENGTH = 32;
+
+  private static final int NUM_TRANSFORMS = 3; // scale, rotate, translate
+  private static final int INTERPOLATION_LINEAR = 1;
+
+  private Fixtures()
+  {
+  }
+
+  /**
+   * Returns a file from the testcases directory. The benchmarks must be run from the project directory.
+   *
+   * @param name The file name, relative to testcases/.
+   * @return The file.
+   * @throws IOException if the file doesn't exist.
+   */
+  public static File testcase(String name) throws IOException
+  {
+    File file = new File("testcases", name);
+    if (!file.exists()) throw new IOException("Test case " + file.getAbsolutePath() + " not found, run the benchmarks from the project directory");
+    return file;
+  }
+
+  /**
+   * Creates a temporary file that is deleted when the JVM exits.
+   *
+   * @param suffix The file suffix, e.g. ".bin".
+   * @return The new, empty file.
+   * @throws IOException if the file couldn't be created.
+   */
+  public static File tempFile(String suffix) throws IOException
+  {
+    File file = File.createTempFile("gootool-bench", suffix);
+    file.deleteOnExit();
+    return file;
+  }
+
+  /**
+   * Creates a temporary file holding the given bytes.
+   *
+   * @param suffix The file suffix, e.g. ".bin".
+   * @param data   The file contents.
+   * @return The new file.
+   * @throws IOException if the file couldn't be written.
+   */
+  public static File tempFile(String suffix, byte[] data) throws IOException
+  {
+    File file = tempFile(suffix);
+    Utilities.writeFile(file, data);
+    return file;
+  }
+
+  /**
+   * Generates an XML document shaped like a resources.xml file, of roughly the given size.
+   *
+   * @param size The approximate size of the document in bytes.
+   * @return The document text.
+   */
+  public static String resourcesXml(int size)
+  {
+    Random random = new Random(SEED);
+
+    StringBuilder sb = new StringBuilder(size + 256);
+    sb.append("<ResourceManifest>\n");
+    sb.append("  <Resources id=\"scene_Bench\">\n");
+    sb.append("    <SetDefaults path=\"./\" idprefix=\"\"/>\n");
+
+    int i = 0;
+    while (sb.length() < size) {
+      String name = "res/images/bench/image" + i + "_" + Integer.toHexString(random.nextInt());
+      sb.append("    <Image id=\"IMAGE_SCENE_BENCH_").append(i).append("\" path=\"").append(name).append("\"/>\n");
+      if (i % 4 == 0) {
+        sb.append("    <Sound id=\"SOUND_BENCH_").append(i).append("\" path=\"res/sounds/bench").append(i).append("\"/>\n");
+      }
+      i++;
+    }
+
+    sb.append("  </Resources>\n");
+    sb.append("</ResourceManifest>\n");
+    return sb.toString();
+  }
+
+  /**
+   * Generates an XML document shaped like the game's text.xml, with a translation of each string.
+   *
+   * @param numStrings The number of strings.
+   * @return The document text.
+   */
+  public static String textXml(int numStrings)
+  {
+    Random random = new Random(SEED);
+
+    StringBuilder sb = new StringBuilder(numStrings * 96);
+    sb.append("<strings>\n");
+    for (int i = 0; i < numStrings; ++i) {
+      sb.append("  <string id=\"BENCH_STRING_").append(i).append("\" text=\"String ").append(Integer.toHexString(random.nextInt()))
+              .append("\" de=\"Zeichenkette ").append(Integer.toHexString(random.nextInt())).append("\"/>\n");
+    }
+    sb.append("</strings>\n");
+    return sb.toString();
+  }
+
+  /**
+   * Generates random bytes.
+   *
+   * @param size The number of bytes.
+   * @return The bytes.
+   */
+  public static byte[] randomBytes(int size)
+  {
+    byte[] bytes = new byte[size];
+    new Random(SEED).nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * Generates a square image with a gradient and an alpha channel, so it compresses like a real game image.
+   *
+   * @param size The width and height of the image.
+   * @return The image.
+   */
+  public static BufferedImage image(int size)
+  {
+    Random random = new Random(SEED);
+    BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+    for (int y = 0; y < size; ++y) {
+      for (int x = 0; x < size; ++x) {
+        int a = (x * 255) / size;
+        int r = (y * 255) / size;
+        int g = ((x + y) * 127) / size;
+        int b = random.nextInt(16);
+        image.setRGB(x, y, (a << 24) | (r << 16) | (g << 8) | b);
+      }
+    }
+    return image;
+  }
+
+  /**
+   * Generates a set of tower sprites the same sizes as World of Goo's, so towers can be rendered without a game
+   * directory.
+   *
+   * @return The sprites.
+   */
+  public static TowerSprites towerSprites()
+  {
+    return new TowerSprites(image(36), image(24, 64), image(128), image(64));
+  }
+
+  private static BufferedImage image(int width, int height)
+  {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        int a = 255 - ((Math.abs((2 * x) - width) * 255) / width);
+        image.setRGB(x, y, (a << 24) | (((y * 255) / height) << 16) | 0x4020);
+      }
+    }
+    return image;
+  }
+
+  /**
+   * Generates a tower of roughly the given number of balls, built as a jittered triangular lattice so that the strands
+   * have a spread of angles and lengths like a real tower.
+   *
+   * @param numBalls The approximate number of balls.
+   * @return The tower.
+   * @throws IOException if the generated tower couldn't be parsed.
+   */
+  public static Tower tower(int numBalls) throws IOException
+  {
+    Random random = new Random(SEED);
+
+    int columns = Math.max(2, (int) Math.sqrt(numBalls / 2.0));
+    int rows = Math.max(2, numBalls / columns);
+
+    StringBuilder sb = new StringBuilder("_");
+    for (int row = 0; row < rows; ++row) {
+      for (int column = 0; column < columns; ++column) {
+        double x = (column * 100) + ((row % 2) * 50) + (random.nextDouble() * 30) - (columns * 50);
+        double y = (row * 87) + 12 + (random.nextDouble() * 20);
+        sb.append(String.format(Locale.US, "b:Drained:%.2f:%.2f:0.00:0.00:", x, y));
+      }
+    }
+
+    for (int row = 0; row < rows; ++row) {
+      for (int column = 0; column < columns; ++column) {
+        int ball = (row * columns) + column;
+        if (column + 1 < columns) {
+          appendStrand(sb, ball, ball + 1);
+        }
+        if (row + 1 < rows) {
+          appendStrand(sb, ball, ball + columns);
+          int diagonal = (row % 2 == 0) ? column - 1 : column + 1;
+          if (diagonal >= 0 && diagonal < columns) {
+            appendStrand(sb, ball, ((row + 1) * columns) + diagonal);
+          }
+        }
+      }
+    }
+
+    return new Tower(sb.substring(0, sb.length() - 1));
+  }
+
+  private static void appendStrand(StringBuilder sb, int firstBall, int secondBall)
+  {
+    sb.append("s:Drained:").append(firstBall).append(':').append(secondBall).append(":9.0000:100.00:0:");
+  }
+
+  /**
+   * Generates a binary image animation (as found in a .anim.binltl file), with scale, rotate, translate and alpha key
+   * frames on every frame.
+   *
+   * @param numFrames The number of frames.
+   * @return The animation bytes.
+   */
+  public static byte[] animation(int numFrames)
+  {
+    ByteBuffer buf = ByteBuffer.allocate(animationLength(numFrames)).order(ByteOrder.LITTLE_ENDIAN);
+    putAnimation(buf, numFrames);
+    return buf.array();
+  }
+
+  /**
+   * Generates a binary movie (as found in a .movie.binltl file), with the given number of actors each having an
+   * animation of the given number of frames.
+   *
+   * @param numActors The number of actors.
+   * @param numFrames The number of frames in each actor's animation.
+   * @return The movie bytes.
+   */
+  public static byte[] movie(int numActors, int numFrames)
+  {
+    int actorsOffset = MOVIE_HEADER_LENGTH;
+    int animsOffset = actorsOffset + (numActors * BINACTOR_LENGTH);
+    int firstAnimOffset = animsOffset + (numActors * 4);
+    int animLength = animationLength(numFrames);
+    int stringsOffset = firstAnimOffset + (numActors * animLength);
+
+    ByteBuffer buf = ByteBuffer.allocate(stringsOffset + 4).order(ByteOrder.LITTLE_ENDIAN);
+
+    buf.putFloat(numFrames / 30f);
+    buf.putInt(numActors);
+    buf.putInt(actorsOffset);
+    buf.putInt(animsOffset);
+    buf.putInt(stringsOffset);
+
+    for (int i = 0; i < numActors; ++i) {
+      buf.putInt(0);     // actor type: image
+      buf.putInt(0);     // image string index
+      buf.putInt(0);     // label string index
+      buf.putInt(0);     // font string index
+      buf.putFloat(-1);  // label max width
+      buf.putFloat(-1);  // label wrap width
+      buf.putInt(0);     // label justification
+      buf.putFloat(i);   // depth
+    }
+
+    for (int i = 0; i < numActors; ++i) {
+      buf.putInt(firstAnimOffset + (i * animLength));
+    }
+
+    for (int i = 0; i < numActors; ++i) {
+      putAnimation(buf.slice().order(ByteOrder.LITTLE_ENDIAN), numFrames);
+      buf.position(buf.position() + animLength);
+    }
+
+    // String table is a single empty string
+    return buf.array();
+  }
+
+  private static int animationLength(int numFrames)
+  {
+    return ANIM_HEADER_LENGTH
+            + (NUM_TRANSFORMS * 4)                            // transform types
+            + (numFrames * 4)                                 // frame times
+            + (NUM_TRANSFORMS * 4)                            // transform frame list pointers
+            + (NUM_TRANSFORMS * numFrames * 4)                // transform frame pointers
+            + (numFrames * 4)                                 // alpha frame pointers
+            + ((NUM_TRANSFORMS + 1) * numFrames * KEYFRAME_LENGTH) // key frames
+            + 4;                                              // string table
+  }
+
+  /**
+   * Writes an animation at the start of the buffer. All offsets are relative to the start of the buffer.
+   */
+  private static void putAnimation(ByteBuffer buf, int numFrames)
+  {
+    int transformTypesOffset = ANIM_HEADER_LENGTH;
+    int frameTimesOffset = transformTypesOffset + (NUM_TRANSFORMS * 4);
+    int xformFramesOffset = frameTimesOffset + (numFrames * 4);
+    int xformFrameListsOffset = xformFramesOffset + (NUM_TRANSFORMS * 4);
+    int alphaFramesOffset = xformFrameListsOffset + (NUM_TRANSFORMS * numFrames * 4);
+    int keyFramesOffset = alphaFramesOffset + (numFrames * 4);
+    int stringTableOffset = keyFramesOffset + ((NUM_TRANSFORMS + 1) * numFrames * KEYFRAME_LENGTH);
+
+    buf.putInt(0, 0);                   // hasColor
+    buf.putInt(4, 1);                   // hasAlpha
+    buf.putInt(8, 0);                   // hasSound
+    buf.putInt(12, 1);                  // hasTransform
+    buf.putInt(16, NUM_TRANSFORMS);
+    buf.putInt(20, numFrames);
+    buf.putInt(24, transformTypesOffset);
+    buf.putInt(28, frameTimesOffset);
+    buf.putInt(32, xformFramesOffset);
+    buf.putInt(36, alphaFramesOffset);
+    buf.putInt(40, 0);                  // colorFramesOffset
+    buf.putInt(44, 0);                  // soundFramesOffset
+    buf.putInt(48, stringTableOffset);
+
+    for (int t = 0; t < NUM_TRANSFORMS; ++t) {
+      buf.putInt(transformTypesOffset + (t * 4), t);
+      buf.putInt(xformFramesOffset + (t * 4), xformFrameListsOffset + (t * numFrames * 4));
+    }
+
+    int keyFrameOffset = keyFramesOffset;
+    for (int frame = 0; frame < numFrames; ++frame) {
+      buf.putFloat(frameTimesOffset + (frame * 4), frame / 30f);
+
+      int nextFrame = frame == numFrames - 1 ? -1 : frame + 1;
+
+      for (int t = 0; t < NUM_TRANSFORMS; ++t) {
+        buf.putInt(xformFrameListsOffset + (((t * numFrames) + frame) * 4), keyFrameOffset);
+        switch (t) {
+          case 0: // scale
+            putKeyFrame(buf, keyFrameOffset, 1f + (frame / 100f), 1f, -1, -1, nextFrame);
+            break;
+          case 1: // rotate
+            putKeyFrame(buf, keyFrameOffset, -1, -1, frame % 360, -1, nextFrame);
+            break;
+          default: // translate
+            putKeyFrame(buf, keyFrameOffset, frame, frame * 0.5f, -1, -1, nextFrame);
+        }
+        keyFrameOffset += KEYFRAME_LENGTH;
+      }
+
+      buf.putInt(alphaFramesOffset + (frame * 4), keyFrameOffset);
+      putKeyFrame(buf, keyFrameOffset, -1, -1, -1, 255 - (frame % 256), nextFrame);
+      keyFrameOffset += KEYFRAME_LENGTH;
+    }
+  }
+
+  private static void putKeyFrame(ByteBuffer buf, int offset, float x, float y, float angle, int alpha, int nextFrame)
+  {
+    buf.putFloat(offset, x);
+    buf.putFloat(offset + 4, y);
+    buf.putFloat(offset + 8, angle);
+    buf.putInt(offset + 12, alpha);
+    buf.putInt(offset + 16, -1); // color
+    buf.putInt(offset + 20, nextFrame);
+    buf.putInt(offset + 24, 0);  // sound string index
+    buf.putInt(offset + 28, INTERPOLATION_LINEAR);
+  }
+}
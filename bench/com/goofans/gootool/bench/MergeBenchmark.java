@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import com.goofans.gootool.addins.Merger;
+import com.goofans.gootool.addins.TemplatesCache;
+
+/**
+ * Measures XSL merges of the kind addins apply to resources.xml, with and without a precompiled stylesheet.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MergeBenchmark
+{
+  /* Adds a resource and drops all sounds, which is typical of an addin's resources.xml.xsl */
+  private static final String STYLESHEET =
+          "<xsl:transform version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">\n" +
+          "  <xsl:template match=\"@*|node()\">\n" +
+          "    <xsl:copy><xsl:apply-templates select=\"@*|node()\"/></xsl:copy>\n" +
+          "  </xsl:template>\n" +
+          "  <xsl:template match=\"Resources[@id='scene_Bench']\">\n" +
+          "    <xsl:copy>\n" +
+          "      <xsl:apply-templates select=\"@*|node()\"/>\n" +
+          "      <Image id=\"IMAGE_SCENE_BENCH_ADDED\" path=\"res/images/bench/added\"/>\n" +
+          "    </xsl:copy>\n" +
+          "  </xsl:template>\n" +
+          "  <xsl:template match=\"Sound\"/>\n" +
+          "</xsl:transform>\n";
+
+  @Param({"16384", "262144"})
+  public int size;
+
+  private String document;
+  private Templates templates;
+
+  @Setup
+  public void setUp() throws TransformerException
+  {
+    document = Fixtures.resourcesXml(size);
+    templates = TemplatesCache.getTemplates(STYLESHEET);
+  }
+
+  @Benchmark
+  public String mergePrecompiled() throws TransformerException
+  {
+    return new Merger(new StringReader(document), templates).merge();
+  }
+
+  @Benchmark
+  public String mergeUncached() throws IOException, TransformerException
+  {
+    TemplatesCache.clear();
+    return new Merger(new StringReader(document), new StringReader(STYLESHEET)).merge();
+  }
+}
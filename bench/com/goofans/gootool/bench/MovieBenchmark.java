@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.goofans.gootool.movie.BinImageAnimation;
+import com.goofans.gootool.movie.BinMovie;
+
+/**
+ * Measures parsing of binary animations and movies, and their conversion to XML.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MovieBenchmark
+{
+  @Param({"30", "300"})
+  public int frames;
+
+  @Param({"1", "20"})
+  public int actors;
+
+  private byte[] animBytes;
+  private File animFile;
+  private File movieFile;
+  private BinMovie movie;
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    animBytes = Fixtures.animation(frames);
+    animFile = Fixtures.tempFile(".anim.binltl", animBytes);
+    movieFile = Fixtures.tempFile(".movie.binltl", Fixtures.movie(actors, frames));
+    movie = new BinMovie(movieFile);
+  }
+
+  @Benchmark
+  public BinImageAnimation parseAnimation()
+  {
+    return new BinImageAnimation(animBytes, 0);
+  }
+
+  @Benchmark
+  public BinImageAnimation readAnimation() throws IOException
+  {
+    return new BinImageAnimation(animFile);
+  }
+
+  @Benchmark
+  public BinMovie readMovie() throws IOException
+  {
+    return new BinMovie(movieFile);
+  }
+
+  @Benchmark
+  public String movieToXml()
+  {
+    return movie.toXMLDocument();
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.goofans.gootool.io.AESBinFormat;
+import com.goofans.gootool.profile.ProfileData;
+
+/**
+ * Measures parsing and serialising of the sample profiles in testcases/.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProfileBenchmark
+{
+  @Param({"mom4evr-pers2.dat", "maks-linux-pers2/pers2.dat"})
+  public String profile;
+
+  private File profileFile;
+  private ProfileData profileData;
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    // The samples are encrypted PC profiles; ProfileData reads the decrypted form
+    profileFile = Fixtures.tempFile(".dat", AESBinFormat.decodeFile(Fixtures.testcase(profile)));
+    profileData = new ProfileData(profileFile);
+  }
+
+  @Benchmark
+  public ProfileData parse() throws IOException
+  {
+    return new ProfileData(profileFile);
+  }
+
+  @Benchmark
+  public byte[] serialise()
+  {
+    return profileData.toData();
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.goofans.gootool.addins.StringTable;
+import com.goofans.gootool.util.XMLUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Measures applying a translation addin's strings to the game's text.xml, by searching the document for each string and
+ * by looking it up in a {@link StringTable}. The addin translates a quarter of the game's strings.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StringTableBenchmark
+{
+  @Param({"1000", "4000"})
+  public int numStrings;
+
+  private Document document;
+  private String[] translatedIds;
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    document = XMLUtil.loadDocumentFromInputStream(new ByteArrayInputStream(Fixtures.textXml(numStrings).getBytes("UTF-8")));
+
+    // Every string the addin touches already exists, so the document doesn't grow between invocations
+    translatedIds = new String[numStrings / 4];
+    for (int i = 0; i < translatedIds.length; ++i) {
+      translatedIds[i] = "BENCH_STRING_" + (i * 4);
+    }
+  }
+
+  @Benchmark
+  public Document searchDocument()
+  {
+    for (String id : translatedIds) {
+      Element string = XMLUtil.findElementByAttributeValue(document.getDocumentElement(), "string", "id", id, false);
+      string.setAttribute("fr", id);
+    }
+    return document;
+  }
+
+  @Benchmark
+  public Document stringTable()
+  {
+    StringTable strings = new StringTable(document);
+    for (String id : translatedIds) {
+      strings.getString(id).setAttribute("fr", id);
+    }
+    return document;
+  }
+}
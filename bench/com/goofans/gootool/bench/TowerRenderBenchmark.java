@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.goofans.gootool.profile.Tower;
+import com.goofans.gootool.profile.TowerRenderer;
+import com.goofans.gootool.profile.TowerSprites;
+
+/**
+ * Compares drawing strands through a transformed draw for each strand with drawing them from the strand sprite cache,
+ * both with a cache already filled by earlier towers and with an empty one.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TowerRenderBenchmark
+{
+  @Param({"100", "300"})
+  public int balls;
+
+  private Tower tower;
+  private TowerSprites sprites;
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    tower = Fixtures.tower(balls);
+    sprites = Fixtures.towerSprites();
+  }
+
+  @Benchmark
+  public BufferedImage renderDirect()
+  {
+    TowerRenderer tr = new TowerRenderer(tower, sprites);
+    tr.setStrandCacheEnabled(false);
+    return tr.renderFullSize();
+  }
+
+  @Benchmark
+  public BufferedImage renderCached()
+  {
+    return new TowerRenderer(tower, sprites).renderFullSize();
+  }
+
+  @Benchmark
+  public BufferedImage renderCachedCold()
+  {
+    // Same images, but a new, empty strand cache
+    TowerSprites coldSprites = new TowerSprites(sprites.getBallImage(), sprites.getStrandImage(), sprites.getGroundImage(), sprites.getSkyImage());
+    return new TowerRenderer(tower, coldSprites).renderFullSize();
+  }
+
+  @Benchmark
+  public BufferedImage renderThumbnail()
+  {
+    return new TowerRenderer(tower, sprites).renderThumbnail();
+  }
+}
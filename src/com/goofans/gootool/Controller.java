@@ -100,14 +100,14 @@ public class Controller implements ActionListener
 
   public Controller()
   {
-    codecs.put(CMD_DECRYPT_BIN_PC, new GameFileCodecTool("bin", "Encrypted Bin File (Windows/Linux)", "xml", CodecType.AES_DECODE));
-    codecs.put(CMD_DECRYPT_BIN_MAC, new GameFileCodecTool("bin", "Encrypted Bin File (Mac)", "xml", CodecType.XOR_DECODE));
-    codecs.put(CMD_DECRYPT_PNGBINLTL_MAC, new GameFileCodecTool("png.binltl", "Encoded Image File", "png", CodecType.PNGBINLTL_DECODE));
-    codecs.put(CMD_DECRYPT_ANIM, new GameFileCodecTool("anim.binltl", "Animation File", "anim.xml", CodecType.ANIM_DECODE));
-    codecs.put(CMD_DECRYPT_MOVIE, new GameFileCodecTool("movie.binltl", "Movie File", "movie.xml", CodecType.MOVIE_DECODE));
-    codecs.put(CMD_ENCRYPT_BIN_PC, new GameFileCodecTool("xml", "XML Document", "bin", CodecType.AES_ENCODE));
-    codecs.put(CMD_ENCRYPT_BIN_MAC, new GameFileCodecTool("xml", "XML Document", "bin", CodecType.XOR_ENCODE));
-    codecs.put(CMD_ENCRYPT_PNGBINLTL_MAC, new GameFileCodecTool("png", "PNG Image File", "png.binltl", CodecType.PNGBINLTL_ENCODE));
+    codecs.put(CMD_DECRYPT_BIN_PC, new GameFileCodecTool("Encrypted Bin File (Windows/Linux)", CodecType.AES_DECODE));
+    codecs.put(CMD_DECRYPT_BIN_MAC, new GameFileCodecTool("Encrypted Bin File (Mac)", CodecType.XOR_DECODE));
+    codecs.put(CMD_DECRYPT_PNGBINLTL_MAC, new GameFileCodecTool("Encoded Image File", CodecType.PNGBINLTL_DECODE));
+    codecs.put(CMD_DECRYPT_ANIM, new GameFileCodecTool("Animation File", CodecType.ANIM_DECODE));
+    codecs.put(CMD_DECRYPT_MOVIE, new GameFileCodecTool("Movie File", CodecType.MOVIE_DECODE));
+    codecs.put(CMD_ENCRYPT_BIN_PC, new GameFileCodecTool("XML Document", CodecType.AES_ENCODE));
+    codecs.put(CMD_ENCRYPT_BIN_MAC, new GameFileCodecTool("XML Document", CodecType.XOR_ENCODE));
+    codecs.put(CMD_ENCRYPT_PNGBINLTL_MAC, new GameFileCodecTool("PNG Image File", CodecType.PNGBINLTL_ENCODE));
   }
 
   /**
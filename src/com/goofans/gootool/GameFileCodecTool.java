@@ -11,6 +11,12 @@ import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
 
 import com.goofans.gootool.io.AESBinFormat;
 import com.goofans.gootool.io.MacBinFormat;
@@ -20,10 +26,16 @@ import com.goofans.gootool.movie.BinMovie;
 import com.goofans.gootool.util.FileNameExtensionFilter;
 import com.goofans.gootool.util.GUIUtil;
 import com.goofans.gootool.util.ProgressIndicatingTask;
+import com.goofans.gootool.util.ProgressListener;
 import com.goofans.gootool.util.Utilities;
+import com.goofans.gootool.util.XMLUtil;
 
 /**
  * Handles the GUI interaction of encoding/decoding and launches the actual codec in the background.
+ * <p/>
+ * Can also be run from the command line to convert whole directory trees without the GUI. See {@link #main}.
+ * <p/>
+ * Files are converted in parallel on a pool of worker threads.
  *
  * @author David Croft (davidc@goofans.com)
  * @version $Id$
@@ -32,30 +44,46 @@ public class GameFileCodecTool
 {
   public enum CodecType
   {
-    AES_DECODE(false),
-    AES_ENCODE(true),
-    XOR_DECODE(false),
-    XOR_ENCODE(true),
-    PNGBINLTL_DECODE(false),
-    PNGBINLTL_ENCODE(true),
-    ANIM_DECODE(false),
-//   ANIM_ENCODE(true),
-    MOVIE_DECODE(false);
-    //MOVIE_ENCODE(true);
+    AES_DECODE(false, "bin", "xml"),
+    AES_ENCODE(true, "xml", "bin"),
+    XOR_DECODE(false, "bin", "xml"),
+    XOR_ENCODE(true, "xml", "bin"),
+    PNGBINLTL_DECODE(false, "png.binltl", "png"),
+    PNGBINLTL_ENCODE(true, "png", "png.binltl"),
+    ANIM_DECODE(false, "anim.binltl", "anim.xml"),
+    ANIM_ENCODE(true, "anim.xml", "anim.binltl"),
+    MOVIE_DECODE(false, "movie.binltl", "movie.xml"),
+    MOVIE_ENCODE(true, "movie.xml", "movie.binltl");
 
     private final boolean encode;
+    private final String inputExtension;
+    private final String outputExtension;
 
-    CodecType(boolean encode)
+    CodecType(boolean encode, String inputExtension, String outputExtension)
     {
       this.encode = encode;
+      this.inputExtension = inputExtension;
+      this.outputExtension = outputExtension;
     }
 
     public boolean isEncode()
     {
       return encode;
     }
+
+    public String getInputExtension()
+    {
+      return inputExtension;
+    }
+
+    public String getOutputExtension()
+    {
+      return outputExtension;
+    }
   }
 
+  private static final int PROGRESS_INTERVAL = 10;
+
   private final String inputExtension;
   private final String inputDescription;
   private final String outputExtension;
@@ -65,14 +93,26 @@ public class GameFileCodecTool
   private File currentInputDir;
   private File currentOutputDir;
 
-  public GameFileCodecTool(String inputExtension, String inputDescription, String outputExtension, CodecType codecType)
+  private int compressionLevel = MacGraphicFormat.DEFAULT_COMPRESSION_LEVEL;
+
+  public GameFileCodecTool(String inputDescription, CodecType codecType)
   {
-    this.inputExtension = inputExtension;
+    this.inputExtension = codecType.getInputExtension();
     this.inputDescription = inputDescription;
-    this.outputExtension = outputExtension;
+    this.outputExtension = codecType.getOutputExtension();
     this.codecType = codecType;
   }
 
+  /**
+   * Sets the zlib compression level used when encoding .png.binltl images, trading file size for speed.
+   *
+   * @param compressionLevel The level, from 1 (fastest) to 9 (smallest, the default).
+   */
+  public void setCompressionLevel(int compressionLevel)
+  {
+    this.compressionLevel = compressionLevel;
+  }
+
   public void runTool(JFrame parent) throws Exception
   {
     JFileChooser inputChooser = new JFileChooser(currentInputDir);
@@ -158,44 +198,138 @@ public class GameFileCodecTool
       @Override
       public void run() throws Exception
       {
-        beginStep("Converting...", false);
+        beginStep("Converting...", true);
+
+        List<File[]> jobs = new ArrayList<File[]>();
 
         if (inputFiles.length == 1) {
-          File inputFile = inputFiles[0];
-          if (inputFile.isFile()) {
-            doConversion(inputFile, outputFile);
-          }
-          else if (inputFile.isDirectory()) {
-            doDirectory(inputFile, outputFile);
-          }
+          addJobs(inputFiles[0], outputFile, jobs);
         }
         else {
           Utilities.mkdirsOrException(outputFile);
 
           for (File inputFile : inputFiles) {
             if (inputFile.isFile()) {
-              doConversion(inputFile, new File(outputFile, generateOutputName(inputFile.getName())));
+              addJobs(inputFile, new File(outputFile, generateOutputName(inputFile.getName())), jobs);
             }
             else if (inputFile.isDirectory()) {
-              doDirectory(inputFile, new File(outputFile, inputFile.getName()));
+              addJobs(inputFile, new File(outputFile, inputFile.getName()), jobs);
             }
           }
         }
+
+        convert(jobs, getDefaultThreads(), false, new ProgressListener()
+        {
+          public void beginStep(String taskDescription, boolean progressAvailable)
+          {
+          }
+
+          public void progressStep(float percent)
+          {
+            reportProgress(percent);
+          }
+        });
+      }
+
+      private void reportProgress(float percent)
+      {
+        progressStep(percent);
       }
     });
   }
 
-  private void doDirectory(File inputDir, File outputDir) throws IOException
+  /*
+   * Adds a file to be converted, or every file with the input extension in a directory tree. Output directories are
+   * created here, on a single thread, so that the workers never race to create them.
+   */
+  private void addJobs(File input, File output, List<File[]> jobs) throws IOException
   {
-    for (File file : inputDir.listFiles()) {
+    if (input.isFile()) {
+      jobs.add(new File[]{input, output});
+      return;
+    }
+
+    for (File file : input.listFiles()) {
       if (file.isDirectory()) {
-        doDirectory(file, new File(outputDir, file.getName()));
+        addJobs(file, new File(output, file.getName()), jobs);
       }
       else if (file.getName().endsWith("." + inputExtension)) {
-        Utilities.mkdirsOrException(outputDir);
-        doConversion(file, new File(outputDir, generateOutputName(file.getName())));
+        Utilities.mkdirsOrException(output);
+        jobs.add(new File[]{file, new File(output, generateOutputName(file.getName()))});
+      }
+    }
+  }
+
+  private static int getDefaultThreads()
+  {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Converts the given files on a pool of worker threads.
+   *
+   * @param jobs          The files to convert, as {input, output} pairs.
+   * @param threads       The number of worker threads.
+   * @param skipUnchanged If true, files whose output is already newer than the input are not converted again.
+   * @param listener      Notified of the progress of the conversion. Always called on the calling thread.
+   * @return The statistics of the conversion.
+   * @throws IOException if any file couldn't be converted. The remaining conversions are abandoned.
+   */
+  private ConversionStats convert(List<File[]> jobs, int threads, boolean skipUnchanged, ProgressListener listener) throws IOException
+  {
+    ConversionStats stats = new ConversionStats();
+    long startTime = System.nanoTime();
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    try {
+      CompletionService<Long> completionService = new ExecutorCompletionService<Long>(executor);
+      for (final File[] job : jobs) {
+        if (skipUnchanged && job[1].exists() && job[1].lastModified() >= job[0].lastModified()) {
+          stats.skipped++;
+          continue;
+        }
+
+        completionService.submit(new Callable<Long>()
+        {
+          public Long call() throws Exception
+          {
+            try {
+              doConversion(job[0], job[1]);
+            }
+            catch (IOException e) {
+              throw new IOException("Couldn't convert " + job[0] + ": " + e.getLocalizedMessage(), e);
+            }
+            return job[0].length();
+          }
+        });
+        stats.submitted++;
       }
+
+      for (int i = 0; i < stats.submitted; ++i) {
+        if (i % PROGRESS_INTERVAL == 0) {
+          listener.progressStep((100f * i) / stats.submitted);
+        }
+
+        stats.bytes += completionService.take().get();
+        stats.converted++;
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while converting files");
     }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new IOException("Conversion failed: " + cause.getLocalizedMessage(), cause);
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    stats.elapsedNanos = System.nanoTime() - startTime;
+    return stats;
   }
 
   private void doConversion(File inputFile, File outputFile) throws IOException
@@ -225,16 +359,24 @@ public class GameFileCodecTool
         break;
       case PNGBINLTL_ENCODE:
         BufferedImage encImage = ImageIO.read(inputFile);
-        MacGraphicFormat.encodeImage(outputFile, encImage);
+        MacGraphicFormat.encodeImage(outputFile, encImage, compressionLevel);
         break;
       case ANIM_DECODE:
         BinImageAnimation anim = new BinImageAnimation(inputFile);
         Utilities.writeFile(outputFile, anim.toXMLDocument().getBytes());
         break;
+      case ANIM_ENCODE:
+        BinImageAnimation xmlAnim = new BinImageAnimation(XMLUtil.loadDocumentFromFile(inputFile).getDocumentElement());
+        Utilities.writeFile(outputFile, xmlAnim.toBinary());
+        break;
       case MOVIE_DECODE:
         BinMovie movie = new BinMovie(inputFile);
         Utilities.writeFile(outputFile, movie.toXMLDocument().getBytes());
         break;
+      case MOVIE_ENCODE:
+        BinMovie xmlMovie = new BinMovie(XMLUtil.loadDocumentFromFile(inputFile));
+        Utilities.writeFile(outputFile, xmlMovie.toBinary());
+        break;
     }
   }
 
@@ -252,4 +394,139 @@ public class GameFileCodecTool
     }
     return outputName;
   }
+
+  /**
+   * Counters for a batch conversion.
+   */
+  private static class ConversionStats
+  {
+    private int submitted;
+    private int converted;
+    private int skipped;
+    private long bytes;
+    private long elapsedNanos;
+
+    @Override
+    public String toString()
+    {
+      double seconds = Math.max(elapsedNanos, 1) / 1e9;
+      return String.format(Locale.ENGLISH, "%d files converted, %d unchanged, in %.2fs (%.1f files/s, %.2f MB/s)",
+              converted, skipped, seconds, converted / seconds, bytes / (1024.0 * 1024.0) / seconds);
+    }
+  }
+
+  /**
+   * Converts files or whole directory trees from the command line.
+   * <p/>
+   * Syntax: <code>GameFileCodecTool [-threads &lt;n&gt;] [-level &lt;n&gt;] [-force] &lt;codec&gt; &lt;input&gt; &lt;output&gt;</code>
+   * <p/>
+   * The codec is one of the {@link CodecType} names, e.g. aes_decode. If the input is a directory, every file in it
+   * with the codec's input extension is converted into the same structure under the output directory. Outputs that are
+   * already newer than their input are skipped unless -force is given.
+   *
+   * @param args The command line arguments.
+   */
+  @SuppressWarnings({"UseOfSystemOutOrSystemErr", "HardCodedStringLiteral"})
+  public static void main(String[] args)
+  {
+    int threads = getDefaultThreads();
+    int compressionLevel = MacGraphicFormat.DEFAULT_COMPRESSION_LEVEL;
+    boolean force = false;
+    List<String> params = new ArrayList<String>();
+
+    for (int i = 0; i < args.length; ++i) {
+      String arg = args[i];
+
+      if ("-threads".equalsIgnoreCase(arg)) {
+        if (i + 1 >= args.length) dieSyntax();
+        try {
+          threads = Integer.parseInt(args[++i]);
+        }
+        catch (NumberFormatException e) {
+          dieSyntax();
+        }
+        if (threads < 1) dieSyntax();
+      }
+      else if ("-level".equalsIgnoreCase(arg)) {
+        if (i + 1 >= args.length) dieSyntax();
+        try {
+          compressionLevel = Integer.parseInt(args[++i]);
+        }
+        catch (NumberFormatException e) {
+          dieSyntax();
+        }
+        if (compressionLevel < Deflater.BEST_SPEED || compressionLevel > Deflater.BEST_COMPRESSION) dieSyntax();
+      }
+      else if ("-force".equalsIgnoreCase(arg)) {
+        force = true;
+      }
+      else if (arg.startsWith("-")) {
+        dieSyntax();
+      }
+      else {
+        params.add(arg);
+      }
+    }
+
+    if (params.size() != 3) dieSyntax();
+
+    CodecType codecType = null;
+    for (CodecType type : CodecType.values()) {
+      if (type.name().equalsIgnoreCase(params.get(0))) {
+        codecType = type;
+      }
+    }
+    if (codecType == null) dieSyntax();
+
+    File input = new File(params.get(1));
+    File output = new File(params.get(2));
+    if (!input.exists()) {
+      System.err.println("File " + input + " not found");
+      System.exit(1);
+    }
+
+    GameFileCodecTool tool = new GameFileCodecTool(codecType.name(), codecType);
+    tool.setCompressionLevel(compressionLevel);
+
+    try {
+      List<File[]> jobs = new ArrayList<File[]>();
+      tool.addJobs(input, output, jobs);
+
+      ConversionStats stats = tool.convert(jobs, threads, !force, new ProgressListener()
+      {
+        public void beginStep(String taskDescription, boolean progressAvailable)
+        {
+        }
+
+        public void progressStep(float percent)
+        {
+        }
+      });
+
+      System.out.println(stats + " using " + threads + " threads");
+    }
+    catch (IOException e) {
+      System.err.println(e.getLocalizedMessage());
+      System.exit(1);
+    }
+  }
+
+  @SuppressWarnings({"UseOfSystemOutOrSystemErr", "HardCodedStringLiteral"})
+  private static void dieSyntax()
+  {
+    System.err.println("Syntax: GameFileCodecTool [-threads <n>] [-level <n>] [-force] <codec> <input> <output>");
+    System.err.println("Switches:");
+    System.err.println(" -threads <n>          Number of files to convert at once (default " + getDefaultThreads() + ")");
+    System.err.println(" -level <n>            Compression level of png.binltl images, 1 (fastest) to 9 (smallest, default)");
+    System.err.println(" -force                Convert files even if the output is newer than the input");
+    System.err.println("");
+    System.err.println("Codecs:");
+    for (CodecType type : CodecType.values()) {
+      System.err.println(String.format(" %-21s %s -> %s", type.name().toLowerCase(Locale.ENGLISH), type.getInputExtension(), type.getOutputExtension()));
+    }
+    System.err.println("");
+    System.err.println("The input and output may be single files, or directories to convert recursively.");
+
+    System.exit(1);
+  }
 }
@@ -7,22 +7,33 @@ package com.goofans.gootool;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.goofans.gootool.addins.Addin;
 import com.goofans.gootool.addins.AddinFactory;
 import com.goofans.gootool.addins.AddinFormatException;
+import com.goofans.gootool.io.GameFormat;
 import com.goofans.gootool.profile.*;
 import com.goofans.gootool.util.Version;
+import com.goofans.gootool.util.XMLUtil;
 import com.goofans.gootool.wog.WorldOfGoo;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
 /**
  * Command-line interface to some GooTool functions.
@@ -35,6 +46,11 @@ public class GooInfo
 {
   private static final Logger log = Logger.getLogger(GooInfo.class.getName());
 
+  private static final int MAX_RENDER_THREADS = 8;
+  private static final int MAX_ANALYZE_THREADS = 8;
+  private static final int ANALYZE_QUEUE_PER_THREAD = 4;
+  private static final int NUM_ISLANDS = 5;
+
   private static ProfileData profileData = null;
   private static Profile selectedProfile = null;
   private static DrawType drawType = DrawType.FULL;
@@ -59,12 +75,6 @@ public class GooInfo
       arglist = new ArrayList<String>(Arrays.asList(args));
       log.info("gooinfo: " + arglist);
 
-      ProfileFactory.init();
-      if (!ProfileFactory.isProfileFound()) {
-        System.err.println("Cannot locate profile file automatically. Run GooTool manually once to detect it.");
-        System.exit(1);
-      }
-
       profileData = null;
       selectedProfile = null;
       drawType = DrawType.FULL;
@@ -94,6 +104,14 @@ public class GooInfo
           commandDrawTower();
           doneSomething = true;
         }
+        else if ("-drawtowers".equalsIgnoreCase(arg)) {
+          commandDrawTowers();
+          doneSomething = true;
+        }
+        else if ("-analyze".equalsIgnoreCase(arg)) {
+          commandAnalyze();
+          doneSomething = true;
+        }
         else if ("-validateaddin".equalsIgnoreCase(arg)) {
           commandValidateAddin();
           doneSomething = true;
@@ -128,6 +146,14 @@ public class GooInfo
     System.err.println(" -listProfiles         Lists the available profiles");
     System.err.println(" -dumpProfile          Dumps the profile data");
     System.err.println(" -drawTower <filename> Draws the tower to the given PNG file");
+    System.err.println(" -drawTowers <profiles> <directory>");
+    System.err.println("                       Draws the towers in every profile file in the <profiles> directory");
+    System.err.println("                       (or listed one per line on standard input if <profiles> is -)");
+    System.err.println("                       to PNG files in <directory>");
+    System.err.println(" -analyze <profiles> <directory>");
+    System.err.println("                       Writes CSV statistics for every profile file under the <profiles>");
+    System.err.println("                       directory to profiles.csv, levels.csv, heights.csv and summary.csv");
+    System.err.println("                       in <directory>");
     System.err.println(" -validateAddin <filename>");
     System.err.println("                       Does some basic validation of the goomod file");
 
@@ -136,8 +162,15 @@ public class GooInfo
 
   private static synchronized void initProfileData() throws IOException
   {
-    if (profileData == null)
+    if (profileData == null) {
+      ProfileFactory.init();
+      if (!ProfileFactory.isProfileFound()) {
+        System.err.println("Cannot locate profile file automatically. Run GooTool manually once to detect it.");
+        System.exit(1);
+      }
+
       profileData = ProfileFactory.getProfileData();
+    }
   }
 
   private static synchronized void initWorldOfGoo()
@@ -274,22 +307,219 @@ public class GooInfo
     /* Render the image */
 
     TowerRenderer tr = new TowerRenderer(selectedProfile.getTower());
-    tr.render();
 
-    BufferedImage image = null;
+    ImageIO.write(renderTower(tr, drawType), "PNG", file);
+  }
+
+  private static BufferedImage renderTower(TowerRenderer tr, DrawType drawType)
+  {
     switch (drawType) {
-      case FULL:
-        image = tr.getPretty();
-        break;
       case THUMB:
-        image = tr.getThumbnail();
-        break;
+        return tr.renderThumbnail();
       case TRANS:
-        image = tr.getFullSize();
-        break;
+        return tr.renderFullSize();
+      default:
+        return tr.renderPretty();
+    }
+  }
+
+  private static void commandDrawTowers() throws IOException
+  {
+    if (currentArg + 2 >= arglist.size()) {
+      System.err.println("-drawTowers requires a profile directory (or -) and an output directory");
+      System.exit(1);
+    }
+
+    String source = arglist.get(++currentArg);
+    File outputDir = new File(arglist.get(++currentArg));
+
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      System.err.println("Can't create output directory " + outputDir);
+      System.exit(1);
     }
 
-    ImageIO.write(image, "PNG", file);
+    List<File> profileFiles = new ArrayList<File>();
+    if ("-".equals(source)) {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.length() > 0) profileFiles.add(new File(line));
+      }
+    }
+    else {
+      File[] files = new File(source).listFiles();
+      if (files == null) {
+        System.err.println("Can't read profile directory " + source);
+        System.exit(1);
+      }
+      Arrays.sort(files);
+      for (File file : files) {
+        if (file.isFile()) profileFiles.add(file);
+      }
+    }
+
+    /* Initialise WoG and decode the sprites once for every tower */
+
+    initWorldOfGoo();
+    TowerSprites sprites = new TowerSprites();
+
+    /* Render each profile file on the pool, writing each PNG as soon as it's ready */
+
+    int threads = Math.max(1, Math.min(MAX_RENDER_THREADS, Runtime.getRuntime().availableProcessors()));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    int rendered = 0;
+    int failed = 0;
+    try {
+      CompletionService<List<File>> completionService = new ExecutorCompletionService<List<File>>(executor);
+      for (File profileFile : profileFiles) {
+        completionService.submit(new DrawTowersJob(profileFile, outputDir, sprites, drawType));
+      }
+
+      for (int i = 0; i < profileFiles.size(); ++i) {
+        Future<List<File>> future = completionService.take();
+        try {
+          for (File written : future.get()) {
+            System.out.println(written);
+            rendered++;
+          }
+        }
+        catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          log.log(Level.WARNING, "Unable to draw towers", cause);
+          System.err.println(cause.getLocalizedMessage());
+          failed++;
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while drawing towers");
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    log.info(rendered + " towers drawn from " + profileFiles.size() + " profile files using " + threads + " threads, " + failed + " failed");
+
+    if (failed > 0) {
+      System.exit(2);
+    }
+  }
+
+  private static void commandAnalyze() throws IOException
+  {
+    if (currentArg + 2 >= arglist.size()) {
+      System.err.println("-analyze requires a profile directory and an output directory");
+      System.exit(1);
+    }
+
+    final File sourceDir = new File(arglist.get(++currentArg));
+    File outputDir = new File(arglist.get(++currentArg));
+
+    if (!sourceDir.isDirectory()) {
+      System.err.println("Profile directory " + sourceDir + " does not exist");
+      System.exit(1);
+    }
+
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      System.err.println("Can't create output directory " + outputDir);
+      System.exit(1);
+    }
+
+    ProfileStatistics stats = new ProfileStatistics();
+    loadOcdCriteria(stats);
+
+    PrintWriter profilesOut = openCsv(new File(outputDir, "profiles.csv"));
+    try {
+      profilesOut.println(ProfileStatistics.PROFILE_CSV_HEADER);
+
+      int threads = Math.max(1, Math.min(MAX_ANALYZE_THREADS, Runtime.getRuntime().availableProcessors()));
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+      final Analyzer analyzer = new Analyzer(executor, threads * ANALYZE_QUEUE_PER_THREAD, stats, profilesOut);
+      try {
+        Files.walkFileTree(sourceDir.toPath(), new SimpleFileVisitor<Path>()
+        {
+          @Override
+          public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException
+          {
+            if (attrs.isRegularFile()) {
+              String name = sourceDir.toPath().relativize(path).toString().replace(File.separatorChar, '/');
+              analyzer.submit(path.toFile(), name);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+
+        analyzer.finish();
+      }
+      finally {
+        executor.shutdownNow();
+      }
+
+      log.info(stats.getNumProfiles() + " profiles analyzed from " + analyzer.files + " files using " + threads + " threads, " + analyzer.failed + " failed");
+    }
+    finally {
+      profilesOut.close();
+    }
+
+    PrintWriter levelsOut = openCsv(new File(outputDir, "levels.csv"));
+    try {
+      stats.writeLevels(levelsOut);
+    }
+    finally {
+      levelsOut.close();
+    }
+
+    PrintWriter heightsOut = openCsv(new File(outputDir, "heights.csv"));
+    try {
+      stats.writeHeights(heightsOut);
+    }
+    finally {
+      heightsOut.close();
+    }
+
+    PrintWriter summaryOut = openCsv(new File(outputDir, "summary.csv"));
+    try {
+      stats.writeSummary(summaryOut);
+    }
+    finally {
+      summaryOut.close();
+    }
+  }
+
+  private static PrintWriter openCsv(File file) throws IOException
+  {
+    return new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
+  }
+
+  /**
+   * Reads the OCD criteria of the original levels from the island files, if World of Goo can be found.
+   */
+  private static void loadOcdCriteria(ProfileStatistics stats) throws IOException
+  {
+    WorldOfGoo wog = WorldOfGoo.getTheInstance();
+    wog.init();
+    if (!wog.isWogFound()) {
+      System.err.println("World of Goo couldn't be located, OCD completion will not be reported.");
+      return;
+    }
+
+    for (int island = 1; island <= NUM_ISLANDS; ++island) {
+      File islandFile = wog.getGameFile("game/res/islands/island" + island + ".xml.bin");
+      Document islandDoc = XMLUtil.loadDocumentFromInputStream(new ByteArrayInputStream(GameFormat.decodeBinFile(islandFile)));
+
+      NodeList levelList = islandDoc.getElementsByTagName("level");
+      for (int i = 0; i < levelList.getLength(); i++) {
+        Element levelNode = (Element) levelList.item(i);
+        String ocd = levelNode.getAttribute("ocd");
+        if (ocd.length() > 0) {
+          stats.setOcd(levelNode.getAttribute("id"), ocd);
+        }
+      }
+    }
   }
 
   private static void commandValidateAddin() throws IOException
@@ -315,4 +545,168 @@ public class GooInfo
       System.exit(2);
     }
   }
+
+  /**
+   * Draws the towers of every profile in one profile file. Returns the PNG files written.
+   */
+  private static class DrawTowersJob implements Callable<List<File>>
+  {
+    private final File profileFile;
+    private final File outputDir;
+    private final TowerSprites sprites;
+    private final DrawType drawType;
+
+    DrawTowersJob(File profileFile, File outputDir, TowerSprites sprites, DrawType drawType)
+    {
+      this.profileFile = profileFile;
+      this.outputDir = outputDir;
+      this.sprites = sprites;
+      this.drawType = drawType;
+    }
+
+    public List<File> call() throws IOException
+    {
+      ProfileData data;
+      try {
+        data = new ProfileData(profileFile);
+      }
+      catch (IOException e) {
+        throw new IOException("Can't read profile file " + profileFile + ": " + e.getLocalizedMessage(), e);
+      }
+      catch (RuntimeException e) {
+        throw new IOException("Can't read profile file " + profileFile + ": " + e, e);
+      }
+
+      String baseName = profileFile.getName();
+      int dot = baseName.lastIndexOf('.');
+      if (dot > 0) baseName = baseName.substring(0, dot);
+
+      List<File> written = new ArrayList<File>(ProfileData.MAX_PROFILES);
+      Profile[] profiles = data.getProfiles();
+      for (int i = 0; i < profiles.length; ++i) {
+        if (profiles[i] == null || profiles[i].getTower() == null) continue;
+
+        TowerRenderer tr = new TowerRenderer(profiles[i].getTower(), sprites);
+        File file = new File(outputDir, baseName + "-" + i + ".png");
+        ImageIO.write(renderTower(tr, drawType), "PNG", file);
+        written.add(file);
+      }
+      return written;
+    }
+  }
+
+  /**
+   * Feeds profile files to the pool, keeping only a few in flight, and writes each result out as soon as it arrives.
+   * Only used from the calling thread.
+   */
+  private static class Analyzer
+  {
+    private final CompletionService<AnalyzeResult> completionService;
+    private final int maxPending;
+    private final ProfileStatistics stats;
+    private final PrintWriter profilesOut;
+
+    private int pending;
+    private int files;
+    private int failed;
+
+    Analyzer(ExecutorService executor, int maxPending, ProfileStatistics stats, PrintWriter profilesOut)
+    {
+      this.completionService = new ExecutorCompletionService<AnalyzeResult>(executor);
+      this.maxPending = maxPending;
+      this.stats = stats;
+      this.profilesOut = profilesOut;
+    }
+
+    void submit(File profileFile, String name) throws IOException
+    {
+      if (pending >= maxPending) {
+        take();
+      }
+
+      completionService.submit(new AnalyzeJob(profileFile, name, stats));
+      pending++;
+      files++;
+    }
+
+    void finish() throws IOException
+    {
+      while (pending > 0) {
+        take();
+      }
+    }
+
+    private void take() throws IOException
+    {
+      try {
+        Future<AnalyzeResult> future = completionService.take();
+        pending--;
+
+        AnalyzeResult result = future.get();
+        for (int i = 0; i < result.profiles.length; ++i) {
+          if (result.profiles[i] != null) {
+            profilesOut.println(result.rows[i]);
+            stats.add(result.profiles[i]);
+          }
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while analyzing profiles");
+      }
+      catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        log.log(Level.WARNING, "Unable to analyze profile", cause);
+        System.err.println(cause.getLocalizedMessage());
+        failed++;
+      }
+    }
+  }
+
+  /**
+   * Reads every profile in one profile file, and formats each as a CSV row.
+   */
+  private static class AnalyzeJob implements Callable<AnalyzeResult>
+  {
+    private final File profileFile;
+    private final String name;
+    private final ProfileStatistics stats;
+
+    AnalyzeJob(File profileFile, String name, ProfileStatistics stats)
+    {
+      this.profileFile = profileFile;
+      this.name = name;
+      this.stats = stats;
+    }
+
+    public AnalyzeResult call() throws IOException
+    {
+      ProfileData data;
+      try {
+        data = new ProfileData(profileFile);
+      }
+      catch (RuntimeException e) {
+        throw new IOException("Can't read profile file " + profileFile + ": " + e, e);
+      }
+      catch (IOException e) {
+        throw new IOException("Can't read profile file " + profileFile + ": " + e.getLocalizedMessage(), e);
+      }
+
+      AnalyzeResult result = new AnalyzeResult();
+      result.profiles = data.getProfiles();
+      result.rows = new String[result.profiles.length];
+      for (int i = 0; i < result.profiles.length; ++i) {
+        if (result.profiles[i] != null) {
+          result.rows[i] = stats.toCsvRow(name, i, result.profiles[i]);
+        }
+      }
+      return result;
+    }
+  }
+
+  private static class AnalyzeResult
+  {
+    private Profile[] profiles;
+    private String[] rows;
+  }
 }
\ No newline at end of file
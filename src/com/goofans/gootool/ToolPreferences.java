@@ -15,9 +15,12 @@ import java.util.TreeMap;
 import java.util.StringTokenizer;
 import java.util.logging.Logger;
 import java.util.logging.Level;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 
+import com.goofans.gootool.platform.PlatformSupport;
+import com.goofans.gootool.siteapi.RatingCache;
 import com.goofans.gootool.util.VersionSpec;
 
 /**
@@ -50,10 +53,14 @@ public class ToolPreferences
   private static final String PREF_BILLBOARDS_DISABLE = "billboard_disable";
   private static final String PREF_BILLBOARDS_LASTCHECK = "billboard_lastcheck";
 
-  private static final String PREF_RATINGS = "ratings";
+  private static final String PREF_RATINGS = "ratings"; // before 1.1.0, now only read to migrate to RATINGS_FILE
   private static final String RATINGS_SEPARATOR = "|";
   private static final String RATINGS_VALUE_SEPARATOR = "=";
 
+  private static final String RATINGS_FILE = "ratings.dat";
+
+  private static RatingCache ratingCache;
+
   private ToolPreferences()
   {
   }
@@ -222,33 +229,80 @@ public class ToolPreferences
     PREFS.putLong(PREF_BILLBOARDS_LASTCHECK, lastCheck);
   }
 
+  /**
+   * Returns the user's rating of an addin on GooFans.
+   *
+   * @param addinId The ID of the addin.
+   * @return The vote (0-100), or null if the user hasn't rated the addin.
+   */
+  public static Integer getRating(String addinId)
+  {
+    return getRatingCache().getRating(addinId);
+  }
+
+  /**
+   * Records the user's rating of one addin.
+   *
+   * @param addinId The ID of the addin.
+   * @param vote    The vote (0-100).
+   */
+  public static void setRating(String addinId, int vote)
+  {
+    getRatingCache().setRating(addinId, vote);
+  }
+
+  /**
+   * Replaces all the user's ratings with those downloaded from GooFans.
+   *
+   * @param ratings The votes (0-100), by addin ID.
+   */
   public static void setRatings(Map<String, Integer> ratings)
   {
-    StringBuilder sb = new StringBuilder();
-    for (Map.Entry<String, Integer> rating : ratings.entrySet()) {
-      if (sb.length() > 0) sb.append(RATINGS_SEPARATOR);
-      sb.append(rating.getKey()).append(RATINGS_VALUE_SEPARATOR).append(rating.getValue());
-    }
-    PREFS.put(PREF_RATINGS, sb.toString());
+    getRatingCache().setRatings(ratings);
   }
 
-  public static Map<String, Integer> getRatings()
+  private static synchronized RatingCache getRatingCache()
   {
-    String ratingsReg = PREFS.get(PREF_RATINGS, null);
-    if (ratingsReg == null) {
-      return new TreeMap<String, Integer>();
+    if (ratingCache != null) return ratingCache;
+
+    File cacheFile = null;
+    try {
+      cacheFile = new File(PlatformSupport.getToolStorageDirectory(), RATINGS_FILE);
+    }
+    catch (IOException e) {
+      log.log(Level.SEVERE, "No tool storage directory, ratings will not be saved", e);
     }
 
+    ratingCache = new RatingCache(cacheFile);
+    if (!ratingCache.load()) {
+      // Ratings used to be stored in a single preference. They can be downloaded again, but keep them in the meantime.
+      String ratingsReg = PREFS.get(PREF_RATINGS, null);
+      if (ratingsReg != null) {
+        ratingCache.setRatings(parseOldRatings(ratingsReg));
+        PREFS.remove(PREF_RATINGS);
+      }
+    }
+    return ratingCache;
+  }
+
+  private static Map<String, Integer> parseOldRatings(String ratingsReg)
+  {
     StringTokenizer tok = new StringTokenizer(ratingsReg, RATINGS_SEPARATOR);
 
     Map<String, Integer> ratings = new TreeMap<String, Integer>();
 
     while (tok.hasMoreTokens()) {
       StringTokenizer tok2 = new StringTokenizer(tok.nextToken(), RATINGS_VALUE_SEPARATOR);
+      if (tok2.countTokens() != 2) continue;
       String addinId = tok2.nextToken();
       String vote = tok2.nextToken();
 
-      ratings.put(addinId, Integer.valueOf(vote));
+      try {
+        ratings.put(addinId, Integer.valueOf(vote));
+      }
+      catch (NumberFormatException e) {
+        log.warning("Ignoring invalid rating " + vote + " for " + addinId);
+      }
     }
 
     return ratings;
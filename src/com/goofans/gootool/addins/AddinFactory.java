@@ -30,17 +30,21 @@ public class AddinFactory
 {
   private static final Logger log = Logger.getLogger(AddinFactory.class.getName());
 
-  private static final XPathExpression XPATH_ADDIN_SPECVERSION;
-  private static final XPathExpression XPATH_ADDIN_ID;
-  private static final XPathExpression XPATH_ADDIN_NAME;
-  private static final XPathExpression XPATH_ADDIN_TYPE;
-  private static final XPathExpression XPATH_ADDIN_VERSION;
-  private static final XPathExpression XPATH_ADDIN_DESCRIPTION;
-  private static final XPathExpression XPATH_ADDIN_AUTHOR;
-  private static final XPathExpression XPATH_ADDIN_DEPENDENCIES;
-  private static final XPathExpression XPATH_ADDIN_THUMBNAIL;
-  private static final XPathExpression XPATH_ADDIN_OLD_LEVEL;
-  private static final XPathExpression XPATH_ADDIN_LEVELS_LEVEL;
+  // XPath expressions aren't thread safe, so each thread compiles its own set
+  private static final ThreadLocal<ManifestXPaths> XPATHS = new ThreadLocal<ManifestXPaths>()
+  {
+    @Override
+    protected ManifestXPaths initialValue()
+    {
+      try {
+        return new ManifestXPaths();
+      }
+      catch (XPathExpressionException e) {
+        throw new RuntimeException("Unable to compile manifest XPath expressions", e);
+      }
+    }
+  };
+
   private static final String LEVEL_DIR = "dir";
   private static final String LEVEL_NAME = "name";
   private static final String LEVEL_SUBTITLE = "subtitle";
@@ -57,30 +61,11 @@ public class AddinFactory
 
   private static final VersionSpec SPEC_VERSION_1_0 = new VersionSpec(new int[]{1, 0});
   public static final VersionSpec SPEC_VERSION_1_1 = new VersionSpec(new int[]{1, 1});
+  public static final VersionSpec SPEC_VERSION_1_2 = new VersionSpec(new int[]{1, 2}); // adds compiled animations and movies
 
   private static final String GOOMOD_MANIFEST = "addin.xml";
 
 
-  static {
-    XPath path = XPathFactory.newInstance().newXPath();
-    try {
-      XPATH_ADDIN_SPECVERSION = path.compile("/addin/@spec-version");
-      XPATH_ADDIN_ID = path.compile("/addin/id");
-      XPATH_ADDIN_NAME = path.compile("/addin/name");
-      XPATH_ADDIN_TYPE = path.compile("/addin/type");
-      XPATH_ADDIN_VERSION = path.compile("/addin/version");
-      XPATH_ADDIN_DESCRIPTION = path.compile("/addin/description");
-      XPATH_ADDIN_AUTHOR = path.compile("/addin/author");
-      XPATH_ADDIN_DEPENDENCIES = path.compile("/addin/dependencies/depends");
-      XPATH_ADDIN_THUMBNAIL = path.compile("/addin/thumbnail");
-      XPATH_ADDIN_OLD_LEVEL = path.compile("/addin/level");
-      XPATH_ADDIN_LEVELS_LEVEL = path.compile("/addin/levels/level");
-    }
-    catch (XPathExpressionException e) {
-      throw new ExceptionInInitializerError(e);
-    }
-  }
-
   private AddinFactory()
   {
   }
@@ -142,13 +127,14 @@ public class AddinFactory
     }
   }
 
-  // Synchronized since xpath expressions and patterns aren't thread safe
-  private static synchronized Addin readManifest(InputStream is, File addinDiskFile, AddinReader addinReader) throws IOException, AddinFormatException
+  // Thread safe, so that many addins can be loaded at once
+  private static Addin readManifest(InputStream is, File addinDiskFile, AddinReader addinReader) throws IOException, AddinFormatException
   {
     Document document = XMLUtil.loadDocumentFromInputStream(is);
+    ManifestXPaths xpaths = XPATHS.get();
 
     try {
-      String specVersionStr = getString(document, XPATH_ADDIN_SPECVERSION);
+      String specVersionStr = getString(document, xpaths.specVersion);
       if (specVersionStr.length() == 0) throw new AddinFormatException("No spec-version found");
       VersionSpec manifestVersion = new VersionSpec(specVersionStr);
 
@@ -156,10 +142,11 @@ public class AddinFactory
         throw new AddinFormatException("This addin uses outdated spec-version " + manifestVersion + ". Please upgrade this addin.");
       }
       else if (manifestVersion.equals(SPEC_VERSION_1_0)) {
-        return readManifestVersion1_0(document, manifestVersion, addinDiskFile);
+        return readManifestVersion1_0(document, xpaths, manifestVersion, addinDiskFile);
       }
-      else if (manifestVersion.equals(SPEC_VERSION_1_1)) {
-        return readManifestVersion1_1(document, manifestVersion, addinDiskFile, addinReader);
+      else if (manifestVersion.equals(SPEC_VERSION_1_1) || manifestVersion.equals(SPEC_VERSION_1_2)) {
+        // 1.2 has the same manifest as 1.1
+        return readManifestVersion1_1(document, xpaths, manifestVersion, addinDiskFile, addinReader);
       }
       else {
         throw new AddinFormatException("This addin uses unsupported spec-version " + manifestVersion + ". Please upgrade GooTool.");
@@ -174,28 +161,29 @@ public class AddinFactory
    * Reads the manifest for spec-version 1.0, the first version supported by GooTool.
    *
    * @param document        the DOM document of the manifest file.
+   * @param xpaths          The XPath expressions for the current thread.
    * @param manifestVersion The spec-version of the manifest.
    * @param addinDiskFile   The addin file or directory on disk.
    * @return The constructed addin.
    * @throws AddinFormatException     if the addin was somehow invalid.
    * @throws XPathExpressionException if the manifest was unparseable (really, should be AddinFormatException).
    */
-  private static Addin readManifestVersion1_0(Document document, VersionSpec manifestVersion, File addinDiskFile) throws XPathExpressionException, AddinFormatException
+  private static Addin readManifestVersion1_0(Document document, ManifestXPaths xpaths, VersionSpec manifestVersion, File addinDiskFile) throws XPathExpressionException, AddinFormatException
   {
-    String id = getStringRequiredValidated(document, XPATH_ADDIN_ID, PATTERN_ID, "id");
-    String name = getStringRequiredValidated(document, XPATH_ADDIN_NAME, PATTERN_NAME, "name");
+    String id = getStringRequiredValidated(document, xpaths.id, PATTERN_ID, "id");
+    String name = getStringRequiredValidated(document, xpaths.name, PATTERN_NAME, "name");
 
-    String typeStr = getStringRequired(document, XPATH_ADDIN_TYPE, "type");
+    String typeStr = getStringRequired(document, xpaths.type, "type");
     int type = Addin.typeFromString(typeStr);
     if (type == Addin.TYPE_UNKNOWN) throw new AddinFormatException("Invalid addin type " + typeStr);
 
-    String versionStr = getStringRequired(document, XPATH_ADDIN_VERSION, "version");
+    String versionStr = getStringRequired(document, xpaths.version, "version");
     VersionSpec version = decodeVersion(versionStr, "version");
 
-    String description = getStringRequired(document, XPATH_ADDIN_DESCRIPTION, "description");
-    String author = getStringRequired(document, XPATH_ADDIN_AUTHOR, "author");
+    String description = getStringRequired(document, xpaths.description, "description");
+    String author = getStringRequired(document, xpaths.author, "author");
 
-    NodeList depends = (NodeList) XPATH_ADDIN_DEPENDENCIES.evaluate(document, XPathConstants.NODESET);
+    NodeList depends = (NodeList) xpaths.dependencies.evaluate(document, XPathConstants.NODESET);
 
     List<AddinDependency> dependencies = new ArrayList<AddinDependency>(depends.getLength());
 
@@ -217,7 +205,7 @@ public class AddinFactory
     Addin addin = new Addin(addinDiskFile, id, name, type, manifestVersion, version, description, author, dependencies);
 
     // Handle the <level> from goomod 1.0
-    Element levelElement = (Element) XPATH_ADDIN_OLD_LEVEL.evaluate(document, XPathConstants.NODE);
+    Element levelElement = (Element) xpaths.oldLevel.evaluate(document, XPathConstants.NODE);
 
     if (manifestVersion.equals(SPEC_VERSION_1_0)) {
       if (levelElement == null && type == Addin.TYPE_LEVEL) throw new AddinFormatException("Level addin doesn't have a level description in manifest");
@@ -244,6 +232,7 @@ public class AddinFactory
    * - level moved to levels/level, multiple level support
    *
    * @param document        the DOM document of the manifest file.
+   * @param xpaths          The XPath expressions for the current thread.
    * @param manifestVersion The spec-version of the manifest.
    * @param addinDiskFile   The addin file or directory on disk.
    * @return The constructed addin.
@@ -251,14 +240,14 @@ public class AddinFactory
    * @throws javax.xml.xpath.XPathExpressionException
    *                              if the manifest was unparseable (really, should be AddinFormatException).
    */
-  private static Addin readManifestVersion1_1(Document document, VersionSpec manifestVersion, File addinDiskFile, AddinReader addinReader) throws XPathExpressionException, AddinFormatException, IOException
+  private static Addin readManifestVersion1_1(Document document, ManifestXPaths xpaths, VersionSpec manifestVersion, File addinDiskFile, AddinReader addinReader) throws XPathExpressionException, AddinFormatException, IOException
   {
-    Addin addin = readManifestVersion1_0(document, manifestVersion, addinDiskFile);
+    Addin addin = readManifestVersion1_0(document, xpaths, manifestVersion, addinDiskFile);
 
-    readThumbnail(document, addinReader, addin);
+    readThumbnail(document, xpaths, addinReader, addin);
 
     // Read levels/level
-    NodeList levelNodes = (NodeList) XPATH_ADDIN_LEVELS_LEVEL.evaluate(document, XPathConstants.NODESET);
+    NodeList levelNodes = (NodeList) xpaths.levelsLevel.evaluate(document, XPathConstants.NODESET);
     if (addin.getType() == Addin.TYPE_LEVEL) {
       if (levelNodes.getLength() == 0) throw new AddinFormatException("No levels specified in a level addin!");
 
@@ -331,10 +320,10 @@ public class AddinFactory
     return level;
   }
 
-  private static void readThumbnail(Document document, AddinReader addinReader, Addin addin)
+  private static void readThumbnail(Document document, ManifestXPaths xpaths, AddinReader addinReader, Addin addin)
           throws XPathExpressionException, IOException, AddinFormatException
   {
-    Node thumbnailNode = getNode(document, XPATH_ADDIN_THUMBNAIL);
+    Node thumbnailNode = getNode(document, xpaths.thumbnail);
 
     if (thumbnailNode != null) {
       int expectedWidth = XMLUtil.getAttributeIntegerRequired(thumbnailNode, "width");
@@ -438,6 +427,40 @@ public class AddinFactory
     return (Node) expression.evaluate(document, XPathConstants.NODE);
   }
 
+  /**
+   * The compiled XPath expressions used to read a manifest.
+   */
+  private static class ManifestXPaths
+  {
+    private final XPathExpression specVersion;
+    private final XPathExpression id;
+    private final XPathExpression name;
+    private final XPathExpression type;
+    private final XPathExpression version;
+    private final XPathExpression description;
+    private final XPathExpression author;
+    private final XPathExpression dependencies;
+    private final XPathExpression thumbnail;
+    private final XPathExpression oldLevel;
+    private final XPathExpression levelsLevel;
+
+    ManifestXPaths() throws XPathExpressionException
+    {
+      XPath path = XPathFactory.newInstance().newXPath();
+      specVersion = path.compile("/addin/@spec-version");
+      id = path.compile("/addin/id");
+      name = path.compile("/addin/name");
+      type = path.compile("/addin/type");
+      version = path.compile("/addin/version");
+      description = path.compile("/addin/description");
+      author = path.compile("/addin/author");
+      dependencies = path.compile("/addin/dependencies/depends");
+      thumbnail = path.compile("/addin/thumbnail");
+      oldLevel = path.compile("/addin/level");
+      levelsLevel = path.compile("/addin/levels/level");
+    }
+  }
+
   @SuppressWarnings({"UseOfSystemOutOrSystemErr"})
   public static void main(String[] args) throws IOException, AddinFormatException
   {
@@ -0,0 +1,413 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.addins;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.goofans.gootool.util.VersionSpec;
+
+/**
+ * An on-disk index of the manifests of installed goomods, so they don't all need to be opened and parsed on every
+ * startup.
+ * <p/>
+ * Each entry is keyed by the goomod's path, and is only used if the file's size and modification time are unchanged.
+ * If only the modification time has changed (e.g. the file was copied back in place), the entry is still used as long
+ * as the SHA-1 hash of the file's content matches.
+ * <p/>
+ * The index is a cache. If it is missing, corrupt or from a different version it is simply rebuilt. It is replaced in
+ * one step once it has been written completely, so a failed write leaves the previous index in place.
+ * <p/>
+ * This class is thread safe, so that goomods can be looked up and added from several threads at once.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+public class AddinIndex
+{
+  private static final Logger log = Logger.getLogger(AddinIndex.class.getName());
+
+  private static final int INDEX_MAGIC = 0x474d4958; // GMIX
+  private static final int INDEX_VERSION = 2;
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private static final int MAX_STRING_LENGTH = 16 * 1024 * 1024; // bytes; anything longer means the index is corrupt
+
+  private final File indexFile;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private volatile boolean dirty;
+
+  /**
+   * Creates an empty index, backed by the given file. Call {@link #load()} to read the existing index.
+   *
+   * @param indexFile The file the index is stored in.
+   */
+  public AddinIndex(File indexFile)
+  {
+    this.indexFile = indexFile;
+  }
+
+  /**
+   * Reads the index from disk. A missing or unreadable index is treated as empty.
+   */
+  public void load()
+  {
+    entries.clear();
+    dirty = false;
+
+    if (!indexFile.exists()) return;
+
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+      try {
+        if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+          log.info("Ignoring addin index with unknown format");
+          dirty = true;
+          return;
+        }
+
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+          Entry entry = readEntry(in);
+          entries.put(entry.path, entry);
+        }
+      }
+      finally {
+        in.close();
+      }
+
+      log.fine(entries.size() + " addins read from index " + indexFile);
+    }
+    catch (IOException e) {
+      log.log(Level.WARNING, "Ignoring unreadable addin index " + indexFile, e);
+      entries.clear();
+      dirty = true;
+    }
+  }
+
+  /**
+   * Writes the index to disk, if it has changed since it was loaded, replacing the index file in one step once it has
+   * been written completely.
+   *
+   * @throws IOException if the index couldn't be written.
+   */
+  public void save() throws IOException
+  {
+    if (!dirty) return;
+
+    List<Entry> toWrite = new ArrayList<Entry>(entries.values());
+
+    File tempFile = new File(indexFile.getPath() + ".tmp");
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try {
+      out.writeInt(INDEX_MAGIC);
+      out.writeInt(INDEX_VERSION);
+      out.writeInt(toWrite.size());
+      for (Entry entry : toWrite) {
+        writeEntry(out, entry);
+      }
+    }
+    finally {
+      out.close();
+    }
+
+    try {
+      Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException e) {
+      Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    dirty = false;
+    log.fine(toWrite.size() + " addins written to index " + indexFile);
+  }
+
+  /**
+   * Looks up a goomod in the index.
+   *
+   * @param file The goomod file.
+   * @return The addin, or null if it isn't in the index or the file has changed.
+   * @throws IOException if the file had to be hashed and couldn't be read.
+   */
+  public Addin get(File file) throws IOException
+  {
+    Entry entry = entries.get(file.getPath());
+    if (entry == null) return null;
+
+    long size = file.length();
+    long lastModified = file.lastModified();
+
+    if (entry.size != size) return null;
+
+    if (entry.lastModified != lastModified) {
+      if (!Arrays.equals(entry.hash, hashFile(file))) return null;
+
+      log.finer("Addin " + file + " has a new modification time but the same content");
+      entry.lastModified = lastModified;
+      dirty = true;
+    }
+
+    return entry.addin;
+  }
+
+  /**
+   * Adds or replaces a goomod in the index.
+   *
+   * @param file  The goomod file.
+   * @param addin The addin read from the file.
+   * @throws IOException if the file couldn't be hashed, or the thumbnail couldn't be encoded.
+   */
+  public void put(File file, Addin addin) throws IOException
+  {
+    Entry entry = new Entry();
+    entry.path = file.getPath();
+    entry.size = file.length();
+    entry.lastModified = file.lastModified();
+    entry.hash = hashFile(file);
+    entry.addin = addin;
+
+    if (addin.getThumbnail() != null) {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      ImageIO.write(addin.getThumbnail(), "PNG", bos);
+      entry.thumbnail = bos.toByteArray();
+    }
+
+    entries.put(entry.path, entry);
+    dirty = true;
+  }
+
+  /**
+   * Removes all goomods from the index except the given ones.
+   *
+   * @param files The goomod files to keep.
+   */
+  public void retainOnly(Collection<File> files)
+  {
+    Set<String> paths = new HashSet<String>();
+    for (File file : files) {
+      paths.add(file.getPath());
+    }
+
+    if (entries.keySet().retainAll(paths)) {
+      dirty = true;
+    }
+  }
+
+  private static byte[] hashFile(File file) throws IOException
+  {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-1
+      throw new RuntimeException("SHA-1 not available", e);
+    }
+
+    InputStream is = new FileInputStream(file);
+    try {
+      byte[] buf = new byte[8192];
+      int numRead;
+      while ((numRead = is.read(buf)) != -1) {
+        md.update(buf, 0, numRead);
+      }
+    }
+    finally {
+      is.close();
+    }
+    return md.digest();
+  }
+
+  private static Entry readEntry(DataInputStream in) throws IOException
+  {
+    Entry entry = new Entry();
+    entry.path = readString(in);
+    entry.size = in.readLong();
+    entry.lastModified = in.readLong();
+    entry.hash = new byte[in.readUnsignedByte()];
+    in.readFully(entry.hash);
+
+    String id = readString(in);
+    String name = readString(in);
+    int type = in.readInt();
+    VersionSpec manifestVersion = readVersion(in);
+    VersionSpec version = readVersion(in);
+    String description = readString(in);
+    String author = readString(in);
+
+    int numDependencies = in.readInt();
+    List<AddinDependency> dependencies = new ArrayList<AddinDependency>(numDependencies);
+    for (int i = 0; i < numDependencies; ++i) {
+      String ref = readString(in);
+      VersionSpec minVersion = readVersion(in);
+      VersionSpec maxVersion = readVersion(in);
+      dependencies.add(new AddinDependency(ref, minVersion, maxVersion));
+    }
+
+    Addin addin = new Addin(new File(entry.path), id, name, type, manifestVersion, version, description, author, dependencies);
+
+    int numLevels = in.readInt();
+    for (int i = 0; i < numLevels; ++i) {
+      String dir = readString(in);
+      Map<String, String> names = readMap(in);
+      Map<String, String> subtitles = readMap(in);
+      String ocd = readNullableString(in);
+
+      AddinLevel level = new AddinLevel(dir, names, subtitles, ocd);
+      level.setCutscene(readNullableString(in));
+      level.setSkipEolSequence(in.readBoolean());
+      addin.addLevel(level);
+    }
+
+    int thumbnailLength = in.readInt();
+    if (thumbnailLength >= 0) {
+      entry.thumbnail = new byte[thumbnailLength];
+      in.readFully(entry.thumbnail);
+
+      BufferedImage thumbnailImage = ImageIO.read(new ByteArrayInputStream(entry.thumbnail));
+      if (thumbnailImage == null) throw new IOException("Invalid thumbnail in addin index");
+      addin.setThumbnail(thumbnailImage);
+    }
+
+    entry.addin = addin;
+    return entry;
+  }
+
+  private static void writeEntry(DataOutputStream out, Entry entry) throws IOException
+  {
+    Addin addin = entry.addin;
+
+    writeString(out, entry.path);
+    out.writeLong(entry.size);
+    out.writeLong(entry.lastModified);
+    out.writeByte(entry.hash.length);
+    out.write(entry.hash);
+
+    writeString(out, addin.getId());
+    writeString(out, addin.getName());
+    out.writeInt(addin.getType());
+    writeVersion(out, addin.getManifestVersion());
+    writeVersion(out, addin.getVersion());
+    writeString(out, addin.getDescription());
+    writeString(out, addin.getAuthor());
+
+    out.writeInt(addin.getDependencies().size());
+    for (AddinDependency dependency : addin.getDependencies()) {
+      writeString(out, dependency.getRef());
+      writeVersion(out, dependency.getMinVersion());
+      writeVersion(out, dependency.getMaxVersion());
+    }
+
+    out.writeInt(addin.getLevels().size());
+    for (AddinLevel level : addin.getLevels()) {
+      writeString(out, level.getDir());
+      writeMap(out, level.getNames());
+      writeMap(out, level.getSubtitles());
+      writeNullableString(out, level.getOcd());
+      writeNullableString(out, level.getCutscene());
+      out.writeBoolean(level.isSkipEolSequence());
+    }
+
+    if (entry.thumbnail == null) {
+      out.writeInt(-1);
+    }
+    else {
+      out.writeInt(entry.thumbnail.length);
+      out.write(entry.thumbnail);
+    }
+  }
+
+  private static VersionSpec readVersion(DataInputStream in) throws IOException
+  {
+    String versionStr = readNullableString(in);
+    if (versionStr == null) return null;
+
+    try {
+      return new VersionSpec(versionStr);
+    }
+    catch (NumberFormatException e) {
+      throw new IOException("Invalid version " + versionStr + " in addin index");
+    }
+  }
+
+  private static void writeVersion(DataOutputStream out, VersionSpec version) throws IOException
+  {
+    writeNullableString(out, version == null ? null : version.toString());
+  }
+
+  private static String readNullableString(DataInputStream in) throws IOException
+  {
+    return in.readBoolean() ? readString(in) : null;
+  }
+
+  private static void writeNullableString(DataOutputStream out, String s) throws IOException
+  {
+    out.writeBoolean(s != null);
+    if (s != null) writeString(out, s);
+  }
+
+  private static String readString(DataInputStream in) throws IOException
+  {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_STRING_LENGTH) {
+      throw new IOException("Invalid string length " + length + " in addin index");
+    }
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, CHARSET);
+  }
+
+  // Not writeUTF, which fails on strings of more than 64K bytes, such as a very long addin description
+  private static void writeString(DataOutputStream out, String s) throws IOException
+  {
+    byte[] bytes = s.getBytes(CHARSET);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static Map<String, String> readMap(DataInputStream in) throws IOException
+  {
+    Map<String, String> map = new TreeMap<String, String>();
+    int count = in.readInt();
+    for (int i = 0; i < count; ++i) {
+      String key = readString(in);
+      map.put(key, readString(in));
+    }
+    return map;
+  }
+
+  private static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException
+  {
+    out.writeInt(map.size());
+    for (Map.Entry<String, String> mapEntry : map.entrySet()) {
+      writeString(out, mapEntry.getKey());
+      writeString(out, mapEntry.getValue());
+    }
+  }
+
+  private static class Entry
+  {
+    private String path;
+    private long size;
+    private volatile long lastModified;
+    private byte[] hash;
+    private Addin addin;
+    private byte[] thumbnail;
+  }
+}
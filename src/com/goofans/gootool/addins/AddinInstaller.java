@@ -5,20 +5,23 @@
 
 package com.goofans.gootool.addins;
 
-import net.infotrek.util.EncodingUtil;
-
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.xml.transform.TransformerException;
 import java.awt.Image;
 import java.io.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.goofans.gootool.io.GameFormat;
 import com.goofans.gootool.io.MacGraphicFormat;
 import com.goofans.gootool.io.UnicodeReader;
+import com.goofans.gootool.movie.BinImageAnimation;
+import com.goofans.gootool.movie.BinMovie;
 import com.goofans.gootool.platform.PlatformSupport;
 import com.goofans.gootool.util.Utilities;
 import com.goofans.gootool.util.XMLUtil;
@@ -38,6 +41,9 @@ public class AddinInstaller
   private static final String[] ALLOWED_ROOT_DIRS = new String[]{"game/properties/", "game/res/"};
 
   private static final String STRINGS_FILE = "text.xml";
+  private static final String GAME_TEXT_FILE = "game/properties/text.xml.bin";
+  private static final String GAME_ISLAND_FILE = "game/res/islands/island1.xml.bin";
+  private static final String GAME_ISLAND_SCENE_FILE = "game/res/levels/island1/island1.scene.bin";
   private static final String GOOMOD_DIR_OVERRIDE = "override/";
   private static final String GOOMOD_DIR_MERGE = "merge/";
   private static final String GOOMOD_DIR_COMPILE = "compile/";
@@ -52,25 +58,179 @@ public class AddinInstaller
   private static final String EXTENSION_XSL = ".xsl";
   private static final String EXTENSION_BIN = ".bin";
   private static final String EXTENSION_XML = ".xml";
+  private static final String EXTENSION_ANIM_XML = ".anim.xml";
+  private static final String EXTENSION_MOVIE_XML = ".movie.xml";
+  private static final String EXTENSION_BINLTL = ".binltl";
+
+  private static final int MAX_OVERRIDE_THREADS = 4;
+  private static final int COPY_BUFFER_SIZE = 65536;
 
   private AddinInstaller()
   {
   }
 
+  /**
+   * Installs a single addin, writing its changes to the game files immediately.
+   *
+   * @param addin The addin to install.
+   * @throws IOException          if a file couldn't be read or written.
+   * @throws AddinFormatException if the addin is invalid.
+   */
   public static void installAddin(Addin addin) throws IOException, AddinFormatException
   {
-    log.log(Level.FINE, "Installing addin " + addin.getId());
+    MergeSession session = new MergeSession();
+    installAddin(addin, session);
+    session.write();
+  }
 
-    AddinReader addinReader = AddinFactory.getAddinReader(addin.getDiskFile());
+  /**
+   * Installs an addin into a merge session. Changes to .bin files are only held in the session, and aren't written until
+   * {@link MergeSession#write()} is called. Addins must be installed in order, lowest priority first.
+   *
+   * @param addin   The addin to install.
+   * @param session The session holding the game files being modified.
+   * @throws IOException          if a file couldn't be read or written.
+   * @throws AddinFormatException if the addin is invalid.
+   */
+  public static void installAddin(Addin addin, MergeSession session) throws IOException, AddinFormatException
+  {
+    // Within one addin, compiles always replace overrides, so nothing needs to be excluded from the merges
+    installOverrides(Collections.singletonList(addin), null);
+    installMerges(addin, session, null);
+  }
+
+  /**
+   * Installs the override pass of a number of addins at once.
+   * <p/>
+   * The overrides of all the addins are planned first, so that each file is only written once, by the highest priority
+   * addin that writes it. The files are then copied, and any images checked, on a pool of worker threads.
+   * <p/>
+   * Overrides can't be .bin files, so they never write to the same files as merges, but they can write the same
+   * .binltl files as compiled animations and movies. The compile entries are planned along with the overrides, and an
+   * override is dropped if a compile from the same or a higher priority addin writes the same file. The files that are
+   * overridden are returned, and must be excluded from the targets passed to
+   * {@link #installMerges(Addin, MergeSession, Set)}, so that a lower priority addin doesn't compile over them.
+   *
+   * @param addins  The addins, in the order they are installed, lowest priority first.
+   * @param targets The game paths to install into, as returned by {@link #getTargets(Addin)}, or null for all of them.
+   * @return The game paths that were overridden.
+   * @throws IOException          if a file couldn't be read or written.
+   * @throws AddinFormatException if an addin is invalid.
+   */
+  public static Set<String> installOverrides(List<Addin> addins, Set<String> targets) throws IOException, AddinFormatException
+  {
+    List<AddinReader> addinReaders = new ArrayList<AddinReader>(addins.size());
 
     try {
-      doPasses(addin, addinReader);
+      Map<String, OverrideJob> overrides = new LinkedHashMap<String, OverrideJob>();
+      int entries = 0;
+
+      for (Addin addin : addins) {
+        AddinReader addinReader = AddinFactory.getAddinReader(addin.getDiskFile());
+        addinReaders.add(addinReader);
+
+        Iterator<String> overrideEntries = addinReader.getEntriesInDirectory(GOOMOD_DIR_OVERRIDE, SKIP_FILES);
+        while (overrideEntries.hasNext()) {
+          String fileName = overrideEntries.next();
+          entries++;
+
+          checkFileName(fileName);
+          checkDirOk(fileName);
+          if (fileName.endsWith(EXTENSION_BIN)) {
+            throw new AddinFormatException("Bin files are not allowed in the override directory");
+          }
+
+          String destination = getDestination(PASS_OVERRIDE, fileName);
+          if (isTarget(targets, destination)) {
+            // Later addins have priority, so replace whatever an earlier addin would have written
+            overrides.put(destination, new OverrideJob(addin, addinReader, fileName));
+          }
+        }
 
-      if (addin.getManifestVersion().compareTo(AddinFactory.SPEC_VERSION_1_1) >= 0) {
-        if (addinReader.fileExists(STRINGS_FILE)) {
-          doStringsFile(addin, addinReader.getInputStream(STRINGS_FILE));
+        // Compiles are done after overrides, so a compile replaces any override of the same file
+        Iterator<String> compileEntries = addinReader.getEntriesInDirectory(GOOMOD_DIR_COMPILE, SKIP_FILES);
+        while (compileEntries.hasNext()) {
+          overrides.remove(getDestination(PASS_COMPILE, compileEntries.next()));
         }
       }
+
+      log.log(Level.FINE, overrides.size() + " files to override from " + entries + " entries in " + addins.size() + " addins");
+
+      // Workers would race to create shared parent directories, so create them all first
+      Set<File> dirs = new HashSet<File>();
+      for (String destination : overrides.keySet()) {
+        dirs.add(WorldOfGoo.getTheInstance().getCustomGameFile(destination).getParentFile());
+      }
+      for (File dir : dirs) {
+        Utilities.mkdirsOrException(dir);
+      }
+
+      runOverrides(overrides.values());
+      return new HashSet<String>(overrides.keySet());
+    }
+    finally {
+      for (AddinReader addinReader : addinReaders) {
+        addinReader.close();
+      }
+    }
+  }
+
+  private static void runOverrides(Collection<OverrideJob> overrides) throws IOException, AddinFormatException
+  {
+    if (overrides.isEmpty()) return;
+
+    int threads = Math.max(1, Math.min(MAX_OVERRIDE_THREADS, Math.min(overrides.size(), Runtime.getRuntime().availableProcessors())));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    try {
+      CompletionService<Void> completionService = new ExecutorCompletionService<Void>(executor);
+      for (OverrideJob override : overrides) {
+        completionService.submit(override);
+      }
+
+      for (int i = 0; i < overrides.size(); ++i) {
+        completionService.take().get();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while installing overrides");
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof AddinFormatException) throw (AddinFormatException) cause;
+      throw new IOException("Unable to install overrides: " + cause.getLocalizedMessage(), cause);
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Installs everything in an addin except its overrides, which must already have been installed with
+   * {@link #installOverrides(List, Set)}. If targets are given, only the parts of the addin that write to those files are
+   * installed, so the addin can be reapplied to just the files that have been restored from the original game. The
+   * targets must not include the files returned by {@link #installOverrides(List, Set)}.
+   *
+   * @param addin   The addin to install.
+   * @param session The session holding the game files being modified.
+   * @param targets The game paths to install into, as returned by {@link #getTargets(Addin)}, or null for all of them.
+   * @throws IOException          if a file couldn't be read or written.
+   * @throws AddinFormatException if the addin is invalid.
+   */
+  public static void installMerges(Addin addin, MergeSession session, Set<String> targets) throws IOException, AddinFormatException
+  {
+    log.log(Level.FINE, "Installing addin " + addin.getId() + (targets == null ? "" : " into " + targets.size() + " files"));
+
+    AddinReader addinReader = AddinFactory.getAddinReader(addin.getDiskFile());
+
+    try {
+      doPasses(addin, addinReader, session, targets);
+
+      if (hasStringsFile(addin, addinReader) && isTarget(targets, GAME_TEXT_FILE)) {
+        doStringsFile(addin, addinReader.getInputStream(STRINGS_FILE), session);
+      }
     }
     finally {
       addinReader.close();
@@ -78,16 +238,94 @@ public class AddinInstaller
 
     if (addin.getType() == Addin.TYPE_LEVEL) {
       for (AddinLevel level : addin.getLevels()) {
-        installLevel(level);
+        installLevel(level, session, targets);
       }
     }
 
     log.log(Level.FINE, "Addin " + addin.getId() + " installed");
   }
 
-  private static void doPasses(Addin addin, AddinReader addinReader) throws IOException, AddinFormatException
+  /**
+   * Lists the files that this addin writes to, as paths for {@link WorldOfGoo#getCustomGameFile}. This includes the
+   * files it overrides, merges into and compiles, and the game files that its strings and levels are added to.
+   *
+   * @param addin The addin to examine.
+   * @return The game paths the addin writes to, in no particular order.
+   * @throws IOException          if the addin couldn't be read.
+   * @throws AddinFormatException if the addin contains a file that can't be installed.
+   */
+  public static Set<String> getTargets(Addin addin) throws IOException, AddinFormatException
+  {
+    Set<String> targets = new LinkedHashSet<String>();
+
+    AddinReader addinReader = AddinFactory.getAddinReader(addin.getDiskFile());
+
+    try {
+      for (int pass = 0; pass < PASSES.length; ++pass) {
+        Iterator<String> passEntries = addinReader.getEntriesInDirectory(PASSES[pass], SKIP_FILES);
+        while (passEntries.hasNext()) {
+          targets.add(getDestination(pass, passEntries.next()));
+        }
+      }
+
+      if (hasStringsFile(addin, addinReader)) {
+        targets.add(GAME_TEXT_FILE);
+      }
+    }
+    finally {
+      addinReader.close();
+    }
+
+    if (addin.getType() == Addin.TYPE_LEVEL && !addin.getLevels().isEmpty()) {
+      targets.add(GAME_TEXT_FILE);
+      targets.add(GAME_ISLAND_FILE);
+      targets.add(GAME_ISLAND_SCENE_FILE);
+    }
+
+    return targets;
+  }
+
+  private static boolean hasStringsFile(Addin addin, AddinReader addinReader)
+  {
+    return addin.getManifestVersion().compareTo(AddinFactory.SPEC_VERSION_1_1) >= 0 && addinReader.fileExists(STRINGS_FILE);
+  }
+
+  private static boolean isTarget(Set<String> targets, String path)
+  {
+    return targets == null || targets.contains(path);
+  }
+
+  /**
+   * Works out which game file an entry in one of the pass directories is written to.
+   */
+  private static String getDestination(int pass, String fileName) throws AddinFormatException
   {
-    for (int pass = 0; pass < PASSES.length; ++pass) {
+    if (pass == PASS_OVERRIDE) {
+      // Mac PNG files are "compiled" to .png.binltl when they are overridden
+      if (fileName.endsWith(EXTENSION_PNG) && PlatformSupport.getPlatform() == PlatformSupport.Platform.MACOSX) {
+        return fileName + EXTENSION_BINLTL;
+      }
+      return fileName;
+    }
+    else if (pass == PASS_MERGE) {
+      if (!fileName.endsWith(EXTENSION_XSL)) throw new AddinFormatException("Addin has a non-XSLT file in the merge directory: " + fileName);
+      return fileName.substring(0, fileName.length() - 4) + EXTENSION_BIN;
+    }
+    else {
+      if (fileName.endsWith(EXTENSION_ANIM_XML) || fileName.endsWith(EXTENSION_MOVIE_XML)) {
+        return fileName.substring(0, fileName.length() - 4) + EXTENSION_BINLTL;
+      }
+      else if (fileName.endsWith(EXTENSION_XML)) {
+        return fileName.substring(0, fileName.length() - 4) + EXTENSION_BIN;
+      }
+      throw new AddinFormatException("Addin has an uncompilable file in the compile directory: " + fileName);
+    }
+  }
+
+  private static void doPasses(Addin addin, AddinReader addinReader, MergeSession session, Set<String> targets) throws IOException, AddinFormatException
+  {
+    // The override pass is done separately by installOverrides()
+    for (int pass = PASS_MERGE; pass < PASSES.length; ++pass) {
       String passPrefix = PASSES[pass];
       log.log(Level.FINER, "Pass " + pass + " (looking in " + passPrefix + ")");
 
@@ -96,10 +334,14 @@ public class AddinInstaller
       while (passEntries.hasNext()) {
         String fileName = passEntries.next();
 
+        if (targets != null && !targets.contains(getDestination(pass, fileName))) {
+          continue;
+        }
+
         InputStream is = addinReader.getInputStream(passPrefix + fileName);
 
         try {
-          doPassOnFile(addin, pass, fileName, is);
+          doPassOnFile(addin, pass, fileName, is, session);
         }
         finally {
           is.close();
@@ -108,11 +350,23 @@ public class AddinInstaller
     }
   }
 
-  private static void doPassOnFile(Addin addin, int pass, String fileName, InputStream is) throws IOException, AddinFormatException
+  private static void doPassOnFile(Addin addin, int pass, String fileName, InputStream is, MergeSession session) throws IOException, AddinFormatException
   {
 //    System.out.println("Doing pass " + pass + " on file " + fileName);
 
-    // Validate that the file extension(s) are lower case (#0000275).
+    checkFileName(fileName);
+
+    if (pass == PASS_MERGE) {
+      processMerge(fileName, is, session);
+    }
+    else if (pass == PASS_COMPILE) {
+      processCompile(addin, fileName, is, session);
+    }
+  }
+
+  // Validate that the file extension(s) are lower case (#0000275).
+  private static void checkFileName(String fileName) throws AddinFormatException
+  {
 
     int lastSlash = fileName.lastIndexOf('/');
     int baseStarts = (lastSlash == -1 ? 0 : lastSlash + 1); // Offset of first character of base filename
@@ -125,17 +379,6 @@ public class AddinInstaller
         throw new AddinFormatException("Upper case file extension found in '" + fileName + "'");
       }
     }
-
-
-    if (pass == PASS_OVERRIDE) {
-      processOverride(fileName, is);
-    }
-    else if (pass == PASS_MERGE) {
-      processMerge(fileName, is);
-    }
-    else if (pass == PASS_COMPILE) {
-      processCompile(addin, fileName, is);
-    }
   }
 
   private static void checkDirOk(String fileName) throws AddinFormatException
@@ -153,149 +396,197 @@ public class AddinInstaller
     }
   }
 
+  /*
+   * Writes one override. The file name has already been checked by installOverrides(), and the destination directory
+   * created. Called on the override worker threads.
+   */
   private static void processOverride(String fileName, InputStream is) throws IOException, AddinFormatException
   {
     log.log(Level.FINER, "Override " + fileName);
-    checkDirOk(fileName);
 
-    if (fileName.endsWith(EXTENSION_BIN)) {
-      throw new AddinFormatException("Bin files are not allowed in the override directory");
-    }
-    else if (fileName.endsWith(EXTENSION_PNG) && PlatformSupport.getPlatform() == PlatformSupport.Platform.MACOSX) {
-      // Mac PNG files need to be "compiled"
-      File destFile = WorldOfGoo.getTheInstance().getCustomGameFile(fileName + ".binltl");
-      Utilities.mkdirsOrException(destFile.getParentFile());
+    File destFile = WorldOfGoo.getTheInstance().getCustomGameFile(getDestination(PASS_OVERRIDE, fileName));
 
+    if (fileName.endsWith(EXTENSION_PNG) && PlatformSupport.getPlatform() == PlatformSupport.Platform.MACOSX) {
+      // Mac PNG files need to be "compiled"
       Image image = ImageIO.read(is);
+      if (image == null) throw new AddinFormatException("Addin has an unreadable image: " + fileName);
       MacGraphicFormat.encodeImage(destFile, image);
     }
     else {
-      File destFile = WorldOfGoo.getTheInstance().getCustomGameFile(fileName);
-      Utilities.mkdirsOrException(destFile.getParentFile());
-
-      OutputStream os = new FileOutputStream(destFile);
+      OutputStream os = Utilities.createFileOutputStream(destFile);
       try {
-        Utilities.copyStreams(is, os);
+        Utilities.copyStreams(is, os, COPY_BUFFER_SIZE);
       }
       finally {
         os.close();
       }
 
       if (fileName.endsWith(EXTENSION_PNG)) {
-        // Force the image to be read, so Windows users can detect images that Java can't read and prevent
+        // Check the image can be read, so Windows users can detect images that Java can't read and prevent
         // problems on Mac
-        ImageIO.read(destFile);
+        checkImageHeader(destFile, fileName);
+      }
+    }
+  }
+
+  /*
+   * Checks that Java has a reader for the image, and that it can read the image's dimensions. Only the header is read,
+   * not the image data.
+   */
+  private static void checkImageHeader(File file, String fileName) throws IOException, AddinFormatException
+  {
+    ImageInputStream iis = ImageIO.createImageInputStream(file);
+    if (iis == null) throw new IOException("Unable to open " + file);
+
+    try {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+      if (!readers.hasNext()) throw new AddinFormatException("Addin has an unreadable image: " + fileName);
+
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(iis, true, true);
+        if (reader.getWidth(0) <= 0 || reader.getHeight(0) <= 0) {
+          throw new AddinFormatException("Addin has an image with no size: " + fileName);
+        }
+      }
+      finally {
+        reader.dispose();
       }
     }
+    finally {
+      iis.close();
+    }
   }
 
-  private static void processMerge(String fileName, InputStream is) throws IOException, AddinFormatException
+  private static void processMerge(String fileName, InputStream is, MergeSession session) throws IOException, AddinFormatException
   {
     log.log(Level.FINER, "Merge " + fileName);
     checkDirOk(fileName);
 
-    if (!fileName.endsWith(EXTENSION_XSL)) throw new AddinFormatException("Addin has a non-XSLT file in the merge directory: " + fileName);
-
-    File mergeFile = WorldOfGoo.getTheInstance().getCustomGameFile(fileName.substring(0, fileName.length() - 4) + EXTENSION_BIN);
+    File mergeFile = WorldOfGoo.getTheInstance().getCustomGameFile(getDestination(PASS_MERGE, fileName));
 
-    if (!mergeFile.exists()) throw new AddinFormatException("Addin tries to merge a nonexistent file: " + fileName);
+    if (!session.exists(mergeFile)) throw new AddinFormatException("Addin tries to merge a nonexistent file: " + fileName);
 
     try {
-      Merger merger = new Merger(mergeFile, new UnicodeReader(is, GameFormat.DEFAULT_CHARSET));
-      merger.merge();
-      merger.writeEncoded(mergeFile);
+      Merger merger = new Merger(new StringReader(session.getText(mergeFile)), new UnicodeReader(is, GameFormat.DEFAULT_CHARSET));
+      session.setText(mergeFile, merger.merge());
     }
     catch (TransformerException e) {
       throw new AddinFormatException("Error transforming " + fileName + ":\n" + e.getMessage(), e);
     }
   }
 
-  private static void processCompile(Addin addin, String fileName, InputStream is) throws IOException, AddinFormatException
+  private static void processCompile(Addin addin, String fileName, InputStream is, MergeSession session) throws IOException, AddinFormatException
   {
     log.log(Level.FINER, "Compile " + fileName);
     checkDirOk(fileName);
 
-    if (fileName.endsWith(".anim.xml")) {
-      //if addin.getManifestVersion().compareTo(AddinFactory.SPEC_VERSION_1_2) >= 0) {
-      //else
-      throw new AddinFormatException("Animations are not supported in this spec-version");
+    if (fileName.endsWith(EXTENSION_ANIM_XML)) {
+      if (addin.getManifestVersion().compareTo(AddinFactory.SPEC_VERSION_1_2) < 0) {
+        throw new AddinFormatException("Animations are not supported in spec-version " + addin.getManifestVersion() + ", use " + AddinFactory.SPEC_VERSION_1_2);
+      }
+
+      byte[] compiled;
+      try {
+        compiled = new BinImageAnimation(XMLUtil.loadDocumentFromInputStream(is).getDocumentElement()).toBinary();
+      }
+      catch (IOException e) {
+        throw new AddinFormatException("Addin has an invalid animation " + fileName + ": " + e.getLocalizedMessage(), e);
+      }
+
+      File destFile = WorldOfGoo.getTheInstance().getCustomGameFile(getDestination(PASS_COMPILE, fileName));
+      Utilities.mkdirsOrException(destFile.getParentFile());
+      Utilities.writeFile(destFile, compiled);
     }
-    else if (fileName.endsWith(".movie.xml")) {
-      //if addin.getManifestVersion().compareTo(AddinFactory.SPEC_VERSION_1_2) >= 0) {
-      //else
-      throw new AddinFormatException("Movies are not supported in this spec-version");
+    else if (fileName.endsWith(EXTENSION_MOVIE_XML)) {
+      if (addin.getManifestVersion().compareTo(AddinFactory.SPEC_VERSION_1_2) < 0) {
+        throw new AddinFormatException("Movies are not supported in spec-version " + addin.getManifestVersion() + ", use " + AddinFactory.SPEC_VERSION_1_2);
+      }
+
+      byte[] compiled;
+      try {
+        compiled = new BinMovie(XMLUtil.loadDocumentFromInputStream(is)).toBinary();
+      }
+      catch (IOException e) {
+        throw new AddinFormatException("Addin has an invalid movie " + fileName + ": " + e.getLocalizedMessage(), e);
+      }
+
+      File destFile = WorldOfGoo.getTheInstance().getCustomGameFile(getDestination(PASS_COMPILE, fileName));
+      Utilities.mkdirsOrException(destFile.getParentFile());
+      Utilities.writeFile(destFile, compiled);
     }
     else if (fileName.endsWith(EXTENSION_XML)) {
-      File destFile = WorldOfGoo.getTheInstance().getCustomGameFile(fileName.substring(0, fileName.length() - 4) + EXTENSION_BIN);
-      Utilities.mkdirsOrException(destFile.getParentFile());
+      File destFile = WorldOfGoo.getTheInstance().getCustomGameFile(getDestination(PASS_COMPILE, fileName));
 
-      String xml = Utilities.readStreamIntoString(is);
-      GameFormat.encodeBinFile(destFile, xml.getBytes(GameFormat.DEFAULT_CHARSET));
+      session.setText(destFile, Utilities.readStreamIntoString(is));
     }
     else {
       throw new AddinFormatException("Addin has an uncompilable file in the compile directory: " + fileName);
     }
   }
 
-  private static void installLevel(AddinLevel level) throws IOException, AddinFormatException
+  private static void installLevel(AddinLevel level, MergeSession session, Set<String> targets) throws IOException, AddinFormatException
   {
     String levelNameId = "LEVEL_NAME_" + level.getDir().toUpperCase();
     String levelTextId = "LEVEL_TEXT_" + level.getDir().toUpperCase();
 
     /* First add our two level strings to text.xml */
 
-    File textFile = WorldOfGoo.getTheInstance().getCustomGameFile("game/properties/text.xml.bin");
-    try {
-      Merger merger = new Merger(textFile, new InputStreamReader(AddinInstaller.class.getResourceAsStream("/level-text.xsl"), "UTF-8"));
-      merger.setTransformParameter("level_name_string", makeString(levelNameId, level.getNames()));
-      merger.setTransformParameter("level_text_string", makeString(levelTextId, level.getSubtitles()));
-      merger.merge();
-//      System.out.println("s = " + s);
-      merger.writeEncoded(textFile);
-    }
-    catch (TransformerException e) {
-      throw new AddinFormatException("Unable to merge level text", e);
+    if (isTarget(targets, GAME_TEXT_FILE)) {
+      File textFile = WorldOfGoo.getTheInstance().getCustomGameFile(GAME_TEXT_FILE);
+      try {
+        Merger merger = new Merger(new StringReader(session.getText(textFile)), TemplatesCache.getResourceTemplates("/level-text.xsl"));
+        merger.setTransformParameter("level_name_string", makeString(levelNameId, level.getNames()));
+        merger.setTransformParameter("level_text_string", makeString(levelTextId, level.getSubtitles()));
+//        System.out.println("s = " + s);
+        session.setText(textFile, merger.merge());
+      }
+      catch (TransformerException e) {
+        throw new AddinFormatException("Unable to merge level text", e);
+      }
     }
 
     /* Now add ourselves into the island.xml */
 
-    File islandFile = WorldOfGoo.getTheInstance().getCustomGameFile("game/res/islands/island1.xml.bin");
-    try {
-      Merger merger = new Merger(islandFile, new InputStreamReader(AddinInstaller.class.getResourceAsStream("/level-island.xsl"), "UTF-8"));
+    if (isTarget(targets, GAME_ISLAND_FILE)) {
+      File islandFile = WorldOfGoo.getTheInstance().getCustomGameFile(GAME_ISLAND_FILE);
+      try {
+        Merger merger = new Merger(new StringReader(session.getText(islandFile)), TemplatesCache.getResourceTemplates("/level-island.xsl"));
 
-      merger.setTransformParameter("level_id", level.getDir());
-      merger.setTransformParameter("level_name_id", levelNameId);
-      merger.setTransformParameter("level_text_id", levelTextId);
-      if (level.getOcd() != null) {
-        merger.setTransformParameter("level_ocd", level.getOcd());
-      }
-      if (level.getCutscene() != null) {
-        merger.setTransformParameter("level_cutscene", level.getCutscene());
+        merger.setTransformParameter("level_id", level.getDir());
+        merger.setTransformParameter("level_name_id", levelNameId);
+        merger.setTransformParameter("level_text_id", levelTextId);
+        if (level.getOcd() != null) {
+          merger.setTransformParameter("level_ocd", level.getOcd());
+        }
+        if (level.getCutscene() != null) {
+          merger.setTransformParameter("level_cutscene", level.getCutscene());
+        }
+        if (level.isSkipEolSequence()) {
+          merger.setTransformParameter("level_skipeolsequence", true);
+        }
+        session.setText(islandFile, merger.merge());
       }
-      if (level.isSkipEolSequence()) {
-        merger.setTransformParameter("level_skipeolsequence", true);
+      catch (TransformerException e) {
+        throw new AddinFormatException("Unable to merge level island", e);
       }
-      merger.merge();
-      merger.writeEncoded(islandFile);
-    }
-    catch (TransformerException e) {
-      throw new AddinFormatException("Unable to merge level island", e);
     }
 
     /* Now add our buttons to island1.scene.xml */
-    File islandSceneFile = WorldOfGoo.getTheInstance().getCustomGameFile("game/res/levels/island1/island1.scene.bin");
-    try {
-      Merger merger = new Merger(islandSceneFile, new InputStreamReader(AddinInstaller.class.getResourceAsStream("/level-island-scene.xsl"), "UTF-8"));
+    if (isTarget(targets, GAME_ISLAND_SCENE_FILE)) {
+      File islandSceneFile = WorldOfGoo.getTheInstance().getCustomGameFile(GAME_ISLAND_SCENE_FILE);
+      try {
+        Merger merger = new Merger(new StringReader(session.getText(islandSceneFile)), TemplatesCache.getResourceTemplates("/level-island-scene.xsl"));
 
-      merger.setTransformParameter("level_id", level.getDir());
-      merger.setTransformParameter("level_name_id", levelNameId);
-      merger.merge();
-//      System.out.println("s = " + s);
-      merger.writeEncoded(islandSceneFile);
+        merger.setTransformParameter("level_id", level.getDir());
+        merger.setTransformParameter("level_name_id", levelNameId);
+//        System.out.println("s = " + s);
+        session.setText(islandSceneFile, merger.merge());
 //		<button id="lb_GoingUp" depth="8" x="-520" y="278" scalex="1" scaley="1" rotation="0" alpha="1" colorize="255,255,255"   up="IMAGE_SCENE_ISLAND1_LEVELMARKERA_UP" over="IMAGE_SCENE_ISLAND1_LEVELMARKERA_OVER" onclick="pl_GoingUp" onmouseenter="ss_GoingUp" onmouseexit="hs_GoingUp" />
-    }
-    catch (TransformerException e) {
-      throw new AddinFormatException("Unable to merge level island scene", e);
+      }
+      catch (TransformerException e) {
+        throw new AddinFormatException("Unable to merge level island scene", e);
+      }
     }
   }
 
@@ -320,11 +611,12 @@ public class AddinInstaller
     }
   }
 
-  private static void doStringsFile(Addin addin, InputStream inputStream) throws IOException, AddinFormatException
+  private static void doStringsFile(Addin addin, InputStream inputStream, MergeSession session) throws IOException, AddinFormatException
   {
     // Load game text.xml
-    File gameTextFile = WorldOfGoo.getTheInstance().getCustomGameFile("game/properties/text.xml.bin");
-    Document gameStringsDoc = XMLUtil.loadDocumentFromInputStream(new ByteArrayInputStream(GameFormat.decodeBinFile(gameTextFile)));
+    File gameTextFile = WorldOfGoo.getTheInstance().getCustomGameFile(GAME_TEXT_FILE);
+    StringTable gameStrings = session.getStringTable(gameTextFile);
+    Document gameStringsDoc = gameStrings.getDocument();
 
     gameStringsDoc.getDocumentElement().appendChild(gameStringsDoc.createTextNode("\n"));
     gameStringsDoc.getDocumentElement().appendChild(gameStringsDoc.createComment("Strings added by GooTool from " + addin.getId()));
@@ -345,10 +637,10 @@ public class AddinInstaller
       String stringId = XMLUtil.getAttributeStringRequired(addinString, "id");
 
 
-      Element gameString = XMLUtil.findElementByAttributeValue(gameStringsDoc.getDocumentElement(), "string", "id", stringId, false);
+      Element gameString = gameStrings.getString(stringId);
       if (gameString == null) {
         // New string, just clone it across
-        gameStringsDoc.getDocumentElement().appendChild(gameStringsDoc.importNode(addinString, false));
+        gameStrings.addString(addinString);
         gameStringsDoc.getDocumentElement().appendChild(gameStringsDoc.createTextNode("\n"));
       }
       else {
@@ -365,12 +657,42 @@ public class AddinInstaller
         }
       }
     }
+  }
 
-    try {
-      GameFormat.encodeBinFile(gameTextFile, EncodingUtil.stringToBytesUtf8(XMLUtil.writeDocumentToString(gameStringsDoc)));
+  /**
+   * Copies one override file from an addin. Several of these run at once, sharing each addin's reader.
+   */
+  private static class OverrideJob implements Callable<Void>
+  {
+    private final Addin addin;
+    private final AddinReader addinReader;
+    private final String fileName;
+
+    private OverrideJob(Addin addin, AddinReader addinReader, String fileName)
+    {
+      this.addin = addin;
+      this.addinReader = addinReader;
+      this.fileName = fileName;
     }
-    catch (TransformerException e) {
-      throw new IOException("Unable to write text.xml: " + e.getLocalizedMessage());
+
+    public Void call() throws IOException, AddinFormatException
+    {
+      try {
+        InputStream is = addinReader.getInputStream(GOOMOD_DIR_OVERRIDE + fileName);
+        try {
+          processOverride(fileName, is);
+        }
+        finally {
+          is.close();
+        }
+      }
+      catch (IOException e) {
+        throw new IOException("Unable to override " + fileName + " from " + addin.getName() + ": " + e.getLocalizedMessage(), e);
+      }
+      catch (AddinFormatException e) {
+        throw new AddinFormatException("Unable to override " + fileName + " from " + addin.getName() + ": " + e.getMessage(), e);
+      }
+      return null;
     }
   }
 
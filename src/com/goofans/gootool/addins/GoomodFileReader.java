@@ -23,6 +23,9 @@ public class GoomodFileReader implements AddinReader
 {
   private final ZipFile zipFile;
 
+  private SortedSet<String> index;
+  private List<String> indexSkip;
+
   public GoomodFileReader(File goomodFile) throws IOException
   {
     zipFile = new ZipFile(goomodFile);
@@ -45,68 +48,65 @@ public class GoomodFileReader implements AddinReader
     return zipEntry != null;
   }
 
-  public Iterator<String> getEntriesInDirectory(final String directory, final List<String> skip)
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * The zip's entries are only read and filtered once, into a sorted index. Each directory lookup after that is a range
+   * query on the index, and the files are returned in name order.
+   */
+  public Iterator<String> getEntriesInDirectory(final String directory, List<String> skip)
   {
-    final Enumeration<? extends ZipEntry> zipEnumeration = zipFile.entries();
+    final Iterator<String> names = getIndex(skip).subSet(directory, directory + Character.MAX_VALUE).iterator();
 
     return new Iterator<String>()
     {
-      ZipEntry nextEntry = null;
-
       public boolean hasNext()
       {
-        while (nextEntry != null || zipEnumeration.hasMoreElements()) {
-          peekNext();
-          if (isNextValid()) {
-            return true;
-          }
-          nextEntry = null; // discard it, it's not valid
-        }
-        return false;
+        return names.hasNext();
       }
 
       public String next()
       {
-        // by calling hasNext, we ensure nextEntry is set, and that is a valid entry.
-        if (!hasNext()) {
-          throw new NoSuchElementException();
-        }
-
-        String retval = nextEntry.getName().substring(directory.length());
-        nextEntry = null;
-        return retval;
+        return names.next().substring(directory.length());
       }
 
-      // This function reads the next entry from the source enumeration if we haven't already read it.
-      // Caller ensures the source enumeration is not empty.
-      private void peekNext()
+      public void remove()
       {
-        if (nextEntry == null)
-          nextEntry = zipEnumeration.nextElement();
+        throw new UnsupportedOperationException();
       }
+    };
+  }
 
-      // This function returns whether we want to return the nextEntry from this enumeration.
-      // True if is a file (not a directory), and no path component is on the skip list.
-      // Caller ensures nextEntry is already set.
-      private boolean isNextValid()
-      {
-        if (nextEntry.isDirectory()) return false;
-
-        StringTokenizer tok = new StringTokenizer(nextEntry.getName(), "/");
-        while (tok.hasMoreTokens()) {
-          if (skip.contains(tok.nextToken())) {
-            return false;
-          }
+  /*
+   * Returns the names of all files (not directories) in the zip that have no path component on the skip list. The index
+   * is built on first use, and rebuilt only if a different skip list is given.
+   */
+  private SortedSet<String> getIndex(List<String> skip)
+  {
+    if (index == null || !skip.equals(indexSkip)) {
+      index = new TreeSet<String>();
+      indexSkip = new ArrayList<String>(skip);
+
+      Enumeration<? extends ZipEntry> zipEnumeration = zipFile.entries();
+      while (zipEnumeration.hasMoreElements()) {
+        ZipEntry entry = zipEnumeration.nextElement();
+        if (!entry.isDirectory() && !isSkipped(entry.getName(), skip)) {
+          index.add(entry.getName());
         }
-
-        return nextEntry.getName().startsWith(directory);
       }
+    }
+    return index;
+  }
 
-      public void remove()
-      {
-        throw new UnsupportedOperationException();
+  private static boolean isSkipped(String name, List<String> skip)
+  {
+    StringTokenizer tok = new StringTokenizer(name, "/");
+    while (tok.hasMoreTokens()) {
+      if (skip.contains(tok.nextToken())) {
+        return true;
       }
-    };
+    }
+    return false;
   }
 
   public void close() throws IOException
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.addins;
+
+import net.infotrek.util.EncodingUtil;
+
+import javax.xml.transform.TransformerException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.goofans.gootool.io.GameFormat;
+import com.goofans.gootool.io.UnicodeReader;
+import com.goofans.gootool.util.Utilities;
+import com.goofans.gootool.util.XMLUtil;
+import org.w3c.dom.Document;
+
+/**
+ * Holds the game's .bin files decoded in memory while a set of addins is installed.
+ * <p/>
+ * Each file is decoded the first time an addin touches it, then every merge, level install and strings file works on
+ * the in-memory copy. Nothing is written back until {@link #write()}, so each file is encoded and written exactly once
+ * no matter how many addins modify it.
+ * <p/>
+ * A file is held either as XML text (for XSL merges) or as a DOM document (for direct edits such as strings files),
+ * and is only converted between the two when the next user needs the other form. A text file's {@link StringTable} is
+ * kept along with its document, so consecutive strings files only index it once.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+public class MergeSession
+{
+  private static final Logger log = Logger.getLogger(MergeSession.class.getName());
+
+  private final Map<File, Entry> entries = new LinkedHashMap<File, Entry>();
+
+  /**
+   * Returns whether the file exists, either on disk or because it has been created in this session.
+   *
+   * @param file The .bin file in the custom directory.
+   * @return true if the file exists.
+   */
+  public boolean exists(File file)
+  {
+    return entries.containsKey(file) || file.exists();
+  }
+
+  /**
+   * Returns the decoded XML text of the file.
+   *
+   * @param file The .bin file in the custom directory.
+   * @return The XML text, including any changes made in this session.
+   * @throws IOException if the file couldn't be decoded.
+   */
+  public String getText(File file) throws IOException
+  {
+    Entry entry = getEntry(file);
+
+    if (entry.text == null) {
+      try {
+        entry.text = XMLUtil.writeDocumentToString(entry.document);
+      }
+      catch (TransformerException e) {
+        throw new IOException("Unable to write " + file.getName() + ": " + e.getLocalizedMessage());
+      }
+      entry.document = null;
+      entry.strings = null;
+    }
+    return entry.text;
+  }
+
+  /**
+   * Replaces the contents of the file with the given XML text.
+   *
+   * @param file The .bin file in the custom directory. It doesn't need to exist yet.
+   * @param text The new XML text.
+   */
+  public void setText(File file, String text)
+  {
+    Entry entry = entries.get(file);
+    if (entry == null) {
+      entry = new Entry();
+      entries.put(file, entry);
+    }
+
+    entry.text = text;
+    entry.document = null;
+    entry.strings = null;
+    entry.modified = true;
+  }
+
+  /**
+   * Returns the file as a DOM document. The document may be modified in place; the changes will be kept.
+   *
+   * @param file The .bin file in the custom directory.
+   * @return The document, including any changes made in this session.
+   * @throws IOException if the file couldn't be decoded or parsed.
+   */
+  public Document getDocument(File file) throws IOException
+  {
+    Entry entry = getEntry(file);
+    loadDocument(entry);
+
+    // The caller is expected to change it, and may add or remove strings behind the string table's back
+    entry.strings = null;
+    entry.modified = true;
+    return entry.document;
+  }
+
+  /**
+   * Returns the strings in a text file, indexed by ID. The index is built the first time it's needed, and kept until the
+   * file is next used in another form. The strings may be modified in place; the changes will be kept.
+   *
+   * @param file The text .bin file in the custom directory.
+   * @return The string table, including any changes made in this session.
+   * @throws IOException if the file couldn't be decoded or parsed.
+   */
+  public StringTable getStringTable(File file) throws IOException
+  {
+    Entry entry = getEntry(file);
+    loadDocument(entry);
+
+    if (entry.strings == null) {
+      entry.strings = new StringTable(entry.document);
+    }
+
+    // The caller is expected to change it
+    entry.modified = true;
+    return entry.strings;
+  }
+
+  private static void loadDocument(Entry entry) throws IOException
+  {
+    if (entry.document == null) {
+      entry.document = XMLUtil.loadDocumentFromInputStream(new ByteArrayInputStream(EncodingUtil.stringToBytesUtf8(entry.text)));
+      entry.text = null;
+    }
+  }
+
+  private Entry getEntry(File file) throws IOException
+  {
+    Entry entry = entries.get(file);
+    if (entry == null) {
+      log.finest("Decoding " + file + " into merge session");
+
+      entry = new Entry();
+      entry.text = Utilities.readReaderIntoString(new UnicodeReader(new ByteArrayInputStream(GameFormat.decodeBinFile(file)), GameFormat.DEFAULT_CHARSET));
+      entries.put(file, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Encodes and writes every file that was changed in this session, then empties the session.
+   *
+   * @return The number of files written.
+   * @throws IOException if a file couldn't be written.
+   */
+  public int write() throws IOException
+  {
+    int written = 0;
+
+    for (Map.Entry<File, Entry> mapEntry : entries.entrySet()) {
+      if (mapEntry.getValue().modified) {
+        File file = mapEntry.getKey();
+        log.finest("Writing " + file + " from merge session");
+
+        Utilities.mkdirsOrException(file.getParentFile());
+        GameFormat.encodeBinFile(file, getText(file).getBytes(GameFormat.DEFAULT_CHARSET));
+        written++;
+      }
+    }
+
+    log.fine(written + " files written from merge session (" + entries.size() + " decoded)");
+    entries.clear();
+    return written;
+  }
+
+  private static class Entry
+  {
+    private String text;
+    private Document document;
+    private StringTable strings;
+    private boolean modified;
+  }
+}
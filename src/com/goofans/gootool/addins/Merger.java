@@ -9,6 +9,7 @@ import com.goofans.gootool.wog.WorldOfGoo;
 import com.goofans.gootool.io.FinalNewlineRemovingReader;
 import com.goofans.gootool.io.GameFormat;
 import com.goofans.gootool.io.UnicodeReader;
+import com.goofans.gootool.util.Utilities;
 
 import javax.xml.transform.*;
 import javax.xml.transform.stream.StreamSource;
@@ -38,18 +39,23 @@ public class Merger
 //    System.out.println(">>"+Utilities.readReaderIntoString(new FinalNewlineRemovingReader(new StringReader(BinFormat.decodeFile(encryptedFile))))+"<<");
   }
 
-  public Merger(Reader input, Reader transform) throws TransformerException
+  public Merger(Reader input, Reader transform) throws IOException, TransformerException
+  {
+    this(input, TemplatesCache.getTemplates(Utilities.readReaderIntoString(transform)));
+  }
+
+  /**
+   * Creates a merger using an already-compiled stylesheet, e.g. one from {@link TemplatesCache}.
+   *
+   * @param input     The document to transform.
+   * @param templates The compiled stylesheet.
+   * @throws TransformerException if a transformer couldn't be created from the stylesheet.
+   */
+  public Merger(Reader input, Templates templates) throws TransformerException
   {
 //    System.out.println("input = " + input);
     this.input = input;
-
-    Source transformSource = new StreamSource(new FinalNewlineRemovingReader(transform));
-    try {
-      transformer = TransformerFactory.newInstance().newTransformer(transformSource);
-    }
-    catch (TransformerFactoryConfigurationError e) {
-      throw new TransformerException(e.getMessage(), e);
-    }
+    transformer = templates.newTransformer();
   }
 
   public void setTransformParameter(String name, Object value)
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.addins;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * An index by ID of the strings in a game text file (text.xml).
+ * <p/>
+ * The document is walked once to build the index. After that, finding a string or adding a new one takes constant time,
+ * rather than a search of every string in the document. The strings themselves stay in the document, so it is written
+ * out in the same order as it would be without the index.
+ * <p/>
+ * IDs are matched regardless of case, as {@link com.goofans.gootool.util.XMLUtil#findElementByAttributeValue} does. If
+ * the document holds more than one string with the same ID, the first is used.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+public class StringTable
+{
+  private static final String ELEMENT_STRING = "string";
+  private static final String ATTRIBUTE_ID = "id";
+
+  private final Document document;
+  private final Map<String, Element> strings = new HashMap<String, Element>();
+
+  /**
+   * Indexes the strings in a text document.
+   *
+   * @param document The document, whose root element holds the strings.
+   */
+  public StringTable(Document document)
+  {
+    this.document = document;
+
+    NodeList elements = document.getDocumentElement().getElementsByTagName(ELEMENT_STRING);
+    for (int i = 0; i < elements.getLength(); ++i) {
+      Element element = (Element) elements.item(i);
+      Attr id = element.getAttributeNode(ATTRIBUTE_ID);
+      if (id != null) {
+        String key = toKey(id.getValue());
+        if (!strings.containsKey(key)) {
+          strings.put(key, element);
+        }
+      }
+    }
+  }
+
+  private static String toKey(String id)
+  {
+    return id.toLowerCase(Locale.ENGLISH);
+  }
+
+  /**
+   * Returns the document holding the strings. Strings must only be added to it through {@link #addString(Element)}.
+   *
+   * @return The document.
+   */
+  public Document getDocument()
+  {
+    return document;
+  }
+
+  /**
+   * Finds a string by its ID.
+   *
+   * @param id The ID of the string.
+   * @return The string element, which may be modified in place, or null if there is no string with this ID.
+   */
+  public Element getString(String id)
+  {
+    return strings.get(toKey(id));
+  }
+
+  /**
+   * Adds a copy of a string to the end of the document. If there is already a string with the same ID, the copy is
+   * still added, but the existing string is the one that will be found.
+   *
+   * @param string The string element, which may come from another document. Only its attributes are copied.
+   * @return The new string element.
+   */
+  public Element addString(Element string)
+  {
+    Element copy = (Element) document.importNode(string, false);
+    document.getDocumentElement().appendChild(copy);
+
+    Attr id = copy.getAttributeNode(ATTRIBUTE_ID);
+    if (id != null) {
+      String key = toKey(id.getValue());
+      if (!strings.containsKey(key)) {
+        strings.put(key, copy);
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * Returns the number of distinct string IDs.
+   *
+   * @return The number of strings that can be found.
+   */
+  public int size()
+  {
+    return strings.size();
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.addins;
+
+import net.infotrek.util.EncodingUtil;
+
+import javax.xml.transform.*;
+import javax.xml.transform.stream.StreamSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.goofans.gootool.io.FinalNewlineRemovingReader;
+import com.goofans.gootool.util.Utilities;
+
+/**
+ * Caches compiled XSL stylesheets, so that each stylesheet is only compiled once no matter how many merges use it.
+ * <p/>
+ * Stylesheets bundled with GooTool are keyed by their resource name, and kept for as long as GooTool runs. Stylesheets
+ * from addins are keyed by a digest of their content, so two addins shipping an identical merge file share a single
+ * compiled copy. These are only kept until {@link #clear()} is called at the end of each build, so that old versions of
+ * addins don't stay in memory.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+public class TemplatesCache
+{
+  private static final Logger log = Logger.getLogger(TemplatesCache.class.getName());
+
+  private static final Map<String, Templates> resourceCache = new HashMap<String, Templates>();
+  private static final Map<String, Templates> cache = new HashMap<String, Templates>();
+  private static TransformerFactory factory;
+
+  private static int hits;
+  private static int misses;
+
+  private TemplatesCache()
+  {
+  }
+
+  /**
+   * Returns the compiled form of a stylesheet bundled in GooTool's resources.
+   *
+   * @param resourceName The name of the resource, e.g. "/level-text.xsl".
+   * @return The compiled stylesheet.
+   * @throws IOException          if the resource doesn't exist or couldn't be read.
+   * @throws TransformerException if the stylesheet couldn't be compiled.
+   */
+  public static synchronized Templates getResourceTemplates(String resourceName) throws IOException, TransformerException
+  {
+    Templates templates = resourceCache.get(resourceName);
+    if (templates != null) {
+      hits++;
+      return templates;
+    }
+
+    InputStream is = TemplatesCache.class.getResourceAsStream(resourceName);
+    if (is == null) throw new IOException("Stylesheet " + resourceName + " not found");
+
+    String stylesheet;
+    try {
+      stylesheet = Utilities.readReaderIntoString(new InputStreamReader(is, "UTF-8"));
+    }
+    finally {
+      is.close();
+    }
+
+    templates = compile(stylesheet);
+    resourceCache.put(resourceName, templates);
+    return templates;
+  }
+
+  /**
+   * Returns the compiled form of the given stylesheet.
+   *
+   * @param stylesheet The XSL stylesheet.
+   * @return The compiled stylesheet.
+   * @throws TransformerException if the stylesheet couldn't be compiled.
+   */
+  public static synchronized Templates getTemplates(String stylesheet) throws TransformerException
+  {
+    String key = digest(stylesheet);
+
+    Templates templates = cache.get(key);
+    if (templates != null) {
+      hits++;
+      return templates;
+    }
+
+    templates = compile(stylesheet);
+    cache.put(key, templates);
+    return templates;
+  }
+
+  private static Templates compile(String stylesheet) throws TransformerException
+  {
+    misses++;
+
+    try {
+      if (factory == null) {
+        factory = TransformerFactory.newInstance();
+      }
+
+      Source source = new StreamSource(new FinalNewlineRemovingReader(new StringReader(stylesheet)));
+      return factory.newTemplates(source);
+    }
+    catch (TransformerFactoryConfigurationError e) {
+      throw new TransformerException(e.getMessage(), e);
+    }
+  }
+
+  private static String digest(String stylesheet)
+  {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      return new BigInteger(1, md.digest(EncodingUtil.stringToBytesUtf8(stylesheet))).toString(16);
+    }
+    catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-1
+      throw new RuntimeException("SHA-1 not available", e);
+    }
+  }
+
+  /**
+   * Returns the number of times a stylesheet was found already compiled.
+   *
+   * @return The number of cache hits.
+   */
+  public static synchronized int getHits()
+  {
+    return hits;
+  }
+
+  /**
+   * Returns the number of times a stylesheet had to be compiled.
+   *
+   * @return The number of cache misses.
+   */
+  public static synchronized int getMisses()
+  {
+    return misses;
+  }
+
+  /**
+   * Removes the addin stylesheets from the cache and resets the counters. The stylesheets bundled with GooTool are kept.
+   */
+  public static synchronized void clear()
+  {
+    log.fine("Clearing stylesheet cache (" + cache.size() + " addin stylesheets, " + hits + " hits, " + misses + " misses)");
+    cache.clear();
+    hits = 0;
+    misses = 0;
+  }
+}
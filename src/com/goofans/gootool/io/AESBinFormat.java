@@ -10,36 +10,41 @@ import com.goofans.gootool.util.XMLUtil;
 import com.goofans.gootool.wog.WorldOfGoo;
 import org.bouncycastle.crypto.BlockCipher;
 import org.bouncycastle.crypto.BufferedBlockCipher;
-import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.bouncycastle.crypto.engines.AESEngine;
 import org.bouncycastle.crypto.modes.CBCBlockCipher;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.w3c.dom.Document;
 
 import javax.xml.transform.TransformerException;
-import java.io.File;
-import java.io.IOException;
-import java.io.ByteArrayInputStream;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.io.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Encrypt/decrypt .bin files in AES format (Windows/Linux).
+ * <p/>
+ * The actual work is done by {@link AESBinInputStream} and {@link AESBinOutputStream}, which process the file in chunks.
  *
  * @author David Croft (davidc@goofans.com)
  * @version $Id$
  */
 public class AESBinFormat
 {
-  private static final Logger log = Logger.getLogger(AESBinFormat.class.getName());
-
   @SuppressWarnings({"MagicNumber"})
   private static final byte[] KEY = {0x0D, 0x06, 0x07, 0x07, 0x0C, 0x01, 0x08, 0x05,
           0x06, 0x09, 0x09, 0x04, 0x06, 0x0D, 0x03, 0x0F,
           0x03, 0x06, 0x0E, 0x01, 0x0E, 0x02, 0x07, 0x0B};
 
 //  private static final String CHARSET = "UTF-8";
-  private static final byte EOF_MARKER = (byte) 0xFD;
+  static final byte EOF_MARKER = (byte) 0xFD;
+
+  static final int BLOCK_SIZE = 16;
+  /* Amount of data encrypted or decrypted in one go by the streams. Must be a multiple of BLOCK_SIZE. */
+  static final int CHUNK_SIZE = 8192;
+
+  /* Ciphers are reused between files, since the key never changes. Ciphers are not thread-safe so each is only lent to one stream at a time. */
+  private static final Queue<BufferedBlockCipher> DECRYPTION_CIPHERS = new ConcurrentLinkedQueue<BufferedBlockCipher>();
+  private static final Queue<BufferedBlockCipher> ENCRYPTION_CIPHERS = new ConcurrentLinkedQueue<BufferedBlockCipher>();
 
 
   /* If TESTMODE is true, decode() will store the original file, so encode() can verify it later */
@@ -54,8 +59,34 @@ public class AESBinFormat
 
   public static byte[] decodeFile(File file) throws IOException
   {
-    byte[] inputBytes = Utilities.readFile(file);
-    return decode(inputBytes);
+    /* The decrypted file is never longer than the encrypted one, so read straight into a buffer of that size */
+    int fileSize = (int) file.length();
+    InputStream is = new AESBinInputStream(new FileInputStream(file));
+
+    byte[] outputBytes = new byte[fileSize];
+    int outputLen = 0;
+
+    try {
+      int numRead;
+      while (outputLen < fileSize && (numRead = is.read(outputBytes, outputLen, fileSize - outputLen)) != -1) {
+        outputLen += numRead;
+      }
+    }
+    finally {
+      is.close();
+    }
+
+    if (TESTMODE) {
+      TESTMODE_ORIGINAL = Utilities.readFile(file);
+      TESTMODE_DECODING_STRING_SIZE = outputLen;
+    }
+
+    if (outputLen == fileSize) return outputBytes;
+
+//    return Arrays.copyOf(outputBytes, outputLen);
+    byte[] finalBytes = new byte[outputLen];
+    System.arraycopy(outputBytes, 0, finalBytes, 0, outputLen);
+    return finalBytes;
   }
 
   // Java Crypto API - can't use because user will have to install 192-bit policy file.
@@ -70,119 +101,46 @@ public class AESBinFormat
 //    aesDecrypt.InvCipher(bytes, decrypted);
 //
 
-
-  private static byte[] decode(byte[] inputBytes) throws IOException
+  /**
+   * Opens a stream that decrypts the given file as it is read.
+   *
+   * @param file The .bin file to read.
+   * @return A stream of the decrypted contents, without the end-of-file padding.
+   * @throws IOException if the file could not be opened.
+   */
+  public static InputStream openDecodingStream(File file) throws IOException
   {
-    int inputSize = inputBytes.length;
-
-    BufferedBlockCipher cipher = getCipher(false);
-
-    byte[] outputBytes = new byte[cipher.getOutputSize(inputSize)];
-
-    int outputLen = cipher.processBytes(inputBytes, 0, inputSize, outputBytes, 0);
-
-    try {
-      outputLen += cipher.doFinal(outputBytes, outputLen);
-    }
-    catch (InvalidCipherTextException e) {
-      log.log(Level.SEVERE, "Can't decrypt file", e);
-      throw new IOException("Can't decrypt file: " + e.getLocalizedMessage());
-    }
-
-    /* End before any 0xFD cruft at the end of the file */
-    /* TODO this could be more efficient by just looping over the last XX bytes of the file */
-    for (int i = 0; i < outputLen; ++i) {
-      byte b = outputBytes[i];
-      if (b == EOF_MARKER) {
-        log.finer("Skipped " + (outputLen - i) + " bytes at the end (old size " + outputLen + ", new size " + i + ")");
-        StringBuilder sb = new StringBuilder("[");
-        for (int j = i; j < outputLen; ++j) {
-          sb.append(' ').append(byteToHex(outputBytes[j]));
-        }
-        sb.append(" ]");
-        log.finer("Skipped bytes: " + sb);
-        outputLen = i;
-        break;
-      }
-    }
-
-    int start = 0;
-
-    // UTF-8 Byte Order Mark
-//    if (outputBytes[0] == (byte) 0xEF && outputBytes[1] == (byte) 0xBB && outputBytes[2] == (byte) 0xBF) {
-//      start = 3;
-//      log.finer("Skipping first 3 bytes of file, BOM found");
-//    }
-
-    if (TESTMODE) {
-      TESTMODE_ORIGINAL = inputBytes;
-      TESTMODE_DECODING_STRING_SIZE = outputLen - start;
-    }
-
-//    return new String(outputBytes, start, outputLen - start, CHARSET);
-    byte[] finalBytes = new byte[outputLen - start];
-    System.arraycopy(outputBytes, start, finalBytes, 0, outputLen);
-    return finalBytes;
+    return new AESBinInputStream(new BufferedInputStream(new FileInputStream(file), CHUNK_SIZE));
   }
 
-
   public static void encodeFile(File file, byte[] input) throws IOException
   {
-    byte[] bytes = encode(input);
-    Utilities.writeFile(file, bytes);
+    OutputStream os = new AESBinOutputStream(Utilities.createFileOutputStream(file));
+    try {
+      os.write(input);
+    }
+    finally {
+      os.close();
+    }
   }
 
   private static byte[] encode(byte[] inputBytes) throws IOException
   {
-//    byte[] inputBytes = input.getBytes(CHARSET);
-
     if (TESTMODE && inputBytes.length != TESTMODE_DECODING_STRING_SIZE) {
       //noinspection UseOfSystemOutOrSystemErr,HardCodedStringLiteral,HardcodedFileSeparator
       System.err.println("ERROR! DECODING/ENCODING MISMATCH IN STRING SIZE (was " + TESTMODE_DECODING_STRING_SIZE + ", now " + inputBytes.length + ")");
       throw new RuntimeException();
     }
 
-    /* If input was multiple of 16, NO padding. Example: res\levels\BulletinBoardSystem\BulletinBoardSystem.level.bin */
-    /* Otherwise pad to next 16 byte boundary */
-
-    int origSize = inputBytes.length;
-    if (origSize % 16 != 0) {
-      int padding = 16 - origSize % 16;
-
-      int newSize = origSize + padding;
-
-      log.finer("Size " + origSize + " padded with " + padding + " bytes to make " + newSize);
-
-      byte[] newInputBytes = new byte[newSize];
-      System.arraycopy(inputBytes, 0, newInputBytes, 0, origSize);
-      inputBytes = newInputBytes;
-//      inputBytes = Arrays.copyOf(inputBytes, newSize);
-
-      /* Write up to 4 0xFD bytes immediately after the original file. The remainder can stay as the 0x00 provided by Arrays.copyOf. */
-      for (int i = origSize; i < origSize + 4 && i < newSize; ++i) {
-        inputBytes[i] = EOF_MARKER;
-      }
-    }
-    else {
-      log.finer("Size " + origSize + " already multiple of 16, no padding");
-    }
-
-    int inputSize = inputBytes.length;
-
-    BufferedBlockCipher cipher = getCipher(true);
-
-    byte[] outputBytes = new byte[cipher.getOutputSize(inputSize)];
-
-    int outputLen = cipher.processBytes(inputBytes, 0, inputSize, outputBytes, 0);
-
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(inputBytes.length + BLOCK_SIZE);
+    OutputStream os = new AESBinOutputStream(bos);
     try {
-      outputLen += cipher.doFinal(outputBytes, outputLen);
+      os.write(inputBytes);
     }
-    catch (InvalidCipherTextException e) {
-      log.log(Level.SEVERE, "Can't encrypt file", e);
-      throw new IOException("Can't encrypt file: " + e.getLocalizedMessage());
+    finally {
+      os.close();
     }
-
+    byte[] outputBytes = bos.toByteArray();
 
     if (TESTMODE) {
       if (outputBytes.length != TESTMODE_ORIGINAL.length) {
@@ -210,12 +168,31 @@ public class AESBinFormat
       }
     }
 
-//    return Arrays.copyOf(outputBytes, outputLen);
-    byte[] outputBytes2 = new byte[outputLen];
-    System.arraycopy(outputBytes, 0, outputBytes2, 0, outputLen);
-    return outputBytes2;
+    return outputBytes;
   }
 
+  /**
+   * Takes a cipher from the pool, or creates one if none are free. The cipher is reset ready for a new file.
+   * Callers must hand it back with {@link #releaseCipher} once they are finished with it.
+   *
+   * @param forEncryption true for an encrypting cipher, false for a decrypting one.
+   * @return a cipher that is not in use by anyone else.
+   */
+  static BufferedBlockCipher acquireCipher(boolean forEncryption)
+  {
+    BufferedBlockCipher cipher = (forEncryption ? ENCRYPTION_CIPHERS : DECRYPTION_CIPHERS).poll();
+    if (cipher == null) {
+      return getCipher(forEncryption);
+    }
+
+    cipher.reset();
+    return cipher;
+  }
+
+  static void releaseCipher(BufferedBlockCipher cipher, boolean forEncryption)
+  {
+    (forEncryption ? ENCRYPTION_CIPHERS : DECRYPTION_CIPHERS).offer(cipher);
+  }
 
   private static BufferedBlockCipher getCipher(boolean forEncryption)
   {
@@ -271,7 +248,7 @@ public class AESBinFormat
   }
 
   @SuppressWarnings({"HardCodedStringLiteral", "StringConcatenation"})
-  private static String byteToHex(byte b)
+  static String byteToHex(byte b)
   {
     String s = Integer.toHexString(b).toUpperCase();
 
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.io;
+
+import org.bouncycastle.crypto.BufferedBlockCipher;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decrypts an AES .bin file (Windows/Linux) as it is read, a chunk at a time.
+ * <p/>
+ * The last decrypted block is always held back until the end of the underlying stream is reached, since that is the
+ * only block that can contain the 0xFD end-of-file marker and padding. Closing the stream closes the underlying stream.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+public class AESBinInputStream extends InputStream
+{
+  private static final Logger log = Logger.getLogger(AESBinInputStream.class.getName());
+
+  private final InputStream in;
+  private BufferedBlockCipher cipher;
+
+  private final byte[] inBuf = new byte[AESBinFormat.CHUNK_SIZE];
+  private final byte[] outBuf;
+
+  private int outPos;   // Next byte to return
+  private int outLimit; // End of the bytes that can be returned
+  private int outEnd;   // End of the decrypted bytes; anything after outLimit is held back
+  private boolean eof;
+
+  public AESBinInputStream(InputStream in)
+  {
+    this.in = in;
+    cipher = AESBinFormat.acquireCipher(false);
+    outBuf = new byte[cipher.getUpdateOutputSize(AESBinFormat.CHUNK_SIZE) + AESBinFormat.BLOCK_SIZE];
+  }
+
+  @Override
+  public int read() throws IOException
+  {
+    if (outPos >= outLimit && !fill()) return -1;
+    return outBuf[outPos++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    if (len == 0) return 0;
+    if (outPos >= outLimit && !fill()) return -1;
+
+    int n = Math.min(len, outLimit - outPos);
+    System.arraycopy(outBuf, outPos, b, off, n);
+    outPos += n;
+    return n;
+  }
+
+  @Override
+  public int available()
+  {
+    return outLimit - outPos;
+  }
+
+  /**
+   * Decrypts the next chunk of the underlying stream into the output buffer.
+   *
+   * @return true if there are more bytes to return, false at the end of the file.
+   * @throws IOException if the underlying stream couldn't be read or didn't decrypt.
+   */
+  private boolean fill() throws IOException
+  {
+    if (eof) return false;
+    if (cipher == null) throw new IOException("Stream closed");
+
+    /* Move the held-back block to the start of the buffer */
+    int held = outEnd - outLimit;
+    System.arraycopy(outBuf, outLimit, outBuf, 0, held);
+    outPos = 0;
+    outLimit = 0;
+    outEnd = held;
+
+    while (outLimit == 0 && !eof) {
+      int numRead = in.read(inBuf, 0, inBuf.length);
+
+      try {
+        if (numRead == -1) {
+          eof = true;
+          outEnd += cipher.doFinal(outBuf, outEnd);
+          outLimit = findEndOfData();
+        }
+        else {
+          outEnd += cipher.processBytes(inBuf, 0, numRead, outBuf, outEnd);
+          outLimit = Math.max(0, outEnd - AESBinFormat.BLOCK_SIZE);
+        }
+      }
+      catch (InvalidCipherTextException e) {
+        log.log(Level.SEVERE, "Can't decrypt file", e);
+        throw new IOException("Can't decrypt file: " + e.getLocalizedMessage());
+      }
+      catch (DataLengthException e) {
+        log.log(Level.SEVERE, "Can't decrypt file", e);
+        throw new IOException("Can't decrypt file: " + e.getLocalizedMessage());
+      }
+    }
+
+    return outPos < outLimit;
+  }
+
+  /*
+   * End before any 0xFD cruft at the end of the file. The padding is always less than a block, so only the final block
+   * needs to be examined.
+   */
+  private int findEndOfData()
+  {
+    for (int i = Math.max(0, outEnd - AESBinFormat.BLOCK_SIZE); i < outEnd; ++i) {
+      if (outBuf[i] == AESBinFormat.EOF_MARKER) {
+        if (log.isLoggable(Level.FINER)) {
+          log.finer("Skipped " + (outEnd - i) + " bytes at the end");
+          StringBuilder sb = new StringBuilder("[");
+          for (int j = i; j < outEnd; ++j) {
+            sb.append(' ').append(AESBinFormat.byteToHex(outBuf[j]));
+          }
+          sb.append(" ]");
+          log.finer("Skipped bytes: " + sb);
+        }
+        return i;
+      }
+    }
+    return outEnd;
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    if (cipher != null) {
+      AESBinFormat.releaseCipher(cipher, false);
+      cipher = null;
+    }
+    in.close();
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.io;
+
+import org.bouncycastle.crypto.BufferedBlockCipher;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Encrypts an AES .bin file (Windows/Linux) as it is written, a chunk at a time.
+ * <p/>
+ * The file is only complete once the stream is closed, since that is when the final block is padded out with the
+ * 0xFD end-of-file marker. Closing the stream closes the underlying stream.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+public class AESBinOutputStream extends OutputStream
+{
+  private static final Logger log = Logger.getLogger(AESBinOutputStream.class.getName());
+
+  private final OutputStream out;
+  private BufferedBlockCipher cipher;
+
+  private final byte[] outBuf;
+  private final byte[] singleByte = new byte[1];
+  private long count;
+
+  public AESBinOutputStream(OutputStream out)
+  {
+    this.out = out;
+    cipher = AESBinFormat.acquireCipher(true);
+    outBuf = new byte[cipher.getUpdateOutputSize(AESBinFormat.CHUNK_SIZE)];
+  }
+
+  @Override
+  public void write(int b) throws IOException
+  {
+    singleByte[0] = (byte) b;
+    write(singleByte, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException
+  {
+    if (cipher == null) throw new IOException("Stream closed");
+
+    while (len > 0) {
+      int n = Math.min(len, AESBinFormat.CHUNK_SIZE);
+      int outputLen = cipher.processBytes(b, off, n, outBuf, 0);
+      out.write(outBuf, 0, outputLen);
+
+      count += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException
+  {
+    out.flush();
+  }
+
+  /**
+   * Pads and encrypts the final block, then closes the underlying stream.
+   *
+   * @throws IOException if the final block couldn't be written.
+   */
+  @Override
+  public void close() throws IOException
+  {
+    if (cipher == null) return;
+
+    try {
+      /* If input was multiple of 16, NO padding. Example: res\levels\BulletinBoardSystem\BulletinBoardSystem.level.bin */
+      /* Otherwise pad to next 16 byte boundary */
+      int remainder = (int) (count % AESBinFormat.BLOCK_SIZE);
+      if (remainder != 0) {
+        byte[] padding = new byte[AESBinFormat.BLOCK_SIZE - remainder];
+
+        log.finer("Size " + count + " padded with " + padding.length + " bytes");
+
+        /* Write up to 4 0xFD bytes immediately after the original file. The remainder can stay as 0x00. */
+        for (int i = 0; i < 4 && i < padding.length; ++i) {
+          padding[i] = AESBinFormat.EOF_MARKER;
+        }
+
+        int outputLen = cipher.processBytes(padding, 0, padding.length, outBuf, 0);
+        out.write(outBuf, 0, outputLen);
+      }
+      else {
+        log.finer("Size " + count + " already multiple of 16, no padding");
+      }
+
+      try {
+        int outputLen = cipher.doFinal(outBuf, 0);
+        out.write(outBuf, 0, outputLen);
+      }
+      catch (InvalidCipherTextException e) {
+        log.log(Level.SEVERE, "Can't encrypt file", e);
+        throw new IOException("Can't encrypt file: " + e.getLocalizedMessage());
+      }
+    }
+    finally {
+      AESBinFormat.releaseCipher(cipher, true);
+      cipher = null;
+      out.close();
+    }
+  }
+}
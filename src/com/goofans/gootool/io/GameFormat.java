@@ -63,9 +63,25 @@ public class GameFormat
 
   public static Document decodeXmlBinFile(File file) throws IOException
   {
-    byte[] decoded = decodeBinFile(file);
-    InputStream is = new ByteArrayInputStream(decoded);
-    return XMLUtil.loadDocumentFromInputStream(is);
+    InputStream is;
+
+    switch (PlatformSupport.getPlatform()) {
+      case WINDOWS:
+      case LINUX:
+        // Parse as we decrypt, rather than holding the whole decrypted file in memory first
+        is = AESBinFormat.openDecodingStream(file);
+        break;
+      default:
+        is = new ByteArrayInputStream(decodeBinFile(file));
+        break;
+    }
+
+    try {
+      return XMLUtil.loadDocumentFromInputStream(is);
+    }
+    finally {
+      is.close();
+    }
   }
 
   public static byte[] decodeProfileFile(File file) throws IOException
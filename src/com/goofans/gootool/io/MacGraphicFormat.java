@@ -9,69 +9,107 @@ import java.awt.*;
 import java.awt.color.ColorSpace;
 import java.awt.image.*;
 import java.io.*;
-import java.util.zip.DataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 import com.goofans.gootool.util.DebugUtil;
+import com.goofans.gootool.util.Utilities;
 
 /**
  * Handles encoding and decoding of the Mac .png.binltl raster format.
+ * <p/>
+ * The format is a 12-byte little-endian header (width, height, compressed size, uncompressed size) followed by the
+ * zlib-compressed RGBA pixels of the image, padded with transparent pixels to a power-of-two square. Both directions
+ * stream the pixels through the compressor one row at a time.
  *
  * @author David Croft (davidc@goofans.com)
  * @version $Id$
  */
 public class MacGraphicFormat
 {
+  /**
+   * The compression level used by {@link #encodeImage(File, Image)}, which gives the smallest files.
+   */
+  public static final int DEFAULT_COMPRESSION_LEVEL = Deflater.BEST_COMPRESSION;
+
+  private static final int HEADER_SIZE = 12;
+  private static final int BUFFER_SIZE = 65536;
+
   private MacGraphicFormat()
   {
   }
 
   public static BufferedImage decodeImage(File file) throws IOException
   {
-    InputStream is = new FileInputStream(file);
-
-    int width = readUnsignedShort(is);
-    int height = readUnsignedShort(is);
-
-    int squareSide = 1;
-    while (squareSide < width || squareSide < height) squareSide *= 2;
-
-    int compressedSize = readUnsignedInt(is);
-    int uncompressedSize = readUnsignedInt(is);
-
-    byte[] compressedData = new byte[compressedSize];
-    if (is.read(compressedData) != compressedSize) {
-      throw new EOFException("Short read on compressed data, expected " + compressedSize);
-    }
-
-    is.close();
-
-    Inflater inflater = new Inflater();
-    inflater.setInput(compressedData);
-
-    byte[] uncompressedData = new byte[uncompressedSize];
-    int gotBytes;
+    FileChannel channel = new FileInputStream(file).getChannel();
     try {
-      gotBytes = inflater.inflate(uncompressedData);
-    }
-    catch (DataFormatException e) {
-      throw new IOException("zlib compression format error: " + e.getMessage());
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      while (header.hasRemaining()) {
+        if (channel.read(header) < 0) throw new EOFException("End of file reading header");
+      }
+      header.flip();
+
+      int width = header.getShort() & 0xffff;
+      int height = header.getShort() & 0xffff;
+
+      int squareSide = getSquareSide(width, height);
+
+      int compressedSize = header.getInt();
+      int uncompressedSize = header.getInt();
+      long rasterSize = height == 0 ? 0 : ((long) (height - 1) * squareSide * 4) + (width * 4L);
+      if (compressedSize < 0 || uncompressedSize < rasterSize) {
+        throw new IOException("Invalid sizes in header: compressed " + compressedSize + ", uncompressed " + uncompressedSize);
+      }
+
+      Inflater inflater = new Inflater();
+      try {
+        InputStream is = new InflaterInputStream(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE), inflater, BUFFER_SIZE);
+
+        byte[] uncompressedData = new byte[uncompressedSize];
+        int gotBytes = 0;
+        int numRead;
+        while (gotBytes < uncompressedSize && (numRead = is.read(uncompressedData, gotBytes, uncompressedSize - gotBytes)) != -1) {
+          gotBytes += numRead;
+        }
+        if (gotBytes != uncompressedSize || is.read() != -1) {
+          throw new IOException("Uncompressed size is not " + uncompressedSize + ", we got " + (gotBytes == uncompressedSize ? "more" : String.valueOf(gotBytes)));
+        }
+
+        // TODO: colour seems to be slightly off (at least in screenshot)
+
+        ComponentColorModel colorModel = getColorModel();
+        PixelInterleavedSampleModel sampleModel = getSampleModel(width, height, squareSide);
+
+        DataBufferByte imageData = new DataBufferByte(uncompressedData, uncompressedSize);
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, imageData, new Point(0, 0));
+
+        return new BufferedImage(colorModel, raster, false, null);
+      }
+      catch (ZipException e) {
+        throw new IOException("zlib compression format error: " + e.getMessage());
+      }
+      finally {
+        inflater.end();
+      }
     }
-    inflater.end();
-    if (gotBytes != uncompressedSize) {
-      throw new IOException("Uncompressed size is not " + uncompressedSize + ", we got " + gotBytes);
+    finally {
+      channel.close();
     }
+  }
 
-    // TODO: colour seems to be slightly off (at least in screenshot)
-
-    ComponentColorModel colorModel = getColorModel();
-    PixelInterleavedSampleModel sampleModel = getSampleModel(width, height, squareSide);
-
-    DataBufferByte imageData = new DataBufferByte(uncompressedData, uncompressedSize);
-    WritableRaster raster = Raster.createWritableRaster(sampleModel, imageData, new Point(0, 0));
-
-    return new BufferedImage(colorModel, raster, false, null);
+  private static int getSquareSide(int width, int height)
+  {
+    int squareSide = 1;
+    while (squareSide < width || squareSide < height) squareSide *= 2;
+    return squareSide;
   }
 
   private static PixelInterleavedSampleModel getSampleModel(int width, int height, int squareSide)
@@ -82,97 +120,134 @@ public class MacGraphicFormat
 
   public static void encodeImage(File file, Image image) throws IOException
   {
-    int width = image.getWidth(null);
-    int height = image.getHeight(null);
-
-    // Need to make a square first
-
-    int squareSide = 1;
-    while (squareSide < width || squareSide < height) squareSide *= 2;
-
-    ComponentColorModel colorModel = getColorModel();
-    PixelInterleavedSampleModel sampleModel = getSampleModel(squareSide, squareSide, squareSide);
-
-    WritableRaster raster = Raster.createWritableRaster(sampleModel, new Point(0, 0));
-    BufferedImage squareImage = new BufferedImage(colorModel, raster, false, null);
-    squareImage.getGraphics().drawImage(image, 0, 0, null);
-
-    // Get the RGBA bytes from this
-    DataBufferByte imageData = (DataBufferByte) squareImage.getRaster().getDataBuffer();
+    encodeImage(file, image, DEFAULT_COMPRESSION_LEVEL);
+  }
 
-    byte[] uncompressedData = imageData.getData();
-    int uncompressedSize = uncompressedData.length;
+  /**
+   * Encodes an image into a .png.binltl file.
+   *
+   * @param file             The file to write.
+   * @param image            The image to encode.
+   * @param compressionLevel The zlib compression level, from {@link Deflater#BEST_SPEED} to
+   *                         {@link Deflater#BEST_COMPRESSION}, or {@link Deflater#DEFAULT_COMPRESSION}.
+   * @throws IOException if the file couldn't be written.
+   */
+  public static void encodeImage(File file, Image image, int compressionLevel) throws IOException
+  {
+    BufferedImage bufferedImage = toBufferedImage(image);
 
-    // Compress data
+    int width = bufferedImage.getWidth();
+    int height = bufferedImage.getHeight();
 
-    ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+    // The image is stored padded to a square
+    int squareSide = getSquareSide(width, height);
+    int uncompressedSize = squareSide * squareSide * 4;
 
-    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
-    deflater.setInput(uncompressedData);
-    deflater.finish();
-    byte[] tmpbuf = new byte[1024];
+    byte[] row = new byte[squareSide * 4];
+    int[] argbRow = isRgba(bufferedImage) ? null : new int[width];
 
-    int n;
-    while (!deflater.finished()) {
-      n = deflater.deflate(tmpbuf);
-      bos.write(tmpbuf, 0, n);
+    FileChannel channel = Utilities.createFileOutputStream(file).getChannel();
+    Deflater deflater = new Deflater(compressionLevel);
+    try {
+      // Compress straight into the file after the header, then go back and fill in the header once the size is known
+      channel.position(HEADER_SIZE);
+      DeflaterOutputStream os = new DeflaterOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE), deflater, BUFFER_SIZE);
+
+      for (int y = 0; y < height; y++) {
+        getRgbaRow(bufferedImage, y, argbRow, row);
+        os.write(row);
+      }
+
+      Arrays.fill(row, (byte) 0);
+      for (int y = height; y < squareSide; y++) {
+        os.write(row);
+      }
+
+      os.finish();
+      os.flush();
+
+      long compressedSize = deflater.getBytesWritten();
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      header.putShort((short) width);
+      header.putShort((short) height);
+      header.putInt((int) compressedSize);
+      header.putInt(uncompressedSize);
+      header.flip();
+      while (header.hasRemaining()) {
+        channel.write(header, header.position());
+      }
+    }
+    finally {
+      deflater.end();
+      channel.close();
     }
-    deflater.end();
-
-    byte[] compressedData = bos.toByteArray();
-    int compressedSize = compressedData.length;
-
-    // Now write to the file
-
-    OutputStream os = new FileOutputStream(file);
-
-    writeUnsignedShort(os, width);
-    writeUnsignedShort(os, height);
-    writeUnsignedInt(os, compressedSize);
-    writeUnsignedInt(os, uncompressedSize);
-
-    os.write(compressedData);
-
-    os.close();
-
-    deflater.end();
   }
 
-  private static ComponentColorModel getColorModel()
+  private static BufferedImage toBufferedImage(Image image)
   {
-    ColorSpace colorSpace = ColorSpace.getInstance(ColorSpace.CS_sRGB);
-    int[] pixInfo = new int[]{8, 8, 8, 8};
-    return new ComponentColorModel(colorSpace, pixInfo, true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
-  }
+    if (image instanceof BufferedImage) return (BufferedImage) image;
 
-  private static int readUnsignedShort(InputStream is) throws IOException
-  {
-    byte[] tmp = new byte[2];
-    if (is.read(tmp, 0, 2) != 2)
-      throw new EOFException("End of file reading unsignedShort");
-    return ((int) tmp[0] & 0xff) + (((int) tmp[1] & 0xff) << 8);
+    BufferedImage bufferedImage = new BufferedImage(image.getWidth(null), image.getHeight(null), BufferedImage.TYPE_INT_ARGB);
+    Graphics g = bufferedImage.getGraphics();
+    g.drawImage(image, 0, 0, null);
+    g.dispose();
+    return bufferedImage;
   }
 
-  private static void writeUnsignedShort(OutputStream os, int value) throws IOException
+  /**
+   * Returns whether the image's raster already holds non-premultiplied sRGB bytes, which then come out of
+   * {@link Raster#getDataElements} in RGBA order. This is true of images we've decoded, and of PNGs with alpha read by
+   * ImageIO.
+   */
+  private static boolean isRgba(BufferedImage image)
   {
-    os.write(value & 0xff);
-    os.write((value >> 8) & 0xff);
+    ColorModel colorModel = image.getColorModel();
+    return colorModel instanceof ComponentColorModel
+            && colorModel.getTransferType() == DataBuffer.TYPE_BYTE
+            && colorModel.getNumComponents() == 4
+            && colorModel.hasAlpha()
+            && !colorModel.isAlphaPremultiplied()
+            && colorModel.getColorSpace().isCS_sRGB()
+            && image.getSampleModel().getNumDataElements() == 4;
   }
 
-  private static int readUnsignedInt(InputStream is) throws IOException
+  /**
+   * Gets one row of the image as RGBA bytes. Fully transparent pixels are written as zero, as drawing the image onto a
+   * transparent background would.
+   */
+  private static void getRgbaRow(BufferedImage image, int y, int[] argbRow, byte[] row)
   {
-    byte[] tmp = new byte[4];
-    if (is.read(tmp, 0, 4) != 4)
-      throw new EOFException("End of file reading unsignedInt");
-    return ((int) tmp[0] & 0xff) + (((int) tmp[1] & 0xff) << 8) + (((int) tmp[2] & 0xff) << 16) + (((int) tmp[3] & 0xff) << 24);
+    int width = image.getWidth();
+
+    if (argbRow == null) {
+      image.getRaster().getDataElements(0, y, width, 1, row);
+      for (int i = 3; i < width * 4; i += 4) {
+        if (row[i] == 0) {
+          row[i - 3] = 0;
+          row[i - 2] = 0;
+          row[i - 1] = 0;
+        }
+      }
+    }
+    else {
+      image.getRGB(0, y, width, 1, argbRow, 0, width);
+      for (int x = 0, i = 0; x < width; x++, i += 4) {
+        int argb = argbRow[x];
+        if ((argb >>> 24) == 0) argb = 0;
+        row[i] = (byte) (argb >> 16);
+        row[i + 1] = (byte) (argb >> 8);
+        row[i + 2] = (byte) argb;
+        row[i + 3] = (byte) (argb >>> 24);
+      }
+    }
   }
 
-  private static void writeUnsignedInt(OutputStream os, int value) throws IOException
+  private static ComponentColorModel getColorModel()
   {
-    os.write(value & 0xff);
-    os.write((value >> 8) & 0xff);
-    os.write((value >> 16) & 0xff);
-    os.write((value >> 24) & 0xff);
+    ColorSpace colorSpace = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+    int[] pixInfo = new int[]{8, 8, 8, 8};
+    return new ComponentColorModel(colorSpace, pixInfo, true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
   }
 
   @SuppressWarnings({"HardCodedStringLiteral"})
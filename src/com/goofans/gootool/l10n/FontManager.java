@@ -6,18 +6,21 @@
 package com.goofans.gootool.l10n;
 
 import java.awt.*;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.io.File;
 import java.io.IOException;
 
 /**
+ * Loads fonts from the l10n source directory, keeping each one once it has been loaded. Fonts may be fetched from
+ * several threads at once without blocking each other.
+ *
  * @author David Croft (davidc@goofans.com)
  * @version $Id$
  */
 public class FontManager
 {
-  private final Map<String, Font> fontCache = new HashMap<String, Font>();
+  private final ConcurrentMap<String, Font> fontCache = new ConcurrentHashMap<String, Font>();
   private final File baseDir;
 
   public FontManager(File baseDir)
@@ -25,14 +28,21 @@ public class FontManager
     this.baseDir = baseDir;
   }
 
-  public synchronized Font getFont(String filename) throws FontFormatException, IOException
+  public Font getFont(String filename) throws FontFormatException, IOException
   {
-    if (fontCache.containsKey(filename)) {
-      return fontCache.get(filename);
+    Font font = fontCache.get(filename);
+    if (font != null) {
+      return font;
     }
 
-    Font font = Font.createFont(Font.TRUETYPE_FONT, new File(baseDir, filename));
-    fontCache.put(filename, font);
-    return font;
+    // If two threads load the same font at once, both get the one that was cached first
+    font = Font.createFont(Font.TRUETYPE_FONT, getFontFile(filename));
+    Font existing = fontCache.putIfAbsent(filename, font);
+    return existing != null ? existing : font;
+  }
+
+  public File getFontFile(String filename)
+  {
+    return new File(baseDir, filename);
   }
 }
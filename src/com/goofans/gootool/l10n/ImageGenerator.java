@@ -6,24 +6,33 @@
 package com.goofans.gootool.l10n;
 
 import javax.imageio.ImageIO;
-import javax.xml.xpath.XPathExpressionException;
 import java.awt.*;
 import java.awt.font.GlyphVector;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import com.goofans.gootool.image.GaussianFilter;
+import com.goofans.gootool.image.GaussianBlur;
 import com.goofans.gootool.util.XMLUtil;
 import com.goofans.gootool.util.Utilities;
+import net.infotrek.util.EncodingUtil;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -70,28 +79,45 @@ public class ImageGenerator
   private static final String XML_LAYER = "layer";
   private static final String XML_GAUSSIANBLUR = "gaussian-blur";
   private static final String XML_GAUSSIANBLUR_ATTR_RADIUS = "radius";
+  private static final String XML_GAUSSIANBLUR_ATTR_APPROXIMATE = "approximate";
 
-  //  private BufferedImage workImage;
-  private BufferedImage finalImage;
   private final BufferedImage srcImage;
   private final int srcWidth;
   private final int srcHeight;
   private final int workWidth;
   private final int workHeight;
-//  private Graphics2D g;
 
-  private final FontManager fontManager;
-  private Map<String, String> language;
+  /* The source image at the working scale, which every rendering starts from */
+  private final BufferedImage baseImage;
 
-  private final Element el;
+  private final FontManager fontManager;
+  private final Set<String> fontNames = new TreeSet<String>();
 
   private final boolean debug;
 
-  public ImageGenerator(File sourceFile, Element el, FontManager fontManager, boolean debug) throws IOException
+  private final Layer rootLayer;
+  private final byte[] sourceDigest;
+
+  private BufferedImage finalImage;
+
+  /**
+   * Reads the source image, and everything needed to draw on it from the process-image element. The element isn't used
+   * again afterwards, so {@link #render(Map)} never touches the DOM and can be called from several threads at once.
+   *
+   * @param sourceFile  The image to draw on.
+   * @param el          The process-image element describing what to draw.
+   * @param fontManager Where to load fonts from.
+   * @param debug       Whether to draw the positions of the text.
+   * @throws IOException         if the image can't be read, or the element is invalid.
+   * @throws FontFormatException if a font can't be loaded.
+   */
+  public ImageGenerator(File sourceFile, Element el, FontManager fontManager, boolean debug) throws IOException, FontFormatException
   {
 //    System.out.println("sourceFile = " + sourceFile);
+    byte[] sourceBytes;
     try {
-      srcImage = ImageIO.read(sourceFile);
+      sourceBytes = Utilities.readFile(sourceFile);
+      srcImage = ImageIO.read(new ByteArrayInputStream(sourceBytes));
     }
     catch (IOException e) {
       log.log(Level.SEVERE, "Can't read " + sourceFile, e);
@@ -104,9 +130,27 @@ public class ImageGenerator
     workWidth = srcWidth * WORKING_SCALE;
     workHeight = srcHeight * WORKING_SCALE;
 
-    this.el = el;
+    baseImage = makeLayerImage();
+    Graphics2D g = baseImage.createGraphics();
+    g.drawImage(srcImage, 0, 0, workWidth - 1, workHeight - 1, 0, 0, srcWidth - 1, srcHeight - 1, null);
+    g.dispose();
+
     this.fontManager = fontManager;
     this.debug = debug;
+
+    rootLayer = compileLayer(el);
+
+    MessageDigest md = newDigest();
+    md.update(sourceBytes);
+    StringBuilder description = new StringBuilder();
+    describe(el, description);
+    for (String fontName : fontNames) {
+      File fontFile = fontManager.getFontFile(fontName);
+      description.append(fontName).append(':').append(fontFile.length()).append(':').append(fontFile.lastModified()).append('\n');
+    }
+    description.append(debug);
+    md.update(EncodingUtil.stringToBytesUtf8(description.toString()));
+    sourceDigest = md.digest();
   }
 
   public void drawText(Graphics2D g, String text, Font font, float fontSize, double stretch, float outline, Color color, Position pos, double rotation, double archHeight, double archAngle)
@@ -233,9 +277,14 @@ public class ImageGenerator
   }
 
   public void writeImage(File file) throws IOException
+  {
+    writeImage(finalImage, file);
+  }
+
+  public static void writeImage(BufferedImage image, File file) throws IOException
   {
     Utilities.mkdirsOrException(file.getParentFile());
-    ImageIO.write(finalImage, "PNG", file);
+    ImageIO.write(image, "PNG", file);
   }
 
   private void drawPoint(Graphics2D g, int x, int y, Color color)
@@ -247,26 +296,39 @@ public class ImageGenerator
 //    g.drawRect(x, y, 0, 0);
   }
 
-  public void process(Map<String, String> language) throws IOException, FontFormatException, XPathExpressionException
+  /**
+   * Renders the image for a language, and keeps it for {@link #getFinalImage()} and {@link #writeImage(File)}.
+   *
+   * @param language The strings of the language, by key.
+   */
+  public void process(Map<String, String> language)
   {
-    this.language = language;
+    finalImage = render(language);
+  }
 
-    BufferedImage workImage = makeLayerImage();
+  /**
+   * Renders the image for a language. This may be called from several threads at once.
+   *
+   * @param language The strings of the language, by key.
+   * @return The new image.
+   */
+  public BufferedImage render(Map<String, String> language)
+  {
+    BufferedImage workImage = new BufferedImage(baseImage.getColorModel(), baseImage.copyData(null), false, null);
     Graphics2D g = workImage.createGraphics();
 
-    g.drawImage(srcImage, 0, 0, workWidth - 1, workHeight - 1, 0, 0, srcWidth - 1, srcHeight - 1, null);
-
-    BufferedImage finalLayer = processLayer(el);
+    BufferedImage finalLayer = getLayerImage(rootLayer, language);
 
     g.drawImage(finalLayer, 0, 0, null);
+    g.dispose();
 
 //    Font f = getFont("TCCEB.TTF");
 
 //    drawText(text, f, 30.0f, 1.3f, 6, new Color(42, 42, 42), new Point(85, 36), 180);
 //    drawText(text, f, 30.0f, 1.3f, 0, new Color(153, 153, 153), new Point(85, 36), 180);
 
-    finalImage = new BufferedImage(srcWidth, srcHeight, BufferedImage.TYPE_4BYTE_ABGR);
-    Graphics2D g2 = finalImage.createGraphics();
+    BufferedImage image = new BufferedImage(srcWidth, srcHeight, BufferedImage.TYPE_4BYTE_ABGR);
+    Graphics2D g2 = image.createGraphics();
 //    g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
 //                   RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
 //    g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
@@ -276,19 +338,116 @@ public class ImageGenerator
 //            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
 
     g2.drawImage(workImage, 0, 0, srcWidth - 1, srcHeight - 1, 0, 0, workWidth - 1, workHeight - 1, null);
+    g2.dispose();
+    return image;
+  }
+
+  /**
+   * Returns a fingerprint of everything that goes into the image for a language: the source image, the process-image
+   * element, the fonts and the strings that are drawn. If the fingerprint hasn't changed, neither has the image.
+   *
+   * @param language The strings of the language, by key.
+   * @return The fingerprint, as a hex string.
+   */
+  public String getFingerprint(Map<String, String> language)
+  {
+    MessageDigest md = newDigest();
+    md.update(sourceDigest);
+    for (String text : rootLayer.resolveTexts(language)) {
+      md.update(EncodingUtil.stringToBytesUtf8(text));
+      md.update((byte) 0);
+    }
+    return new BigInteger(1, md.digest()).toString(16);
+  }
 
+  private static MessageDigest newDigest()
+  {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-1
+      throw new RuntimeException("SHA-1 not available", e);
+    }
+  }
+
+  private static void describe(Node node, StringBuilder sb)
+  {
+    if (node instanceof Element) {
+      Element el = (Element) node;
+      sb.append('<').append(el.getTagName());
+      NamedNodeMap attributes = el.getAttributes();
+      for (int i = 0; i < attributes.getLength(); i++) {
+        Node attribute = attributes.item(i);
+        sb.append(' ').append(attribute.getNodeName()).append("=\"").append(attribute.getNodeValue()).append('"');
+      }
+      sb.append('>');
+
+      NodeList childNodes = el.getChildNodes();
+      for (int i = 0; i < childNodes.getLength(); i++) {
+        describe(childNodes.item(i), sb);
+      }
+      sb.append("</").append(el.getTagName()).append('>');
+    }
+    else if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+      sb.append(node.getNodeValue().trim());
+    }
   }
 
   private BufferedImage makeLayerImage()
   {
-    return new BufferedImage(workWidth, workHeight, BufferedImage.TYPE_4BYTE_ABGR);
+    return new BufferedImage(workWidth, workHeight, BufferedImage.TYPE_INT_ARGB);
   }
 
-  private BufferedImage processLayer(Element el) throws IOException, XPathExpressionException, FontFormatException
+  private BufferedImage getLayerImage(Layer layer, Map<String, String> language)
+  {
+    // Layers with text are different for most languages, so keeping their images would only use up memory
+    if (!layer.texts.isEmpty()) {
+      return drawLayer(layer, language);
+    }
+
+    BufferedImage layerImage = layer.image;
+    if (layerImage == null) {
+      // Two threads may draw the same layer at once; the images are identical, so it doesn't matter which is kept
+      layerImage = drawLayer(layer, language);
+      layer.image = layerImage;
+    }
+    return layerImage;
+  }
+
+  private BufferedImage drawLayer(Layer layer, Map<String, String> language)
   {
     BufferedImage layerImage = makeLayerImage();
     Graphics2D g = layerImage.createGraphics();
 
+    for (Object item : layer.items) {
+      if (item instanceof Draw) {
+        Draw draw = (Draw) item;
+        for (Text text : draw.texts) {
+          drawText(g, text.resolve(language), text.font, text.fontSize, text.stretch, text.outline, text.color, draw.pos, text.rotation, text.archHeight, text.archAngle);
+
+          if (debug) {
+            draw.pos.debugDrawBounds(g, Color.ORANGE);
+          }
+        }
+      }
+      else if (item instanceof Layer) {
+        g.drawImage(getLayerImage((Layer) item, language), 0, 0, null);
+      }
+      else if (item instanceof GaussianBlur) {
+        g.dispose();
+        layerImage = ((GaussianBlur) item).filter(layerImage, null);
+        g = layerImage.createGraphics();
+      }
+    }
+    g.dispose();
+    return layerImage;
+  }
+
+  private Layer compileLayer(Element el) throws IOException, FontFormatException
+  {
+    Layer layer = new Layer();
+
     NodeList childNodes = el.getChildNodes();
     for (int i = 0; i < childNodes.getLength(); i++) {
       Node node = childNodes.item(i);
@@ -296,56 +455,40 @@ public class ImageGenerator
         Element itemEl = (Element) node;
 
         if (itemEl.getTagName().equals(XML_DRAW)) {
-          doDraw(itemEl, g);
+          Draw draw = compileDraw(itemEl);
+          layer.items.add(draw);
+          layer.texts.addAll(draw.texts);
         }
         else if (itemEl.getTagName().equals(XML_LAYER)) {
-          g.drawImage(processLayer(itemEl), 0, 0, null);
+          Layer subLayer = compileLayer(itemEl);
+          layer.items.add(subLayer);
+          layer.texts.addAll(subLayer.texts);
         }
         else if (itemEl.getTagName().equals(XML_GAUSSIANBLUR)) {
           float radius = (float) XMLUtil.getAttributeDoubleRequired(itemEl, XML_GAUSSIANBLUR_ATTR_RADIUS);
-          layerImage = new GaussianFilter(radius).filter(layerImage, null);
-          g = layerImage.createGraphics();
+          boolean approximate = XMLUtil.getAttributeBoolean(itemEl, XML_GAUSSIANBLUR_ATTR_APPROXIMATE, false);
+          layer.items.add(new GaussianBlur(radius, approximate));
         }
-        /*     else if (itemEl.getTagName().equals("circle")) {
-          CircleFilter filter = new CircleFilter();
-          filter.setAngle(-ImageMath.PI / 2 + ImageMath.PI / 8); // 22 degrees
-          filter.setCentreX(0.5f);
-          filter.setCentreY(1.0f);
-          filter.setSpreadAngle(ImageMath.PI / 4); // 45 degrees
-          filter.setHeight(50);
-          filter.setRadius(100);
-
-          System.out.println("filter = " + filter);
-
-          layerImage = filter.filter(layerImage, null);
-          System.out.println("XX layerImage.getWidth() = " + layerImage.getWidth());
-          System.out.println("XX layerImage.getHeight() = " + layerImage.getHeight());
-          g = layerImage.createGraphics();
-        }*/
       }
     }
-    return layerImage;
+    return layer;
   }
 
-  private void doDraw(Element drawEl, Graphics2D g) throws IOException, XPathExpressionException, FontFormatException
+  private Draw compileDraw(Element drawEl) throws IOException, FontFormatException
   {
-    Position pos = getPosition(drawEl);
+    Draw draw = new Draw(getPosition(drawEl));
 
     for (int i = 0; i < drawEl.getChildNodes().getLength(); i++) {
       Node node = drawEl.getChildNodes().item(i);
       if (node.getNodeName().equals(XML_DRAW_TEXT)) {
-
-        doTextNode((Element) node, g, pos);
-
-        if (debug) {
-          pos.debugDrawBounds(g, Color.ORANGE);
-        }
+        draw.texts.add(compileText((Element) node));
       }
     }
 
 //    if (drawItemEl == null) {
 //      throw new IOException("Nothing specified to draw!");
 //    }
+    return draw;
   }
 
   private Position getPosition(Element drawEl) throws IOException
@@ -390,55 +533,32 @@ public class ImageGenerator
     throw new IOException("Invalid y-justify value " + val);
   }
 
-  private void doTextNode(Element addTextEl, Graphics2D g, Position pos) throws IOException, FontFormatException
+  private Text compileText(Element addTextEl) throws IOException, FontFormatException
   {
+    Text text = new Text();
+
     Element fontElement = XMLUtil.getElementRequired(addTextEl, XML_DRAW_TEXT_FONT);
 
     String fontName = XMLUtil.getAttributeStringRequired(fontElement, XML_DRAW_TEXT_FONT_ATTR_NAME);
-    Font font = fontManager.getFont(fontName);
-    float fontSize = (float) XMLUtil.getAttributeDoubleRequired(fontElement, XML_DRAW_TEXT_FONT_ATTR_SIZE);
-    double stretch = XMLUtil.getAttributeDouble(fontElement, XML_DRAW_TEXT_FONT_ATTR_STRETCH, 1d);
-    float outline = XMLUtil.getAttributeDouble(fontElement, XML_DRAW_TEXT_FONT_ATTR_OUTLINE, 0d).floatValue();
+    text.font = fontManager.getFont(fontName);
+    fontNames.add(fontName);
+    text.fontSize = (float) XMLUtil.getAttributeDoubleRequired(fontElement, XML_DRAW_TEXT_FONT_ATTR_SIZE);
+    text.stretch = XMLUtil.getAttributeDouble(fontElement, XML_DRAW_TEXT_FONT_ATTR_STRETCH, 1d);
+    text.outline = XMLUtil.getAttributeDouble(fontElement, XML_DRAW_TEXT_FONT_ATTR_OUTLINE, 0d).floatValue();
 
-    String string = XMLUtil.getElementStringRequired(addTextEl, XML_DRAW_TEXT_STRING);
+    text.string = XMLUtil.getElementStringRequired(addTextEl, XML_DRAW_TEXT_STRING);
 
-    Color color = parseColor(XMLUtil.getElementStringRequired(addTextEl, XML_DRAW_TEXT_COLOR));
+    text.color = parseColor(XMLUtil.getElementStringRequired(addTextEl, XML_DRAW_TEXT_COLOR));
 
-    double rotation = XMLUtil.getElementDouble(addTextEl, XML_DRAW_TEXT_ROTATION, 0);
+    text.rotation = XMLUtil.getElementDouble(addTextEl, XML_DRAW_TEXT_ROTATION, 0);
 
     Element archElement = XMLUtil.getElement(addTextEl, XML_DRAW_TEXT_ARCH);
-    double archHeight = 0;
-    double archAngle = 0;
     if (archElement != null) {
-      archHeight = XMLUtil.getAttributeDoubleRequired(archElement, XML_DRAW_TEXT_ARCH_ATTR_HEIGHT);
-      archAngle = XMLUtil.getAttributeDoubleRequired(archElement, XML_DRAW_TEXT_ARCH_ATTR_ANGLE);
-    }
-
-
-    String text = null;
-    int openBracketsPos = string.indexOf('[');
-    if (openBracketsPos > 0) {
-      String realString = string.substring(0, openBracketsPos);
-      String wholeText = language.get(realString);
-      if (wholeText != null) {
-        String[] bits = wholeText.split("\\|");
-
-        int offset = Integer.valueOf(string.substring(openBracketsPos + 1, string.indexOf(']')));
-
-        if (offset > bits.length) {
-          text = "!!offset " + offset + "!!";
-        }
-        else {
-          text = bits[offset - 1];
-        }
-      }
-    }
-    else {
-      text = language.get(string);
+      text.archHeight = XMLUtil.getAttributeDoubleRequired(archElement, XML_DRAW_TEXT_ARCH_ATTR_HEIGHT);
+      text.archAngle = XMLUtil.getAttributeDoubleRequired(archElement, XML_DRAW_TEXT_ARCH_ATTR_ANGLE);
     }
-    if (text == null) text = "!!MISSING!!";
 
-    drawText(g, text, font, fontSize, stretch, outline, color, pos, rotation, archHeight, archAngle);
+    return text;
   }
 
   private static Color parseColor(String s) throws IOException
@@ -459,6 +579,78 @@ public class ImageGenerator
             alpha);
   }
 
+  /**
+   * A layer read from the XML: the draws, sublayers and blurs in it, in order. A layer without text looks the same in
+   * every language, so its image is kept and it is only drawn once.
+   */
+  private static class Layer
+  {
+    private final List<Object> items = new ArrayList<Object>();
+    /* Every text drawn in this layer and its sublayers */
+    private final List<Text> texts = new ArrayList<Text>();
+    private volatile BufferedImage image;
+
+    private List<String> resolveTexts(Map<String, String> language)
+    {
+      List<String> resolved = new ArrayList<String>(texts.size());
+      for (Text text : texts) {
+        resolved.add(text.resolve(language));
+      }
+      return resolved;
+    }
+  }
+
+  private static class Draw
+  {
+    private final Position pos;
+    private final List<Text> texts = new ArrayList<Text>();
+
+    private Draw(Position pos)
+    {
+      this.pos = pos;
+    }
+  }
+
+  private static class Text
+  {
+    private Font font;
+    private float fontSize;
+    private double stretch;
+    private float outline;
+    private String string;
+    private Color color;
+    private double rotation;
+    private double archHeight;
+    private double archAngle;
+
+    private String resolve(Map<String, String> language)
+    {
+      String text = null;
+      int openBracketsPos = string.indexOf('[');
+      if (openBracketsPos > 0) {
+        String realString = string.substring(0, openBracketsPos);
+        String wholeText = language.get(realString);
+        if (wholeText != null) {
+          String[] bits = wholeText.split("\\|");
+
+          int offset = Integer.valueOf(string.substring(openBracketsPos + 1, string.indexOf(']')));
+
+          if (offset > bits.length) {
+            text = "!!offset " + offset + "!!";
+          }
+          else {
+            text = bits[offset - 1];
+          }
+        }
+      }
+      else {
+        text = language.get(string);
+      }
+      if (text == null) text = "!!MISSING!!";
+      return text;
+    }
+  }
+
   abstract class Position
   {
     public static final int X_JUSTIFY_LEFT = 1;
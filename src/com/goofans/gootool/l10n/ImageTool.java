@@ -12,12 +12,25 @@ import javax.swing.border.Border;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
 
 import com.goofans.gootool.GooTool;
 import com.goofans.gootool.util.ProgressIndicatingTask;
+import com.goofans.gootool.util.Utilities;
 import com.goofans.gootool.util.XMLUtil;
 import com.goofans.gootool.wog.WorldOfGoo;
 import org.w3c.dom.Document;
@@ -26,11 +39,22 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 /**
+ * Generates the localised images described by l10n_images.xml, either into a directory or into a window for preview.
+ * <p/>
+ * Every image in every language is generated on a pool of threads. When generating into a directory, the fingerprint of
+ * each image is kept in a state file there, and images whose source, XML, fonts and strings haven't changed since the
+ * last run are not generated again.
+ *
  * @author David Croft (davidc@goofans.com)
  * @version $Id$
  */
 public class ImageTool extends ProgressIndicatingTask
 {
+  private static final Logger log = Logger.getLogger(ImageTool.class.getName());
+
+  private static final int MAX_THREADS = 8;
+  private static final String STATE_FILE = "l10n_images.state";
+
   private static final Border TABLE_BORDER = BorderFactory.createLineBorder(Color.BLACK);
 
   private JPanel contentPanel;
@@ -65,24 +89,14 @@ public class ImageTool extends ProgressIndicatingTask
   @Override
   public void run() throws Exception
   {
-    GridBagConstraints constraints = new GridBagConstraints();
-
-    if (outputDir == null) {
-      beginStep("Initialising GUI", false);
-
-      constraints.gridy = 0;
-      constraints.gridx = 1;
-      contentPanel.add(new JLabel("Original"), constraints);
-      for (String language : languages.keySet()) {
-        constraints.gridx++;
-        contentPanel.add(new JLabel(language), constraints);
-      }
-    }
-
     FontManager fm = new FontManager(sourceDir);
 
     Document d = XMLUtil.loadDocumentFromFile(new File(sourceDir, "l10n_images.xml"));
 
+    final List<String> sourceFileNames = new ArrayList<String>();
+    final List<String> destFileNames = new ArrayList<String>();
+    final List<ImageGenerator> generators = new ArrayList<ImageGenerator>();
+
     NodeList processImageNodes = d.getDocumentElement().getChildNodes();
     for (int i = 0; i < processImageNodes.getLength(); i++) {
       Node node = processImageNodes.item(i);
@@ -92,35 +106,142 @@ public class ImageTool extends ProgressIndicatingTask
           String sourceFileName = el.getElementsByTagName("source").item(0).getTextContent().trim();
           String destFileName = el.getElementsByTagName("dest").item(0).getTextContent().trim();
 
-          beginStep("Processing " + sourceFileName, false);
+          beginStep("Reading " + sourceFileName, false);
 
-          ImageGenerator generator = new ImageGenerator(new File(sourceDir, sourceFileName), el, fm, debug);
+          sourceFileNames.add(sourceFileName);
+          destFileNames.add(destFileName);
+          generators.add(new ImageGenerator(new File(sourceDir, sourceFileName), el, fm, debug));
+        }
+      }
+    }
 
-          if (outputDir == null) {
-            constraints.gridy++;
-            constraints.gridx = 0;
-            contentPanel.add(new JLabel("<html>" + sourceFileName + " -&gt;<br>" + destFileName), constraints);
+    final String[] languageNames = languages.keySet().toArray(new String[languages.size()]);
+    final BufferedImage[][] images = new BufferedImage[generators.size()][languageNames.length];
+
+    File stateFile = null;
+    Properties state = new Properties();
+    if (outputDir != null) {
+      stateFile = new File(outputDir, STATE_FILE);
+      if (stateFile.exists()) {
+        FileInputStream is = new FileInputStream(stateFile);
+        try {
+          state.load(is);
+        }
+        finally {
+          is.close();
+        }
+      }
+    }
 
-            try {
-              constraints.gridx++;
-              contentPanel.add(makeLabel(ImageIO.read(WorldOfGoo.getTheInstance().getGameFile(destFileName + ".png"))), constraints);
-            }
-            catch (IIOException e) {
-              // don't care, e.g. test image
-            }
-          }
+    beginStep("Generating images", true);
 
-          for (String language : languages.keySet()) {
-            generator.process(languages.get(language));
+    int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
 
-            if (outputDir == null) {
-              constraints.gridx++;
-              contentPanel.add(makeLabel(generator.getFinalImage()), constraints);
-            }
-            else {
-              generator.writeImage(new File(outputDir, destFileName + "." + language + ".png"));
+    int submitted = 0;
+    int skipped = 0;
+
+    try {
+      CompletionService<String[]> completionService = new ExecutorCompletionService<String[]>(executor);
+
+      // Each image in each language is a separate job, so a slow image doesn't hold up the others
+      for (int i = 0; i < generators.size(); i++) {
+        for (int j = 0; j < languageNames.length; j++) {
+          final int imageIndex = i;
+          final int languageIndex = j;
+          final Map<String, String> language = languages.get(languageNames[j]);
+          final String outputName = destFileNames.get(i) + "." + languageNames[j] + ".png";
+          final String fingerprint = generators.get(i).getFingerprint(language);
+
+          if (outputDir != null) {
+            if (fingerprint.equals(state.getProperty(outputName)) && new File(outputDir, outputName).exists()) {
+              skipped++;
+              continue;
             }
+            state.remove(outputName);
           }
+
+          completionService.submit(new Callable<String[]>()
+          {
+            public String[] call() throws Exception
+            {
+              BufferedImage image = generators.get(imageIndex).render(language);
+              if (outputDir == null) {
+                images[imageIndex][languageIndex] = image;
+              }
+              else {
+                ImageGenerator.writeImage(image, new File(outputDir, outputName));
+              }
+              return new String[]{outputName, fingerprint};
+            }
+          });
+          submitted++;
+        }
+      }
+
+      for (int i = 0; i < submitted; i++) {
+        progressStep((100f * i) / submitted);
+
+        String[] result = completionService.take().get();
+        state.setProperty(result[0], result[1]);
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while generating images");
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) throw (Exception) cause;
+      throw e;
+    }
+    finally {
+      executor.shutdownNow();
+
+      // Record whatever was generated, even if something failed
+      if (stateFile != null) {
+        FileOutputStream os = Utilities.createFileOutputStream(stateFile);
+        try {
+          state.store(os, "Fingerprints of the generated images");
+        }
+        finally {
+          os.close();
+        }
+      }
+    }
+
+    log.info(submitted + " images generated using " + threads + " threads, " + skipped + " unchanged");
+
+    if (outputDir == null) {
+      beginStep("Initialising GUI", false);
+
+      GridBagConstraints constraints = new GridBagConstraints();
+      constraints.gridy = 0;
+      constraints.gridx = 1;
+      contentPanel.add(new JLabel("Original"), constraints);
+      for (String language : languageNames) {
+        constraints.gridx++;
+        contentPanel.add(new JLabel(language), constraints);
+      }
+
+      for (int i = 0; i < generators.size(); i++) {
+        String destFileName = destFileNames.get(i);
+
+        constraints.gridy++;
+        constraints.gridx = 0;
+        contentPanel.add(new JLabel("<html>" + sourceFileNames.get(i) + " -&gt;<br>" + destFileName), constraints);
+
+        try {
+          constraints.gridx++;
+          contentPanel.add(makeLabel(ImageIO.read(WorldOfGoo.getTheInstance().getGameFile(destFileName + ".png"))), constraints);
+        }
+        catch (IIOException e) {
+          // don't care, e.g. test image
+        }
+
+        for (int j = 0; j < languageNames.length; j++) {
+          constraints.gridx++;
+          contentPanel.add(makeLabel(images[i][j]), constraints);
         }
       }
     }
@@ -31,6 +31,7 @@ public class Configuration
   private boolean skipOpeningMovie;
   private String watermark;
   private boolean windowsVolumeControl;
+  private boolean linkGameFiles;
 
   // this is a list because ordering of addins is important.
   private List<String> enabledAddins = new ArrayList<String>();
@@ -49,6 +50,7 @@ public class Configuration
     skipOpeningMovie = c.skipOpeningMovie;
     watermark = c.watermark;
     windowsVolumeControl = c.windowsVolumeControl;
+    linkGameFiles = c.linkGameFiles;
 
     enabledAddins = new ArrayList<String>(c.enabledAddins);
   }
@@ -135,6 +137,16 @@ public class Configuration
     this.windowsVolumeControl = windowsVolumeControl;
   }
 
+  public boolean isLinkGameFiles()
+  {
+    return linkGameFiles;
+  }
+
+  public void setLinkGameFiles(boolean linkGameFiles)
+  {
+    this.linkGameFiles = linkGameFiles;
+  }
+
   public boolean isEnabledAdddin(String id)
   {
     return (enabledAddins.contains(id.intern()));
@@ -185,6 +197,7 @@ public class Configuration
     if (skipOpeningMovie != that.skipOpeningMovie) return false;
     if (uiInset != that.uiInset) return false;
     if (windowsVolumeControl != that.windowsVolumeControl) return false;
+    if (linkGameFiles != that.linkGameFiles) return false;
     if (language != null ? !language.equals(that.language) : that.language != null) return false;
     if (resolution != null ? !resolution.equals(that.resolution) : that.resolution != null) return false;
     if (refreshRate != null ? !refreshRate.equals(that.refreshRate) : that.refreshRate != null) return false;
@@ -205,6 +218,7 @@ public class Configuration
     result = 31 * result + uiInset;
     result = 31 * result + (skipOpeningMovie ? 1 : 0);
     result = 31 * result + (windowsVolumeControl ? 1 : 0);
+    result = 31 * result + (linkGameFiles ? 1 : 0);
     result = 31 * result + enabledAddins.hashCode();
     return result;
   }
@@ -10,6 +10,7 @@ import net.infotrek.util.XMLStringBuffer;
 import java.util.Map;
 import java.util.LinkedHashMap;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.w3c.dom.Element;
 import com.goofans.gootool.util.XMLUtil;
@@ -79,11 +80,14 @@ public class BinActor
     depth = XMLUtil.getAttributeFloatRequired(actorEl, ACTOR_ATTR_DEPTH);
 
     String alignStr = XMLUtil.getAttributeStringRequired(actorEl, ACTOR_ATTR_ALIGN);
-    if (ALIGN_LEFT_STR.equals(actorTypeStr)) labelJustification = ALIGN_LEFT;
-    if (ALIGN_CENTER_STR.equals(actorTypeStr)) labelJustification = ALIGN_CENTER;
-    if (ALIGN_RIGHT_STR.equals(actorTypeStr)) labelJustification = ALIGN_RIGHT;
+    if (ALIGN_LEFT_STR.equals(alignStr)) labelJustification = ALIGN_LEFT;
+    else if (ALIGN_CENTER_STR.equals(alignStr)) labelJustification = ALIGN_CENTER;
+    else if (ALIGN_RIGHT_STR.equals(alignStr)) labelJustification = ALIGN_RIGHT;
     else throw new IOException("Invalid actor align " + alignStr);
 
+    labelMaxWidth = -1;
+    labelWrapWidth = -1;
+
     switch (actorType) {
       case ACTORTYPE_IMAGE:
         Element imageEl = XMLUtil.getElementRequired(actorEl, ACTOR_IMAGE);
@@ -159,6 +163,32 @@ public class BinActor
     xml.pop("actor");
   }
 
+  void addStrings(StringTableBuilder strings) throws IOException
+  {
+    strings.add(imageStr);
+    strings.add(labelStr);
+    strings.add(fontStr);
+  }
+
+  /**
+   * Writes this actor in binary form.
+   *
+   * @param buf     The buffer to write into.
+   * @param offset  The position of the actor in the buffer.
+   * @param strings The string table, which must already hold this actor's strings.
+   */
+  void writeBinary(ByteBuffer buf, int offset, StringTableBuilder strings)
+  {
+    buf.putInt(offset + 0, actorType);
+    buf.putInt(offset + 4, strings.indexOf(imageStr));
+    buf.putInt(offset + 8, strings.indexOf(labelStr));
+    buf.putInt(offset + 12, strings.indexOf(fontStr));
+    buf.putFloat(offset + 16, labelMaxWidth);
+    buf.putFloat(offset + 20, labelWrapWidth);
+    buf.putInt(offset + 24, labelJustification);
+    buf.putFloat(offset + 28, depth);
+  }
+
   @Override
   public String toString()
   {
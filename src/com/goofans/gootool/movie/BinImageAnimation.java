@@ -8,12 +8,15 @@ package com.goofans.gootool.movie;
 import net.infotrek.util.XMLStringBuffer;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
 
 import com.goofans.gootool.util.Utilities;
+import com.goofans.gootool.util.XMLUtil;
 import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
 /**
  * TODO Do some basic validation on the file before trying to load it.
@@ -23,7 +26,7 @@ import org.w3c.dom.Element;
  */
 public class BinImageAnimation
 {
-//  private static final int KEYFRAME_LENGTH = 32;
+  private static final int ANIM_HEADER_LENGTH = 52;
 
   private boolean hasColor;
   private boolean hasAlpha;
@@ -41,94 +44,269 @@ public class BinImageAnimation
 
   public BinImageAnimation(File file) throws IOException
   {
-    byte[] contents;
+    ByteBuffer buf = BinaryFormat.readFile(file);
+    init(buf, 0, new StringTable(buf));
+  }
 
-    FileInputStream is = new FileInputStream(file);
-    try {
-      int fileLength = (int) file.length();
-      contents = new byte[fileLength];
-      if (is.read(contents) != fileLength) {
-        throw new IOException("short read on anim " + file.getName());
-      }
+  public BinImageAnimation(byte[] contents, int offset)
+  {
+    ByteBuffer buf = BinaryFormat.wrap(contents);
+    init(buf, offset, new StringTable(buf));
+  }
+
+  /**
+   * Parses an animation from a buffer holding a binary animation or movie.
+   *
+   * @param buf    The buffer. It is read as little-endian whatever its byte order.
+   * @param offset The position of the animation in the buffer.
+   */
+  public BinImageAnimation(ByteBuffer buf, int offset)
+  {
+    ByteBuffer littleEndian = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    init(littleEndian, offset, new StringTable(littleEndian));
+  }
+
+  BinImageAnimation(ByteBuffer buf, int offset, StringTable strings)
+  {
+    init(buf, offset, strings);
+  }
+
+  private BinImageAnimation()
+  {
+  }
+
+  /**
+   * Reads an animation from an &lt;animation&gt; or &lt;complex-animation&gt; element, as produced by
+   * {@link #toXML(XMLStringBuffer)}.
+   *
+   * @param animEl The element.
+   * @throws IOException if the element isn't a valid animation.
+   */
+  public BinImageAnimation(Element animEl) throws IOException
+  {
+    if ("animation".equals(animEl.getTagName())) {
+      readSimpleXML(animEl);
+    }
+    else if ("complex-animation".equals(animEl.getTagName())) {
+      readComplexXML(animEl);
     }
-    finally {
-      is.close();
+    else {
+      throw new IOException("Unknown animation element " + animEl.getTagName());
     }
 
-    init(contents, 0);
+    String error = findFrameError();
+    if (error != null) throw new IOException("Invalid animation: " + error);
   }
 
-  public BinImageAnimation(byte[] contents, int offset)
+  private void readSimpleXML(Element animEl) throws IOException
   {
-    init(contents, offset);
+    NodeList keyFrameEls = animEl.getElementsByTagName("keyframe");
+
+    hasTransform = true;
+    hasAlpha = true;
+    numTransforms = 3;
+    numFrames = keyFrameEls.getLength();
+    if (numFrames == 0) throw new IOException("Animation has no key frames");
+
+    transformTypes = new TransformType[]{TransformType.SCALE, TransformType.ROTATE, TransformType.TRANSLATE};
+    frameTimes = new float[numFrames];
+    transformFrames = new KeyFrameTransform[numTransforms][numFrames];
+    alphaFrames = new KeyFrameAlpha[numFrames];
+
+    for (int frame = 0; frame < numFrames; ++frame) {
+      Element keyFrameEl = (Element) keyFrameEls.item(frame);
+
+      frameTimes[frame] = XMLUtil.getAttributeFloatRequired(keyFrameEl, "time");
+
+      int nextFrame = (frame == numFrames - 1 ? -1 : frame + 1);
+      int interpolation = KeyFrame.readInterpolation(keyFrameEl);
+
+      float scaleX = XMLUtil.getAttributeFloat(keyFrameEl, "scale-x", 1f);
+      float scaleY = XMLUtil.getAttributeFloat(keyFrameEl, "scale-y", 1f);
+      float angle = XMLUtil.getAttributeFloat(keyFrameEl, "angle", 0f);
+      float x = XMLUtil.getAttributeFloat(keyFrameEl, "x", 0f);
+      float y = XMLUtil.getAttributeFloat(keyFrameEl, "y", 0f);
+
+      transformFrames[0][frame] = new KeyFrameTransform(TransformType.SCALE, scaleX, scaleY, -1, nextFrame, interpolation);
+      transformFrames[1][frame] = new KeyFrameTransform(TransformType.ROTATE, -1, -1, angle, nextFrame, interpolation);
+      transformFrames[2][frame] = new KeyFrameTransform(TransformType.TRANSLATE, x, y, -1, nextFrame, interpolation);
+      alphaFrames[frame] = new KeyFrameAlpha(XMLUtil.getAttributeIntegerRequired(keyFrameEl, "alpha"), nextFrame, interpolation);
+    }
   }
 
-  private BinImageAnimation()
+  private void readComplexXML(Element animEl) throws IOException
+  {
+    numFrames = XMLUtil.getAttributeIntegerRequired(animEl, "frames");
+    if (numFrames <= 0) throw new IOException("Animation has no frames");
+
+    hasTransform = XMLUtil.getAttributeBooleanRequired(animEl, "transform");
+    hasAlpha = XMLUtil.getAttributeBooleanRequired(animEl, "alpha");
+    hasColor = XMLUtil.getAttributeBooleanRequired(animEl, "color");
+    hasSound = XMLUtil.getAttributeBooleanRequired(animEl, "sound");
+
+    frameTimes = new float[numFrames];
+    boolean[] timed = new boolean[numFrames];
+    NodeList timingEls = XMLUtil.getElementRequired(animEl, "frame-timings").getElementsByTagName("timing");
+    for (int i = 0; i < timingEls.getLength(); ++i) {
+      Element timingEl = (Element) timingEls.item(i);
+      int frame = readFrameIndex(timingEl, "frame");
+      frameTimes[frame] = XMLUtil.getAttributeFloatRequired(timingEl, "start");
+      timed[frame] = true;
+    }
+    for (int frame = 0; frame < numFrames; ++frame) {
+      if (!timed[frame]) throw new IOException("Frame " + frame + " has no timing");
+    }
+
+    if (hasTransform) {
+      NodeList transformEls = XMLUtil.getElementRequired(animEl, "transforms").getElementsByTagName("transform");
+      numTransforms = transformEls.getLength();
+      if (numTransforms == 0) throw new IOException("Animation has transform set but no transforms");
+      transformTypes = new TransformType[numTransforms];
+      transformFrames = new KeyFrameTransform[numTransforms][];
+
+      for (int i = 0; i < numTransforms; ++i) {
+        Element transformEl = (Element) transformEls.item(i);
+        String typeStr = XMLUtil.getAttributeStringRequired(transformEl, "type");
+        final TransformType transformType;
+        try {
+          transformType = TransformType.valueOf(typeStr.toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+          throw new IOException("Invalid transform type " + typeStr);
+        }
+
+        transformTypes[i] = transformType;
+        transformFrames[i] = new KeyFrameTransform[numFrames];
+        readFrameList(XMLUtil.getElementRequired(transformEl, "transform-frames"), transformFrames[i], new KeyFrameReader()
+        {
+          KeyFrame read(Element keyFrameEl, int nextFrame, int interpolation) throws IOException
+          {
+            if (transformType == TransformType.ROTATE) {
+              return new KeyFrameTransform(transformType, -1, -1, XMLUtil.getAttributeFloatRequired(keyFrameEl, "angle"), nextFrame, interpolation);
+            }
+            return new KeyFrameTransform(transformType, XMLUtil.getAttributeFloatRequired(keyFrameEl, "x"), XMLUtil.getAttributeFloatRequired(keyFrameEl, "y"), -1, nextFrame, interpolation);
+          }
+        });
+      }
+    }
+
+    if (hasAlpha) {
+      alphaFrames = new KeyFrameAlpha[numFrames];
+      readFrameList(XMLUtil.getElementRequired(animEl, "alpha-frames"), alphaFrames, new KeyFrameReader()
+      {
+        KeyFrame read(Element keyFrameEl, int nextFrame, int interpolation) throws IOException
+        {
+          return new KeyFrameAlpha(XMLUtil.getAttributeIntegerRequired(keyFrameEl, "alpha"), nextFrame, interpolation);
+        }
+      });
+    }
+
+    if (hasColor) {
+      colorFrames = new KeyFrameColor[numFrames];
+      readFrameList(XMLUtil.getElementRequired(animEl, "color-frames"), colorFrames, new KeyFrameReader()
+      {
+        KeyFrame read(Element keyFrameEl, int nextFrame, int interpolation) throws IOException
+        {
+          return new KeyFrameColor(XMLUtil.getAttributeIntegerRequired(keyFrameEl, "color"), nextFrame, interpolation);
+        }
+      });
+    }
+
+    if (hasSound) {
+      soundFrames = new KeyFrameSound[numFrames];
+      readFrameList(XMLUtil.getElementRequired(animEl, "sound-frames"), soundFrames, new KeyFrameReader()
+      {
+        KeyFrame read(Element keyFrameEl, int nextFrame, int interpolation) throws IOException
+        {
+          return new KeyFrameSound(XMLUtil.getAttributeStringRequired(keyFrameEl, "sound"), nextFrame, interpolation);
+        }
+      });
+    }
+  }
+
+  private void readFrameList(Element listEl, KeyFrame[] frameList, KeyFrameReader reader) throws IOException
   {
+    NodeList keyFrameEls = listEl.getElementsByTagName("keyframe");
+    for (int i = 0; i < keyFrameEls.getLength(); ++i) {
+      Element keyFrameEl = (Element) keyFrameEls.item(i);
+
+      int frame = readFrameIndex(keyFrameEl, "frame");
+      int nextFrame = XMLUtil.getAttributeIntegerRequired(keyFrameEl, "nextframe");
+      if (nextFrame != -1) readFrameIndex(keyFrameEl, "nextframe");
+
+      if (frameList[frame] != null) throw new IOException("Duplicate key frame " + frame + " in " + listEl.getTagName());
+      frameList[frame] = reader.read(keyFrameEl, nextFrame, KeyFrame.readInterpolation(keyFrameEl));
+    }
   }
 
-  public BinImageAnimation(Element elementRequired)
+  private int readFrameIndex(Element el, String attributeName) throws IOException
   {
-    //To change body of created methods use File | Settings | File Templates.
-    throw new RuntimeException("Unfinished");
+    int frame = XMLUtil.getAttributeIntegerRequired(el, attributeName);
+    if (frame < 0 || frame >= numFrames) throw new IOException("Frame " + frame + " is out of range in " + el.getTagName());
+    return frame;
   }
 
-  private void init(byte[] contents, int offset)
+  private abstract static class KeyFrameReader
   {
-    hasColor = BinaryFormat.getInt(contents, offset + 0) != 0;
-    hasAlpha = BinaryFormat.getInt(contents, offset + 4) != 0;
-    hasSound = BinaryFormat.getInt(contents, offset + 8) != 0;
-    hasTransform = BinaryFormat.getInt(contents, offset + 12) != 0;
-    numTransforms = BinaryFormat.getInt(contents, offset + 16);
-    numFrames = BinaryFormat.getInt(contents, offset + 20);
+    abstract KeyFrame read(Element keyFrameEl, int nextFrame, int interpolation) throws IOException;
+  }
 
-    int transformTypesOffset = offset + BinaryFormat.getInt(contents, offset + 24);
-    int frameTimesOffset = offset + BinaryFormat.getInt(contents, offset + 28);
-    int xformFramesOffset = offset + BinaryFormat.getInt(contents, offset + 32);
-    int alphaFramesOffset = offset + BinaryFormat.getInt(contents, offset + 36);
-    int colorFramesOffset = offset + BinaryFormat.getInt(contents, offset + 40);
-    int soundFramesOffset = offset + BinaryFormat.getInt(contents, offset + 44);
-    int stringTableOffset = offset + BinaryFormat.getInt(contents, offset + 48);
+  private void init(ByteBuffer buf, int offset, StringTable strings)
+  {
+    hasColor = buf.getInt(offset + 0) != 0;
+    hasAlpha = buf.getInt(offset + 4) != 0;
+    hasSound = buf.getInt(offset + 8) != 0;
+    hasTransform = buf.getInt(offset + 12) != 0;
+    numTransforms = buf.getInt(offset + 16);
+    numFrames = buf.getInt(offset + 20);
+
+    int transformTypesOffset = offset + buf.getInt(offset + 24);
+    int frameTimesOffset = offset + buf.getInt(offset + 28);
+    int xformFramesOffset = offset + buf.getInt(offset + 32);
+    int alphaFramesOffset = offset + buf.getInt(offset + 36);
+    int colorFramesOffset = offset + buf.getInt(offset + 40);
+    int soundFramesOffset = offset + buf.getInt(offset + 44);
+    int stringTableOffset = offset + buf.getInt(offset + 48);
 
     frameTimes = new float[numFrames];
     for (int i = 0; i < numFrames; ++i) {
-      frameTimes[i] = BinaryFormat.getFloat(contents, frameTimesOffset + (i * 4));
+      frameTimes[i] = buf.getFloat(frameTimesOffset + (i * 4));
 //      System.out.println("frameTimes[" + i + "] = " + frameTimes[i]);
     }
 
     if (hasTransform) {
-      loadTransformTypes(contents, transformTypesOffset);
+      loadTransformTypes(buf, transformTypesOffset);
 
-      loadTransformFrames(contents, offset, xformFramesOffset, stringTableOffset);
+      loadTransformFrames(buf, offset, strings, xformFramesOffset, stringTableOffset);
     }
 
     if (hasAlpha) {
-      loadAlphaFrames(contents, offset, alphaFramesOffset, stringTableOffset);
+      loadAlphaFrames(buf, offset, strings, alphaFramesOffset, stringTableOffset);
     }
 
     if (hasColor) {
-      loadColorFrames(contents, offset, colorFramesOffset, stringTableOffset);
+      loadColorFrames(buf, offset, strings, colorFramesOffset, stringTableOffset);
     }
 
     if (hasSound) {
-      loadSoundFrames(contents, offset, soundFramesOffset, stringTableOffset);
+      loadSoundFrames(buf, offset, strings, soundFramesOffset, stringTableOffset);
     }
 
     validateFrames();
   }
 
-  private void loadTransformTypes(byte[] contents, int transformTypesOffset)
+  private void loadTransformTypes(ByteBuffer buf, int transformTypesOffset)
   {
     transformTypes = new TransformType[numTransforms];
 
     int transformTypeOffset = transformTypesOffset;
     for (int i = 0; i < numTransforms; ++i, transformTypeOffset += 4) {
-      transformTypes[i] = TransformType.getByValue(BinaryFormat.getInt(contents, transformTypeOffset));
+      transformTypes[i] = TransformType.getByValue(buf.getInt(transformTypeOffset));
 //      System.out.println("transformTypes[" + i + "] = " + transformTypes[i]);
     }
   }
 
-  private void loadTransformFrames(byte[] contents, int offset, int xformFramesOffset, int stringTableOffset)
+  private void loadTransformFrames(ByteBuffer buf, int offset, StringTable strings, int xformFramesOffset, int stringTableOffset)
   {
     transformFrames = new KeyFrameTransform[numTransforms][];
     int transformOffset = xformFramesOffset;
@@ -136,7 +314,7 @@ public class BinImageAnimation
 //      System.out.println("transformOffset = " + transformOffset);
 
       // pointer to list of frames in this transform
-      int frameOffset = BinaryFormat.getInt(contents, transformOffset);
+      int frameOffset = buf.getInt(transformOffset);
 //      System.out.println("frameOffset = " + frameOffset);
 
       if (frameOffset > 0) {
@@ -145,11 +323,11 @@ public class BinImageAnimation
         transformFrames[i] = new KeyFrameTransform[numFrames];
         for (int j = 0; j < numFrames; ++j, frameOffset += 4) {
           // pointer to frame itself
-          int framePointer = BinaryFormat.getInt(contents, frameOffset);
+          int framePointer = buf.getInt(frameOffset);
 //          System.out.println("framePointer = " + framePointer);
           if (framePointer > 0) {
             framePointer += offset;
-            transformFrames[i][j] = new KeyFrameTransform(contents, framePointer, stringTableOffset, transformTypes[i]);
+            transformFrames[i][j] = new KeyFrameTransform(buf, framePointer, strings, stringTableOffset, transformTypes[i]);
 //            System.out.println("transformFrames[t=" + i + "," + transformTypes[i] + "][frame=" + j + "] = " + transformFrames[i][j]);
           }
         }
@@ -157,177 +335,171 @@ public class BinImageAnimation
     }
   }
 
-  private void loadAlphaFrames(byte[] contents, int offset, int alphaFramesOffset, int stringTableOffset)
+  private void loadAlphaFrames(ByteBuffer buf, int offset, StringTable strings, int alphaFramesOffset, int stringTableOffset)
   {
     alphaFrames = new KeyFrameAlpha[numFrames];
     int frameOffset = alphaFramesOffset;
     for (int i = 0; i < numFrames; ++i, frameOffset += 4) {
-      int framePointer = BinaryFormat.getInt(contents, frameOffset);
+      int framePointer = buf.getInt(frameOffset);
 //      System.out.println("framePointer = " + framePointer);
       if (framePointer > 0) {
         framePointer += offset;
-        alphaFrames[i] = new KeyFrameAlpha(contents, framePointer, stringTableOffset);
+        alphaFrames[i] = new KeyFrameAlpha(buf, framePointer, strings, stringTableOffset);
 //        System.out.println("alphaFrames[" + i + "] = " + alphaFrames[i]);
       }
     }
   }
 
-  private void loadColorFrames(byte[] contents, int offset, int colorFramesOffset, int stringTableOffset)
+  private void loadColorFrames(ByteBuffer buf, int offset, StringTable strings, int colorFramesOffset, int stringTableOffset)
   {
     colorFrames = new KeyFrameColor[numFrames];
     int frameOffset = colorFramesOffset;
     for (int i = 0; i < numFrames; ++i, frameOffset += 4) {
-      int framePointer = BinaryFormat.getInt(contents, frameOffset);
+      int framePointer = buf.getInt(frameOffset);
 //      System.out.println("framePointer = " + framePointer);
       if (framePointer > 0) {
         framePointer += offset;
-        colorFrames[i] = new KeyFrameColor(contents, framePointer, stringTableOffset);
+        colorFrames[i] = new KeyFrameColor(buf, framePointer, strings, stringTableOffset);
 //        System.out.println("colorFrames[" + i + "] = " + colorFrames[i]);
       }
     }
   }
 
-  private void loadSoundFrames(byte[] contents, int offset, int soundFramesOffset, int stringTableOffset)
+  private void loadSoundFrames(ByteBuffer buf, int offset, StringTable strings, int soundFramesOffset, int stringTableOffset)
   {
     soundFrames = new KeyFrameSound[numFrames];
     int frameOffset = soundFramesOffset;
     for (int i = 0; i < numFrames; ++i, frameOffset += 4) {
-      int framePointer = BinaryFormat.getInt(contents, frameOffset);
+      int framePointer = buf.getInt(frameOffset);
 //      System.out.println("framePointer = " + framePointer);
       if (framePointer > 0) {
         framePointer += offset;
-        soundFrames[i] = new KeyFrameSound(contents, framePointer, stringTableOffset);
+        soundFrames[i] = new KeyFrameSound(buf, framePointer, strings, stringTableOffset);
 //        System.out.println("soundFrames[" + i + "] = " + soundFrames[i]);
       }
     }
   }
 
+  /**
+   * Checks that the key frames are consistent with each other and with their types.
+   *
+   * @throws AssertionError if they aren't.
+   */
   public void validateFrames()
   {
-    if (hasTransform) {
-//      if (numTransforms != 3) throw new AssertionError(this);
-//      if (transformTypes[0] != TransformType.SCALE) throw new AssertionError(this);
-//      if (transformTypes[1] != TransformType.ROTATE) throw new AssertionError(this);
-//      if (transformTypes[2] != TransformType.TRANSLATE) throw new AssertionError(this);
-
-      // check that the same frames exist in all types
-      // check that the interpolation is the same too
-      for (int frame = 0; frame < numFrames; frame++) {
-        boolean isNull = transformFrames[0][frame] == null;
-        if (isNull) {
-//          if (transformFrames[1][frame] != null) throw new AssertionError(this);
-//          if (transformFrames[2][frame] != null) throw new AssertionError(this);
-//          if (hasAlpha && alphaFrames[frame] != null) throw new AssertionError(this);
-//          if (hasColor && colorFrames[frame] != null) throw new AssertionError(this);
-//          if (hasSound && soundFrames[frame] != null) throw new AssertionError(this);
-        }
-        else {
-//          if (transformFrames[1][frame] == null) throw new AssertionError(this);
-//          if (transformFrames[2][frame] == null) throw new AssertionError(this);
-//          if (transformFrames[0][frame].nextFrameIndex != transformFrames[1][frame].nextFrameIndex) throw new AssertionError(this);
-//          if (transformFrames[0][frame].nextFrameIndex != transformFrames[2][frame].nextFrameIndex) throw new AssertionError(this);
-//          if (transformFrames[0][frame].interpolationType != transformFrames[1][frame].interpolationType) throw new AssertionError(this);
-//          if (transformFrames[0][frame].interpolationType != transformFrames[2][frame].interpolationType) throw new AssertionError(this);
-//          if (hasAlpha && alphaFrames[frame].nextFrameIndex != transformFrames[0][frame].nextFrameIndex) throw new AssertionError(this);
-//          if (hasAlpha && alphaFrames[frame].interpolationType != transformFrames[0][frame].interpolationType) throw new AssertionError(this);
-//          if (hasColor && colorFrames[frame].nextFrameIndex != transformFrames[0][frame].nextFrameIndex) throw new AssertionError(this);
-//          if (hasColor && colorFrames[frame].interpolationType != transformFrames[0][frame].interpolationType) throw new AssertionError(this);
-        }
-      }
+    String error = findFrameError();
+    if (error != null) throw new AssertionError(error);
+  }
 
+  /*
+   * Returns a description of the first problem found in the key frames, or null if there are none.
+   */
+  private String findFrameError()
+  {
+    if (hasTransform) {
       for (int i = 0; i < transformTypes.length; i++) {
-        validateFrameList(transformFrames[i]);
+        String error = findFrameListError(transformFrames[i]);
+        if (error != null) return error;
         TransformType transformType = transformTypes[i];
         for (int j = 0; j < transformFrames[i].length; j++) {
           KeyFrame frame = transformFrames[i][j];
           if (frame != null) {
-            if (transformType == TransformType.SCALE && frame.x == -1) throw new AssertionError(frame);
-            if (transformType == TransformType.ROTATE && frame.x != -1) throw new AssertionError(frame);
-            if (transformType == TransformType.TRANSLATE && frame.x == -1) throw new AssertionError(frame);
-            if (transformType == TransformType.SCALE && frame.y == -1) throw new AssertionError(frame);
-            if (transformType == TransformType.ROTATE && frame.y != -1) throw new AssertionError(frame);
-            if (transformType == TransformType.TRANSLATE && frame.y == -1) throw new AssertionError(frame);
-            if (transformType == TransformType.ROTATE && frame.angle == -1) throw new AssertionError(frame);
-            if (transformType != TransformType.ROTATE && frame.angle != -1) throw new AssertionError(frame);
-            if (frame.alpha != -1) throw new AssertionError(frame);
-            if (frame.color != -1) throw new AssertionError(frame);
-            if (frame.soundStrIndex > 0) throw new AssertionError(frame);
-            if (frame.interpolationType != 0 && frame.interpolationType != 1) throw new AssertionError(frame);
+            if (transformType == TransformType.SCALE && frame.x == -1) return "Invalid key frame " + frame;
+            if (transformType == TransformType.ROTATE && frame.x != -1) return "Invalid key frame " + frame;
+            if (transformType == TransformType.TRANSLATE && frame.x == -1) return "Invalid key frame " + frame;
+            if (transformType == TransformType.SCALE && frame.y == -1) return "Invalid key frame " + frame;
+            if (transformType == TransformType.ROTATE && frame.y != -1) return "Invalid key frame " + frame;
+            if (transformType == TransformType.TRANSLATE && frame.y == -1) return "Invalid key frame " + frame;
+            if (transformType == TransformType.ROTATE && frame.angle == -1) return "Invalid key frame " + frame;
+            if (transformType != TransformType.ROTATE && frame.angle != -1) return "Invalid key frame " + frame;
+            if (frame.alpha != -1) return "Invalid key frame " + frame;
+            if (frame.color != -1) return "Invalid key frame " + frame;
+            if (frame.soundStr != null) return "Invalid key frame " + frame;
+            if (frame.interpolationType != 0 && frame.interpolationType != 1) return "Invalid key frame " + frame;
           }
         }
       }
     }
 
     if (hasAlpha) {
-      validateFrameList(alphaFrames);
+      String error = findFrameListError(alphaFrames);
+      if (error != null) return error;
       for (KeyFrame frame : alphaFrames) {
         if (frame != null) {
-          if (frame.x != -1) throw new AssertionError(frame);
-          if (frame.y != -1) throw new AssertionError(frame);
-          if (frame.angle != -1) throw new AssertionError(frame);
-          if (frame.alpha == -1) throw new AssertionError(frame);
-          if (frame.color != -1) throw new AssertionError(frame);
-          if (frame.soundStrIndex > 0) throw new AssertionError(frame);
-          if (frame.interpolationType != 0 && frame.interpolationType != 1) throw new AssertionError(frame);
+          if (frame.x != -1) return "Invalid key frame " + frame;
+          if (frame.y != -1) return "Invalid key frame " + frame;
+          if (frame.angle != -1) return "Invalid key frame " + frame;
+          if (frame.alpha == -1) return "Invalid key frame " + frame;
+          if (frame.color != -1) return "Invalid key frame " + frame;
+          if (frame.soundStr != null) return "Invalid key frame " + frame;
+          if (frame.interpolationType != 0 && frame.interpolationType != 1) return "Invalid key frame " + frame;
         }
       }
     }
 
     if (hasColor) {
-      validateFrameList(colorFrames);
+      String error = findFrameListError(colorFrames);
+      if (error != null) return error;
       for (KeyFrame frame : colorFrames) {
         if (frame != null) {
-          if (frame.x != -1) throw new AssertionError(frame);
-          if (frame.y != -1) throw new AssertionError(frame);
-          if (frame.angle != -1) throw new AssertionError(frame);
-          if (frame.alpha != -1) throw new AssertionError(frame);
+          if (frame.x != -1) return "Invalid key frame " + frame;
+          if (frame.y != -1) return "Invalid key frame " + frame;
+          if (frame.angle != -1) return "Invalid key frame " + frame;
+          if (frame.alpha != -1) return "Invalid key frame " + frame;
 //          if (frame.color == -1) throw new AssertionError(frame); //TODO
-          if (frame.soundStrIndex > 0) throw new AssertionError(frame);
+          if (frame.soundStr != null) return "Invalid key frame " + frame;
 //          if (frame.interpolationType != 0) throw new AssertionError(frame);
-          if (frame.interpolationType != 0 && frame.interpolationType != 1) throw new AssertionError(frame);
+          if (frame.interpolationType != 0 && frame.interpolationType != 1) return "Invalid key frame " + frame;
         }
       }
     }
 
     if (hasSound) {
-      validateFrameList(soundFrames);
+      String error = findFrameListError(soundFrames);
+      if (error != null) return error;
       for (KeyFrame frame : soundFrames) {
         if (frame != null) {
-          if (frame.x != -1) throw new AssertionError(frame);
-          if (frame.y != -1) throw new AssertionError(frame);
-          if (frame.angle != -1) throw new AssertionError(frame);
-          if (frame.alpha != -1) throw new AssertionError(frame);
-          if (frame.color != -1) throw new AssertionError(frame);
-          if (frame.soundStrIndex < 1) throw new AssertionError(frame);
-          if (frame.interpolationType != 0 && frame.interpolationType != 1) throw new AssertionError(frame);
+          if (frame.x != -1) return "Invalid key frame " + frame;
+          if (frame.y != -1) return "Invalid key frame " + frame;
+          if (frame.angle != -1) return "Invalid key frame " + frame;
+          if (frame.alpha != -1) return "Invalid key frame " + frame;
+          if (frame.color != -1) return "Invalid key frame " + frame;
+          if (frame.soundStr == null) return "Invalid key frame " + frame;
+          if (frame.interpolationType != 0 && frame.interpolationType != 1) return "Invalid key frame " + frame;
         }
       }
     }
+
+    return null;
   }
 
-  private void validateFrameList(KeyFrame[] frameList)
+  private String findFrameListError(KeyFrame[] frameList)
   {
     // assert that no skipped frames exist
     boolean[] used = new boolean[numFrames];
     int pos = 0;
     // locate the first frame
-    while (frameList[pos] == null && pos < frameList.length) {
+    while (pos < numFrames && frameList[pos] == null) {
       pos++;
     }
     if (pos >= numFrames) {
-      throw new AssertionError("No frames found!");
+      return "No frames found!";
     }
 
     while (pos != -1) {
+      if (pos < 0 || pos >= numFrames) return "frame " + pos + " is out of range";
+      if (used[pos]) return "frame " + pos + " is reached twice";
+      if (frameList[pos] == null) return "frame " + pos + " is used but doesn't exist";
       used[pos] = true;
       pos = frameList[pos].nextFrameIndex;
     }
     for (int i = 0; i < numFrames; i++) {
       if (!used[i] && frameList[i] != null)
-        throw new AssertionError("frame " + i + " exists but is unused");
+        return "frame " + i + " exists but is unused";
       if (used[i] && frameList[i] == null)
-        throw new AssertionError("frame " + i + " is used but doesn't exist");
+        return "frame " + i + " is used but doesn't exist";
     }
+    return null;
   }
 
   /**
@@ -523,6 +695,282 @@ public class BinImageAnimation
     xml.pop(tagName);
   }
 
+  /**
+   * Compiles this animation into its binary form (.anim.binltl).
+   *
+   * @return The binary animation.
+   * @throws IOException if the animation has strings that can't be stored.
+   */
+  public byte[] toBinary() throws IOException
+  {
+    StringTableBuilder strings = new StringTableBuilder();
+    addStrings(strings);
+
+    int length = getBinaryLength();
+    ByteBuffer buf = BinaryFormat.allocate(length + strings.getLength());
+    writeBinary(buf, 0, length, strings);
+    strings.write(buf, length);
+    return buf.array();
+  }
+
+  void addStrings(StringTableBuilder strings) throws IOException
+  {
+    if (hasSound) {
+      for (KeyFrameSound frame : soundFrames) {
+        if (frame != null) strings.add(frame.soundStr);
+      }
+    }
+  }
+
+  /**
+   * Returns the length of the binary form of this animation, not including the string table.
+   */
+  int getBinaryLength()
+  {
+    return getBinaryTablesLength() + (countKeyFrames() * KeyFrame.LENGTH);
+  }
+
+  /**
+   * Returns the length of the header, frame times and frame pointers.
+   */
+  private int getBinaryTablesLength()
+  {
+    int length = ANIM_HEADER_LENGTH + (numFrames * 4);
+    if (hasTransform) {
+      length += numTransforms * 8;
+      for (KeyFrameTransform[] frameList : transformFrames) {
+        if (frameList != null) length += numFrames * 4;
+      }
+    }
+    if (hasAlpha) length += numFrames * 4;
+    if (hasColor) length += numFrames * 4;
+    if (hasSound) length += numFrames * 4;
+    return length;
+  }
+
+  private int countKeyFrames()
+  {
+    int count = 0;
+    if (hasTransform) {
+      for (KeyFrameTransform[] frameList : transformFrames) {
+        count += countKeyFrames(frameList);
+      }
+    }
+    if (hasAlpha) count += countKeyFrames(alphaFrames);
+    if (hasColor) count += countKeyFrames(colorFrames);
+    if (hasSound) count += countKeyFrames(soundFrames);
+    return count;
+  }
+
+  private int countKeyFrames(KeyFrame[] frameList)
+  {
+    int count = 0;
+    if (frameList != null) {
+      for (int i = 0; i < numFrames; ++i) {
+        if (frameList[i] != null) count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Writes the binary form of this animation. The layout is the header, the transform types, the frame times, the
+   * frame pointers and finally the key frames. All pointers are relative to the start of the animation.
+   *
+   * @param buf               The buffer to write into, which must be zero-filled.
+   * @param offset            The position of the animation in the buffer.
+   * @param stringTableOffset The position of the string table in the buffer.
+   * @param strings           The string table, which must already hold this animation's strings.
+   */
+  void writeBinary(ByteBuffer buf, int offset, int stringTableOffset, StringTableBuilder strings)
+  {
+    BinaryAnimationWriter writer = new BinaryAnimationWriter(buf, offset, strings);
+    writer.tablePos = offset + ANIM_HEADER_LENGTH;
+    writer.keyFramePos = offset + getBinaryTablesLength();
+
+    buf.putInt(offset + 0, hasColor ? 1 : 0);
+    buf.putInt(offset + 4, hasAlpha ? 1 : 0);
+    buf.putInt(offset + 8, hasSound ? 1 : 0);
+    buf.putInt(offset + 12, hasTransform ? 1 : 0);
+    buf.putInt(offset + 16, numTransforms);
+    buf.putInt(offset + 20, numFrames);
+
+    if (hasTransform) {
+      buf.putInt(offset + 24, writer.tablePos - offset);
+      for (TransformType transformType : transformTypes) {
+        buf.putInt(writer.tablePos, transformType.getValue());
+        writer.tablePos += 4;
+      }
+    }
+
+    buf.putInt(offset + 28, writer.tablePos - offset);
+    for (int i = 0; i < numFrames; ++i) {
+      buf.putFloat(writer.tablePos, frameTimes[i]);
+      writer.tablePos += 4;
+    }
+
+    if (hasTransform) {
+      int listPointersPos = writer.tablePos;
+      buf.putInt(offset + 32, listPointersPos - offset);
+      writer.tablePos += numTransforms * 4;
+
+      for (int i = 0; i < numTransforms; ++i) {
+        if (transformFrames[i] != null) {
+          buf.putInt(listPointersPos + (i * 4), writer.tablePos - offset);
+          writer.writeFrameList(transformFrames[i], numFrames);
+        }
+      }
+    }
+
+    if (hasAlpha) {
+      buf.putInt(offset + 36, writer.tablePos - offset);
+      writer.writeFrameList(alphaFrames, numFrames);
+    }
+    if (hasColor) {
+      buf.putInt(offset + 40, writer.tablePos - offset);
+      writer.writeFrameList(colorFrames, numFrames);
+    }
+    if (hasSound) {
+      buf.putInt(offset + 44, writer.tablePos - offset);
+      writer.writeFrameList(soundFrames, numFrames);
+    }
+
+    buf.putInt(offset + 48, stringTableOffset - offset);
+  }
+
+  /**
+   * Tracks the write positions while an animation is compiled.
+   */
+  private static class BinaryAnimationWriter
+  {
+    private final ByteBuffer buf;
+    private final int offset;
+    private final StringTableBuilder strings;
+
+    private int tablePos;
+    private int keyFramePos;
+
+    BinaryAnimationWriter(ByteBuffer buf, int offset, StringTableBuilder strings)
+    {
+      this.buf = buf;
+      this.offset = offset;
+      this.strings = strings;
+    }
+
+    /**
+     * Writes a list of frame pointers at the table position, and the key frames they point to at the key frame
+     * position. Missing frames get a null pointer.
+     */
+    void writeFrameList(KeyFrame[] frameList, int numFrames)
+    {
+      for (int i = 0; i < numFrames; ++i) {
+        KeyFrame frame = frameList[i];
+        if (frame != null) {
+          buf.putInt(tablePos, keyFramePos - offset);
+          frame.writeBinary(buf, keyFramePos, strings);
+          keyFramePos += KeyFrame.LENGTH;
+        }
+        tablePos += 4;
+      }
+    }
+  }
+
+  /**
+   * Returns a copy of this animation with the sound frames of another animation merged in, frame times being matched
+   * up. This is the reverse of {@link #extractSoundAnim()}, and is needed because the game keeps a movie's sounds in
+   * one of its actors' animations.
+   *
+   * @param soundAnim An animation holding only sound frames.
+   * @return The merged animation.
+   */
+  BinImageAnimation withSounds(BinImageAnimation soundAnim)
+  {
+    if (hasSound) throw new IllegalStateException("Animation already has sounds");
+
+    // Merge the two (sorted) lists of frame times, sharing frames that occur at the same time
+    List<Float> times = new ArrayList<Float>(numFrames + soundAnim.numFrames);
+    int[] frameMap = new int[numFrames];
+    int[] soundMap = new int[soundAnim.numFrames];
+
+    int i = 0, j = 0;
+    while (i < numFrames || j < soundAnim.numFrames) {
+      float frameTime = (i < numFrames ? frameTimes[i] : Float.POSITIVE_INFINITY);
+      float soundTime = (j < soundAnim.numFrames ? soundAnim.frameTimes[j] : Float.POSITIVE_INFINITY);
+
+      if (frameTime <= soundTime) frameMap[i++] = times.size();
+      if (soundTime <= frameTime) soundMap[j++] = times.size();
+      times.add(Math.min(frameTime, soundTime));
+    }
+
+    BinImageAnimation merged = new BinImageAnimation();
+    merged.hasColor = hasColor;
+    merged.hasAlpha = hasAlpha;
+    merged.hasSound = true;
+    merged.hasTransform = hasTransform;
+    merged.numTransforms = numTransforms;
+    merged.numFrames = times.size();
+    merged.transformTypes = transformTypes;
+
+    merged.frameTimes = new float[merged.numFrames];
+    for (int frame = 0; frame < merged.numFrames; ++frame) {
+      merged.frameTimes[frame] = times.get(frame);
+    }
+
+    if (hasTransform) {
+      merged.transformFrames = new KeyFrameTransform[numTransforms][];
+      for (int tt = 0; tt < numTransforms; ++tt) {
+        if (transformFrames[tt] != null) {
+          merged.transformFrames[tt] = new KeyFrameTransform[merged.numFrames];
+          remapFrames(transformFrames[tt], numFrames, merged.transformFrames[tt], frameMap);
+        }
+      }
+    }
+    if (hasAlpha) {
+      merged.alphaFrames = new KeyFrameAlpha[merged.numFrames];
+      remapFrames(alphaFrames, numFrames, merged.alphaFrames, frameMap);
+    }
+    if (hasColor) {
+      merged.colorFrames = new KeyFrameColor[merged.numFrames];
+      remapFrames(colorFrames, numFrames, merged.colorFrames, frameMap);
+    }
+    merged.soundFrames = new KeyFrameSound[merged.numFrames];
+    remapFrames(soundAnim.soundFrames, soundAnim.numFrames, merged.soundFrames, soundMap);
+
+    return merged;
+  }
+
+  /**
+   * Creates an animation holding only sound frames, as held by a movie.
+   *
+   * @param times  The time of each sound, in order.
+   * @param sounds The sound of each frame.
+   * @return The animation.
+   */
+  static BinImageAnimation createSoundAnim(float[] times, String[] sounds)
+  {
+    BinImageAnimation soundAnim = new BinImageAnimation();
+    soundAnim.hasSound = true;
+    soundAnim.numFrames = times.length;
+    soundAnim.frameTimes = times.clone();
+    soundAnim.soundFrames = new KeyFrameSound[times.length];
+    for (int i = 0; i < times.length; ++i) {
+      int nextFrame = (i == times.length - 1 ? -1 : i + 1);
+      soundAnim.soundFrames[i] = new KeyFrameSound(sounds[i], nextFrame, KeyFrame.INTERPOLATION_NONE);
+    }
+    return soundAnim;
+  }
+
+  private static void remapFrames(KeyFrame[] from, int numFrames, KeyFrame[] to, int[] frameMap)
+  {
+    for (int i = 0; i < numFrames; ++i) {
+      if (from[i] != null) {
+        KeyFrame frame = from[i].copy();
+        if (frame.nextFrameIndex >= 0) frame.nextFrameIndex = frameMap[frame.nextFrameIndex];
+        to[frameMap[i]] = frame;
+      }
+    }
+  }
+
   public void validateContiguousFrames()
   {
     for (int i = 0; i < transformTypes.length; i++) {
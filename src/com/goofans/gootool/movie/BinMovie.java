@@ -8,6 +8,8 @@ package com.goofans.gootool.movie;
 import net.infotrek.util.XMLStringBuffer;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Map;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -29,7 +31,7 @@ import org.w3c.dom.Node;
  */
 public class BinMovie
 {
-  //  private static final int BINMOVIE_LENGTH = 20;
+  private static final int BINMOVIE_LENGTH = 20;
   private static final int BINACTOR_LENGTH = 32;
 //  private static final int BINIMAGEANIMATION_LENGTH = 52;
 
@@ -41,25 +43,24 @@ public class BinMovie
 
   public BinMovie(File file) throws IOException
   {
-    byte[] contents;
-
-    FileInputStream is = new FileInputStream(file);
-    try {
-      int fileLength = (int) file.length();
-      contents = new byte[fileLength];
-      if (is.read(contents) != fileLength) {
-        throw new IOException("short read on movie " + file.getName());
-      }
-    }
-    finally {
-      is.close();
-    }
+    this(BinaryFormat.readFile(file));
+  }
+
+  /**
+   * Parses a movie from a buffer holding a complete binary movie.
+   *
+   * @param buf The buffer. It is read as little-endian whatever its byte order.
+   */
+  public BinMovie(ByteBuffer buf)
+  {
+    buf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    StringTable strings = new StringTable(buf);
 
-    length = BinaryFormat.getFloat(contents, 0);
-    int numActors = BinaryFormat.getInt(contents, 4);
-    int actorsOffset = BinaryFormat.getInt(contents, 8);
-    int animsOffset = BinaryFormat.getInt(contents, 12);
-    int stringsOffset = BinaryFormat.getInt(contents, 16);
+    length = buf.getFloat(0);
+    int numActors = buf.getInt(4);
+    int actorsOffset = buf.getInt(8);
+    int animsOffset = buf.getInt(12);
+    int stringsOffset = buf.getInt(16);
 
     actors = new BinActor[numActors];
     anims = new BinImageAnimation[numActors];
@@ -67,28 +68,28 @@ public class BinMovie
     for (int actorNum = 0; actorNum < numActors; ++actorNum) {
 //      System.out.println("\n== ACTOR " + actorNum + " ==\n");
       int binActorOffset = actorsOffset + (actorNum * BINACTOR_LENGTH);
-      int actorType = BinaryFormat.getInt(contents, binActorOffset + 0);
+      int actorType = buf.getInt(binActorOffset + 0);
 
-      int imageStrIndex = BinaryFormat.getInt(contents, binActorOffset + 4);
-      String imageStr = BinaryFormat.getString(contents, stringsOffset + imageStrIndex);
+      int imageStrIndex = buf.getInt(binActorOffset + 4);
+      String imageStr = strings.get(stringsOffset + imageStrIndex);
 
-      int labelStrIndex = BinaryFormat.getInt(contents, binActorOffset + 8);
-      String labelStr = BinaryFormat.getString(contents, stringsOffset + labelStrIndex);
+      int labelStrIndex = buf.getInt(binActorOffset + 8);
+      String labelStr = strings.get(stringsOffset + labelStrIndex);
 
-      int fontStrIndex = BinaryFormat.getInt(contents, binActorOffset + 12);
-      String fontStr = BinaryFormat.getString(contents, stringsOffset + fontStrIndex);
+      int fontStrIndex = buf.getInt(binActorOffset + 12);
+      String fontStr = strings.get(stringsOffset + fontStrIndex);
 
-      float labelMaxWidth = BinaryFormat.getFloat(contents, binActorOffset + 16);
-      float labelWrapWidth = BinaryFormat.getFloat(contents, binActorOffset + 20);
-      int labelJustification = BinaryFormat.getInt(contents, binActorOffset + 24);
-      float depth = BinaryFormat.getFloat(contents, binActorOffset + 28);
+      float labelMaxWidth = buf.getFloat(binActorOffset + 16);
+      float labelWrapWidth = buf.getFloat(binActorOffset + 20);
+      int labelJustification = buf.getInt(binActorOffset + 24);
+      float depth = buf.getFloat(binActorOffset + 28);
 
       BinActor actor = new BinActor(actorType, imageStr, labelStr, fontStr, labelMaxWidth, labelWrapWidth, labelJustification, depth);
 //      System.out.println("actor = " + actor);
 
-      int binImageAnimOffset = BinaryFormat.getInt(contents, animsOffset + (actorNum * 4));
+      int binImageAnimOffset = buf.getInt(animsOffset + (actorNum * 4));
 //      System.out.println("binImageAnimOffset = " + binImageAnimOffset);
-      BinImageAnimation anim = new BinImageAnimation(contents, binImageAnimOffset);
+      BinImageAnimation anim = new BinImageAnimation(buf, binImageAnimOffset, strings);
 //      System.out.println("anim = " + anim);
 
       actors[actorNum] = actor;
@@ -131,8 +132,79 @@ public class BinMovie
     actors = actorsList.toArray(new BinActor[0]);
     anims = animsList.toArray(new BinImageAnimation[0]);
 
-    // TODO sounds
+    Element soundsEl = XMLUtil.getElement(movieEl, "sounds");
+    if (soundsEl != null) {
+      NodeList soundEls = soundsEl.getElementsByTagName("sound");
+      if (soundEls.getLength() > 0) {
+        if (actors.length == 0) throw new IOException("Movie has sounds but no actors");
+
+        float[] times = new float[soundEls.getLength()];
+        String[] sounds = new String[soundEls.getLength()];
+        for (int i = 0; i < soundEls.getLength(); ++i) {
+          Element soundEl = (Element) soundEls.item(i);
+          times[i] = XMLUtil.getAttributeFloatRequired(soundEl, "time");
+          sounds[i] = XMLUtil.getAttributeStringRequired(soundEl, "id");
+          if (i > 0 && times[i] < times[i - 1]) throw new IOException("Sounds are not in time order");
+        }
+        soundAnim = BinImageAnimation.createSoundAnim(times, sounds);
+      }
+    }
+  }
+
+  /**
+   * Compiles this movie into its binary form (.movie.binltl).
+   * <p/>
+   * The layout is the header, the actors, the animation pointers, the string table, then the animations aligned to 4
+   * bytes. The movie's sounds are merged back into the first actor's animation.
+   *
+   * @return The binary movie.
+   * @throws IOException if the movie has strings that can't be stored.
+   */
+  public byte[] toBinary() throws IOException
+  {
+    BinImageAnimation[] binAnims = anims.clone();
+    if (soundAnim != null) {
+      binAnims[0] = binAnims[0].withSounds(soundAnim);
+    }
+
+    StringTableBuilder strings = new StringTableBuilder();
+    for (BinActor actor : actors) {
+      actor.addStrings(strings);
+    }
+    for (BinImageAnimation anim : binAnims) {
+      anim.addStrings(strings);
+    }
+
+    int actorsOffset = BINMOVIE_LENGTH;
+    int animsOffset = actorsOffset + (actors.length * BINACTOR_LENGTH);
+    int stringsOffset = animsOffset + (actors.length * 4);
+
+    int[] animOffsets = new int[binAnims.length];
+    int fileLength = BinaryFormat.align(stringsOffset + strings.getLength());
+    for (int i = 0; i < binAnims.length; ++i) {
+      animOffsets[i] = fileLength;
+      fileLength = BinaryFormat.align(fileLength + binAnims[i].getBinaryLength());
+    }
+
+    ByteBuffer buf = BinaryFormat.allocate(fileLength);
+    buf.putFloat(0, length);
+    buf.putInt(4, actors.length);
+    buf.putInt(8, actorsOffset);
+    buf.putInt(12, animsOffset);
+    buf.putInt(16, stringsOffset);
+
+    for (int i = 0; i < actors.length; ++i) {
+      actors[i].writeBinary(buf, actorsOffset + (i * BINACTOR_LENGTH), strings);
+      buf.putInt(animsOffset + (i * 4), animOffsets[i]);
+    }
+
+    strings.write(buf, stringsOffset);
+
+    for (int i = 0; i < binAnims.length; ++i) {
+      binAnims[i].writeBinary(buf, animOffsets[i], stringsOffset, strings);
+    }
 
+    return buf.array();
   }
 
   /**
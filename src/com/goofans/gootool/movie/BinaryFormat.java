@@ -5,42 +5,95 @@
 
 package com.goofans.gootool.movie;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
 /**
+ * Reads the little-endian binary movie and animation formats (.movie.binltl and .anim.binltl).
+ *
  * @author David Croft (davidc@goofans.com)
  * @version $Id$
  */
 public class BinaryFormat
 {
+  /**
+   * Files at least this big are memory-mapped rather than read onto the heap.
+   */
+  private static final int MAP_THRESHOLD = 256 * 1024;
+
   private BinaryFormat()
   {
   }
 
-  static float getFloat(byte[] arr, int offset)
+  /**
+   * Reads a binary file into a little-endian buffer. Large files are memory-mapped.
+   *
+   * @param file The file to read.
+   * @return A buffer holding the complete file, positioned at 0.
+   * @throws IOException if the file couldn't be read.
+   */
+  static ByteBuffer readFile(File file) throws IOException
   {
-    int accum = 0;
-    for (int shiftBy = 0; shiftBy < 32; shiftBy += 8, offset++) {
-      accum |= ((long) (arr[offset] & 0xff)) << shiftBy;
+    FileChannel channel = new FileInputStream(file).getChannel();
+    try {
+      long fileLength = channel.size();
+      if (fileLength > Integer.MAX_VALUE) throw new IOException("file too large: " + file.getName());
+
+      ByteBuffer buf;
+      if (fileLength >= MAP_THRESHOLD) {
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+      }
+      else {
+        buf = ByteBuffer.allocate((int) fileLength);
+        while (buf.hasRemaining()) {
+          if (channel.read(buf) < 0) {
+            throw new EOFException("short read on " + file.getName());
+          }
+        }
+        buf.flip();
+      }
+      return buf.order(ByteOrder.LITTLE_ENDIAN);
+    }
+    finally {
+      channel.close();
     }
-    return Float.intBitsToFloat(accum);
   }
 
-  static int getInt(byte[] arr, int offset)
+  /**
+   * Allocates a zero-filled little-endian buffer to compile into.
+   *
+   * @param length The length of the buffer.
+   * @return The buffer.
+   */
+  static ByteBuffer allocate(int length)
   {
+    return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+  }
 
-    int accum = 0;
-    for (int shiftBy = 0; shiftBy < 32; shiftBy += 8, offset++) {
-      accum |= ((long) (arr[offset] & 0xff)) << shiftBy;
-    }
-    return accum;
+  /**
+   * Rounds a position up to the next 4-byte boundary.
+   *
+   * @param offset The position.
+   * @return The aligned position.
+   */
+  static int align(int offset)
+  {
+    return (offset + 3) & ~3;
   }
 
-  static String getString(byte[] contents, int i)
+  /**
+   * Wraps a byte array in a little-endian buffer.
+   *
+   * @param contents The bytes.
+   * @return The buffer.
+   */
+  static ByteBuffer wrap(byte[] contents)
   {
-    StringBuilder sb = new StringBuilder();
-    while (contents[i] != 0) {
-      sb.append((char) contents[i]);
-      ++i;
-    }
-    return sb.toString();
+    return ByteBuffer.wrap(contents).order(ByteOrder.LITTLE_ENDIAN);
   }
 }
@@ -7,15 +7,22 @@ package com.goofans.gootool.movie;
 
 import net.infotrek.util.XMLStringBuffer;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import com.goofans.gootool.util.XMLUtil;
+import org.w3c.dom.Element;
+
 /**
  * @author David Croft (davidc@goofans.com)
  * @version $Id$
  */
-public abstract class KeyFrame
+public abstract class KeyFrame implements Cloneable
 {
+  static final int LENGTH = 32;
+
   protected static final int INTERPOLATION_NONE = 0;
   protected static final int INTERPOLATION_LINEAR = 1;
 
@@ -29,19 +36,75 @@ public abstract class KeyFrame
   int interpolationType;
   String soundStr;
 
-  public KeyFrame(byte[] contents, int offset, int stringTableOffset)
+  KeyFrame(ByteBuffer buf, int offset, StringTable strings, int stringTableOffset)
   {
-    x = BinaryFormat.getFloat(contents, offset + 0);
-    y = BinaryFormat.getFloat(contents, offset + 4);
-    angle = BinaryFormat.getFloat(contents, offset + 8);
-    alpha = BinaryFormat.getInt(contents, offset + 12);
-    color = BinaryFormat.getInt(contents, offset + 16);
-    nextFrameIndex = BinaryFormat.getInt(contents, offset + 20);
-    soundStrIndex = BinaryFormat.getInt(contents, offset + 24);
+    x = buf.getFloat(offset + 0);
+    y = buf.getFloat(offset + 4);
+    angle = buf.getFloat(offset + 8);
+    alpha = buf.getInt(offset + 12);
+    color = buf.getInt(offset + 16);
+    nextFrameIndex = buf.getInt(offset + 20);
+    soundStrIndex = buf.getInt(offset + 24);
     if (soundStrIndex > 0) {
-      soundStr = BinaryFormat.getString(contents, stringTableOffset + soundStrIndex);
+      soundStr = strings.get(stringTableOffset + soundStrIndex);
+    }
+    interpolationType = buf.getInt(offset + 28);
+  }
+
+  KeyFrame(float x, float y, float angle, int alpha, int color, int nextFrameIndex, String soundStr, int interpolationType)
+  {
+    this.x = x;
+    this.y = y;
+    this.angle = angle;
+    this.alpha = alpha;
+    this.color = color;
+    this.nextFrameIndex = nextFrameIndex;
+    this.soundStr = soundStr;
+    this.interpolationType = interpolationType;
+  }
+
+  /**
+   * Reads the interpolation attribute of a &lt;keyframe&gt; element.
+   *
+   * @param keyFrameEl The element.
+   * @return The interpolation type.
+   * @throws IOException if the interpolation type is unknown.
+   */
+  static int readInterpolation(Element keyFrameEl) throws IOException
+  {
+    String interpolation = XMLUtil.getAttributeString(keyFrameEl, "interpolation", "none");
+    if ("linear".equals(interpolation)) return INTERPOLATION_LINEAR;
+    if ("none".equals(interpolation)) return INTERPOLATION_NONE;
+    throw new IOException("Invalid interpolation " + interpolation);
+  }
+
+  /**
+   * Writes this key frame in binary form.
+   *
+   * @param buf     The buffer to write into.
+   * @param offset  The position of the key frame in the buffer.
+   * @param strings The string table, which must already hold this frame's sound.
+   */
+  void writeBinary(ByteBuffer buf, int offset, StringTableBuilder strings)
+  {
+    buf.putFloat(offset + 0, x);
+    buf.putFloat(offset + 4, y);
+    buf.putFloat(offset + 8, angle);
+    buf.putInt(offset + 12, alpha);
+    buf.putInt(offset + 16, color);
+    buf.putInt(offset + 20, nextFrameIndex);
+    buf.putInt(offset + 24, strings.indexOf(soundStr));
+    buf.putInt(offset + 28, interpolationType);
+  }
+
+  KeyFrame copy()
+  {
+    try {
+      return (KeyFrame) clone();
+    }
+    catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
     }
-    interpolationType = BinaryFormat.getInt(contents, offset + 28);
   }
 
   public void toXML(XMLStringBuffer xml, int frame)
@@ -6,6 +6,7 @@
 package com.goofans.gootool.movie;
 
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
@@ -14,9 +15,14 @@ import java.util.Map;
  */
 public class KeyFrameAlpha extends KeyFrame
 {
-  public KeyFrameAlpha(byte[] contents, int offset, int stringTableOffset)
+  KeyFrameAlpha(ByteBuffer buf, int offset, StringTable strings, int stringTableOffset)
   {
-    super(contents, offset, stringTableOffset);
+    super(buf, offset, strings, stringTableOffset);
+  }
+
+  KeyFrameAlpha(int alpha, int nextFrameIndex, int interpolationType)
+  {
+    super(-1, -1, -1, alpha, -1, nextFrameIndex, null, interpolationType);
   }
 
   @Override
@@ -6,6 +6,7 @@
 package com.goofans.gootool.movie;
 
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
@@ -14,9 +15,14 @@ import java.util.Map;
  */
 public class KeyFrameColor extends KeyFrame
 {
-  public KeyFrameColor(byte[] contents, int offset, int stringTableOffset)
+  KeyFrameColor(ByteBuffer buf, int offset, StringTable strings, int stringTableOffset)
   {
-    super(contents, offset, stringTableOffset);
+    super(buf, offset, strings, stringTableOffset);
+  }
+
+  KeyFrameColor(int color, int nextFrameIndex, int interpolationType)
+  {
+    super(-1, -1, -1, -1, color, nextFrameIndex, null, interpolationType);
   }
 
   @Override
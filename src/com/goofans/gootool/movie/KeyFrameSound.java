@@ -6,6 +6,7 @@
 package com.goofans.gootool.movie;
 
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
@@ -14,9 +15,14 @@ import java.util.Map;
  */
 public class KeyFrameSound extends KeyFrame
 {
-  public KeyFrameSound(byte[] contents, int offset, int stringTableOffset)
+  KeyFrameSound(ByteBuffer buf, int offset, StringTable strings, int stringTableOffset)
   {
-    super(contents, offset, stringTableOffset);
+    super(buf, offset, strings, stringTableOffset);
+  }
+
+  KeyFrameSound(String soundStr, int nextFrameIndex, int interpolationType)
+  {
+    super(-1, -1, -1, -1, -1, nextFrameIndex, soundStr, interpolationType);
   }
 
   @Override
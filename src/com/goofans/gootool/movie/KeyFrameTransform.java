@@ -6,6 +6,7 @@
 package com.goofans.gootool.movie;
 
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
@@ -16,9 +17,15 @@ public class KeyFrameTransform extends KeyFrame
 {
   private final TransformType transformType;
 
-  public KeyFrameTransform(byte[] contents, int offset, int stringTableOffset, TransformType transformType)
+  KeyFrameTransform(ByteBuffer buf, int offset, StringTable strings, int stringTableOffset, TransformType transformType)
   {
-    super(contents, offset, stringTableOffset);
+    super(buf, offset, strings, stringTableOffset);
+    this.transformType = transformType;
+  }
+
+  KeyFrameTransform(TransformType transformType, float x, float y, float angle, int nextFrameIndex, int interpolationType)
+  {
+    super(x, y, angle, -1, -1, nextFrameIndex, null, interpolationType);
     this.transformType = transformType;
   }
 
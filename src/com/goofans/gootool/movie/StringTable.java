@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.movie;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A view of the null-terminated strings in a binary movie or animation.
+ * <p/>
+ * Each string is decoded the first time it's asked for and then returned from the cache, so actors and key frames that
+ * refer to the same string share a single (interned) instance. One table is shared by everything parsed from a file.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+class StringTable
+{
+  private final ByteBuffer buf;
+  private final Map<Integer, String> strings = new HashMap<Integer, String>();
+
+  StringTable(ByteBuffer buf)
+  {
+    this.buf = buf;
+  }
+
+  /**
+   * Returns the string starting at the given position.
+   *
+   * @param offset The absolute position of the string in the buffer.
+   * @return The string, without its terminating null.
+   */
+  String get(int offset)
+  {
+    Integer key = offset;
+    String str = strings.get(key);
+    if (str == null) {
+      int end = offset;
+      while (buf.get(end) != 0) {
+        end++;
+      }
+
+      char[] chars = new char[end - offset];
+      for (int i = 0; i < chars.length; ++i) {
+        chars[i] = (char) (buf.get(offset + i) & 0xff);
+      }
+
+      str = new String(chars).intern();
+      strings.put(key, str);
+    }
+    return str;
+  }
+}
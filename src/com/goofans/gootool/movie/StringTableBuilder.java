@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.movie;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds the string table of a binary movie or animation. Each distinct string is stored once.
+ * <p/>
+ * The empty string is always at index 0, since a string index of 0 means "no string".
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+class StringTableBuilder
+{
+  private final Map<String, Integer> indices = new LinkedHashMap<String, Integer>();
+  private int length;
+
+  StringTableBuilder()
+  {
+    indices.put("", 0);
+    length = 1;
+  }
+
+  /**
+   * Adds a string to the table, if it isn't already there.
+   *
+   * @param str The string. Null is treated as the empty string.
+   * @throws IOException if the string has characters that can't be stored in the table.
+   */
+  void add(String str) throws IOException
+  {
+    if (str == null || indices.containsKey(str)) return;
+
+    for (int i = 0; i < str.length(); ++i) {
+      char c = str.charAt(i);
+      if (c == 0 || c > 0xff) throw new IOException("Invalid character in string \"" + str + "\"");
+    }
+
+    indices.put(str, length);
+    length += str.length() + 1;
+  }
+
+  /**
+   * Returns the index of a string previously added to the table.
+   *
+   * @param str The string. Null is treated as the empty string.
+   * @return The offset of the string from the start of the table.
+   */
+  int indexOf(String str)
+  {
+    if (str == null) return 0;
+
+    Integer index = indices.get(str);
+    if (index == null) throw new IllegalStateException("String \"" + str + "\" was never added");
+    return index;
+  }
+
+  /**
+   * Returns the length of the table in bytes.
+   *
+   * @return The length.
+   */
+  int getLength()
+  {
+    return length;
+  }
+
+  /**
+   * Writes the table into the buffer.
+   *
+   * @param buf    The buffer.
+   * @param offset The position to write the table at.
+   */
+  void write(ByteBuffer buf, int offset)
+  {
+    for (String str : indices.keySet()) {
+      for (int i = 0; i < str.length(); ++i) {
+        buf.put(offset++, (byte) str.charAt(i));
+      }
+      buf.put(offset++, (byte) 0);
+    }
+  }
+}
@@ -22,6 +22,11 @@ public enum TransformType
     this.value = value;
   }
 
+  public int getValue()
+  {
+    return value;
+  }
+
   public static TransformType getByValue(int value)
   {
     for (TransformType tt : TransformType.values()) {
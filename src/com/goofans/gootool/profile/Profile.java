@@ -5,9 +5,11 @@
 
 package com.goofans.gootool.profile;
 
-import java.util.StringTokenizer;
+import net.infotrek.util.EncodingUtil;
+
 import java.util.List;
 import java.util.ArrayList;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.io.IOException;
 
@@ -23,6 +25,8 @@ public class Profile
 {
   private static final Logger log = Logger.getLogger(Profile.class.getName());
 
+  private static final char SEP = ',';
+
   public static final int FLAG_ONLINE = 1;
   public static final int FLAG_GOOCORP_UNLOCKED = 2;
   public static final int FLAG_GOOCORP_DESTROYED = 4;
@@ -43,58 +47,77 @@ public class Profile
 
   private final Tower tower;
   private final int newBalls;
-  private final String data;
+
+  private final ProfileParser source;
+  private String data;
 
   public Profile(String profileData) throws IOException
   {
-    log.finest("Constructing Profile from data: " + profileData);
+    this(parserFor(profileData));
 
     data = profileData;
+  }
 
-    StringTokenizer tok = new StringTokenizer(profileData, ",");
+  /**
+   * Reads a profile directly from the profile data.
+   *
+   * @param parser A parser over this profile's part of the profile data.
+   * @throws IOException if the profile is invalid.
+   */
+  Profile(ProfileParser parser) throws IOException
+  {
+    if (log.isLoggable(Level.FINEST)) log.finest("Constructing Profile from data: " + parser.getString());
 
-    name = tok.nextToken();
-    flags = Integer.parseInt(tok.nextToken());
-    playTime = Integer.parseInt(tok.nextToken());
-    levels = Integer.parseInt(tok.nextToken());
+    source = parser;
+
+    name = parser.nextString(SEP);
+    flags = parser.nextInt(SEP);
+    playTime = parser.nextInt(SEP);
+    levels = parser.nextInt(SEP);
 
     // levels is the number of four-tuples of level data
     for (int i = 0; i < levels; ++i) {
-      String levelId = tok.nextToken();
+      String levelId = parser.nextString(SEP);
 
-      int mostBalls = Integer.parseInt(tok.nextToken());
-      int leastMoves = Integer.parseInt(tok.nextToken());
-      int leastTime = Integer.parseInt(tok.nextToken());
+      int mostBalls = parser.nextInt(SEP);
+      int leastMoves = parser.nextInt(SEP);
+      int leastTime = parser.nextInt(SEP);
       LevelAchievement levelAchievement = new LevelAchievement(levelId, mostBalls, leastMoves, leastTime);
       levelAchievements.add(levelAchievement);
     }
 
     // End of level data. Number of skipped levels, then their IDs.
-    int numSkipped = Integer.parseInt(tok.nextToken());
+    int numSkipped = parser.nextInt(SEP);
     while (numSkipped > 0) {
-      String skippedLevel = tok.nextToken();
+      String skippedLevel = parser.nextString(SEP);
       skippedLevels.add(skippedLevel);
       numSkipped--;
     }
 
-    tower = readTower(tok.nextToken());
+    tower = readTower(parser.nextToken(SEP));
 
-    onlineId = readOnlineId(tok.nextToken());
+    onlineId = readOnlineId(parser.nextString(SEP));
 
-    newBalls = Integer.parseInt(tok.nextToken());
+    newBalls = parser.nextInt(SEP);
 
-    while (tok.hasMoreTokens()) {
-      log.warning("UNUSED TOKEN at end of profileData " + tok.nextToken());
+    while (parser.hasMoreTokens(SEP)) {
+      log.warning("UNUSED TOKEN at end of profileData " + parser.nextString(SEP));
     }
   }
 
-  private Tower readTower(String storedTower) throws IOException
+  private static ProfileParser parserFor(String profileData)
+  {
+    byte[] bytes = EncodingUtil.stringToBytesUtf8(profileData);
+    return new ProfileParser(bytes, 0, bytes.length);
+  }
+
+  private Tower readTower(ProfileParser storedTower) throws IOException
   {
-    if (!storedTower.startsWith("_")) {
+    if (!storedTower.skip('_')) {
       throw new IOException("Invalid tower format");
     }
 
-    if (storedTower.length() > 1) {
+    if (!storedTower.isEmpty()) {
       return new Tower(storedTower);
     }
     else {
@@ -180,6 +203,7 @@ public class Profile
   // TODO use toData??
   public String getData()
   {
+    if (data == null) data = source.getString();
     return data;
   }
 
@@ -42,13 +42,6 @@ public class ProfileData
     readProfileData(profile);
 
     log.finest("ProfileData is " + data);
-
-    for (String key : data.keySet()) {
-      if (key.startsWith(KEY_PROFILE)) {
-        int profileIndex = Integer.valueOf(key.substring(8));
-        profiles[profileIndex] = new Profile(data.get(key));
-      }
-    }
   }
 
   private ProfileData(Profile p)
@@ -60,72 +53,20 @@ public class ProfileData
 
   private void readProfileData(byte[] profile) throws IOException
   {
-    InputStream is = new ByteArrayInputStream(profile);
+    ProfileParser parser = new ProfileParser(profile, 0, profile.length);
 
-    String key;
-    do {
-      key = readNextElement(is);
-
-      if (key != null) {
-        String value = readNextElement(is);
-        data.put(key, value);
-      }
-    } while (key != null);
-  }
+    ProfileParser key;
+    while ((key = parser.nextElement()) != null) {
+      String keyStr = key.getString();
+      ProfileParser value = parser.nextElement();
 
-  private String readNextElement(InputStream is) throws IOException
-  {
-    int length = 0;
-    int ch;
-    int sanity = 0; // prevents eternal loop reading non-profile data
-
-    while ((ch = is.read()) != ',') {
-      if (ch == -1) {
-        log.warning("EOF reading profile element!");
-        return null; // EOF
-      }
-      length = (length * 10) + (ch - '0');
-      if (sanity++ > 5) throw new IOException("Insane profile data");
-    }
-
-    if (length == 0) {
-      // end of data
-      return null;
-    }
-
-    byte[] buf = new byte[length];
-    int read = is.read(buf, 0, length);
-    if (read != length) throw new IOException("Short read, expected " + length + " but got " + read);
-
-    fixWonkyUtf8(buf);
-
-    return EncodingUtil.bytesToStringUtf8(buf);
-  }
-
-  /**
-   * Fixes up the wonky UTF-8 stored in profiles < 1.40 (#0000270).
-   *
-   * @param buf The buffer to fixup
-   */
-  private void fixWonkyUtf8(byte[] buf)
-  {
-    // Go through and restore high-order bits for UTF-8 sequences
-
-    int nskip = 0;
-
-    for (int i = 0; i < buf.length; ++i) {
-      if (nskip > 0) {
-        buf[i] |= 0x80; // set top bit
-        nskip--;
-      }
-      else if ((buf[i] & 0xE0) == 0xC0) { // 110yyyyy: U+0080 to U+07FF
-        nskip = 1;
-      }
-      else if ((buf[i] & 0xF0) == 0xE0) { // 1110zzzz: U+0800 to U+FFFF
-        nskip = 2;
+      if (keyStr.startsWith(KEY_PROFILE)) {
+        if (value == null) throw new IOException("Missing data for " + keyStr);
+        int profileIndex = Integer.valueOf(keyStr.substring(8));
+        profiles[profileIndex] = new Profile(value);
       }
-      else if ((buf[i] & 0xF8) == 0xF0) { // 11110www: U+010000 to U+10FFFF
-        nskip = 3;
+      else {
+        data.put(keyStr, value == null ? null : value.getString());
       }
     }
   }
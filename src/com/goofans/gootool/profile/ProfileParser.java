@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.profile;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.logging.Logger;
+
+/**
+ * A cursor over a range of the decoded profile data, which reads tokens directly from the bytes.
+ * <p/>
+ * Numbers are parsed straight from the bytes without creating a String for them, and nested structures (the profiles
+ * within the profile file, and the tower within a profile) are read with a parser over a sub-range of the same array,
+ * so the profile data is walked exactly once and never copied.
+ * <p/>
+ * Tokens are read like {@link java.util.StringTokenizer}: consecutive delimiters are treated as one, so empty tokens
+ * are skipped.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+class ProfileParser
+{
+  private static final Logger log = Logger.getLogger(ProfileParser.class.getName());
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /* Up to 15 digits always fit exactly in a double's mantissa, so dividing by an exact power of ten rounds correctly */
+  private static final int MAX_FAST_DIGITS = 15;
+  private static final double[] POWERS_OF_TEN = {
+          1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+  };
+
+  private final byte[] buf;
+  private final int start;
+  private final int end;
+  private int pos;
+
+  /**
+   * Creates a parser over the given part of a buffer.
+   *
+   * @param buf    The profile data.
+   * @param offset The offset of the first byte to parse.
+   * @param length The number of bytes to parse.
+   */
+  ProfileParser(byte[] buf, int offset, int length)
+  {
+    this.buf = buf;
+    this.start = offset;
+    this.end = offset + length;
+    this.pos = offset;
+  }
+
+  /**
+   * Returns whether the whole range has been read.
+   *
+   * @return true if there are no bytes left.
+   */
+  boolean isEmpty()
+  {
+    return pos >= end;
+  }
+
+  /**
+   * Returns the whole range as a string, regardless of how much has been read.
+   *
+   * @return The decoded range.
+   */
+  String getString()
+  {
+    return new String(buf, start, end - start, UTF8);
+  }
+
+  /**
+   * Skips the given byte if it is the next one.
+   *
+   * @param b The byte to skip.
+   * @return true if the byte was there and has been skipped.
+   */
+  boolean skip(char b)
+  {
+    if (pos < end && buf[pos] == b) {
+      pos++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Reads the next length-prefixed element of a profile file ("length,bytes"), and fixes up its UTF-8.
+   *
+   * @return A parser over the element, or null at the end of the data.
+   * @throws IOException if the data is not a profile file.
+   */
+  ProfileParser nextElement() throws IOException
+  {
+    int length = 0;
+    int sanity = 0; // prevents eternal loop reading non-profile data
+
+    int ch;
+    while ((ch = (pos < end ? buf[pos++] & 0xff : -1)) != ',') {
+      if (ch == -1) {
+        log.warning("EOF reading profile element!");
+        return null; // EOF
+      }
+      length = (length * 10) + (ch - '0');
+      if (sanity++ > 5) throw new IOException("Insane profile data");
+    }
+
+    if (length == 0) {
+      // end of data
+      return null;
+    }
+
+    if (length > end - pos) throw new IOException("Short read, expected " + length + " but got " + (end - pos));
+
+    fixWonkyUtf8(pos, length);
+
+    ProfileParser element = new ProfileParser(buf, pos, length);
+    pos += length;
+    return element;
+  }
+
+  /**
+   * Fixes up the wonky UTF-8 stored in profiles < 1.40 (#0000270).
+   */
+  private void fixWonkyUtf8(int offset, int length)
+  {
+    // Go through and restore high-order bits for UTF-8 sequences
+
+    int nskip = 0;
+
+    for (int i = offset; i < offset + length; ++i) {
+      if (nskip > 0) {
+        buf[i] |= 0x80; // set top bit
+        nskip--;
+      }
+      else if ((buf[i] & 0xE0) == 0xC0) { // 110yyyyy: U+0080 to U+07FF
+        nskip = 1;
+      }
+      else if ((buf[i] & 0xF0) == 0xE0) { // 1110zzzz: U+0800 to U+FFFF
+        nskip = 2;
+      }
+      else if ((buf[i] & 0xF8) == 0xF0) { // 11110www: U+010000 to U+10FFFF
+        nskip = 3;
+      }
+    }
+  }
+
+  /**
+   * Returns whether there is another token.
+   *
+   * @param delim The delimiter between tokens.
+   * @return true if there is another token.
+   */
+  boolean hasMoreTokens(char delim)
+  {
+    skipDelimiters(delim);
+    return pos < end;
+  }
+
+  private void skipDelimiters(char delim)
+  {
+    while (pos < end && buf[pos] == delim) {
+      pos++;
+    }
+  }
+
+  /**
+   * Moves to the start of the next token and returns the offset just past its end. The caller must set {@link #pos} to
+   * the returned offset once it has read the token.
+   */
+  private int startToken(char delim) throws IOException
+  {
+    skipDelimiters(delim);
+    if (pos >= end) throw new IOException("Unexpected end of profile data");
+
+    int tokenEnd = pos;
+    while (tokenEnd < end && buf[tokenEnd] != delim) {
+      tokenEnd++;
+    }
+    return tokenEnd;
+  }
+
+  /**
+   * Returns a parser over the next token, for reading a nested structure.
+   *
+   * @param delim The delimiter between tokens.
+   * @return The parser over the token.
+   * @throws IOException if there are no more tokens.
+   */
+  ProfileParser nextToken(char delim) throws IOException
+  {
+    int tokenEnd = startToken(delim);
+    ProfileParser token = new ProfileParser(buf, pos, tokenEnd - pos);
+    pos = tokenEnd;
+    return token;
+  }
+
+  /**
+   * Reads the next token as a string.
+   *
+   * @param delim The delimiter between tokens.
+   * @return The token.
+   * @throws IOException if there are no more tokens.
+   */
+  String nextString(char delim) throws IOException
+  {
+    return nextString(delim, null);
+  }
+
+  /**
+   * Reads the next token as a string, returning the given string instead of a new one if the token is the same. This
+   * avoids creating a new string for every ball type in a tower.
+   *
+   * @param delim The delimiter between tokens.
+   * @param reuse The string to return if it matches the token, or null.
+   * @return The token.
+   * @throws IOException if there are no more tokens.
+   */
+  String nextString(char delim, String reuse) throws IOException
+  {
+    int tokenEnd = startToken(delim);
+    int tokenStart = pos;
+    pos = tokenEnd;
+
+    if (reuse != null && matches(tokenStart, tokenEnd, reuse)) return reuse;
+    return new String(buf, tokenStart, tokenEnd - tokenStart, UTF8);
+  }
+
+  private boolean matches(int tokenStart, int tokenEnd, String s)
+  {
+    if (s.length() != tokenEnd - tokenStart) return false;
+
+    for (int i = 0; i < s.length(); ++i) {
+      char ch = s.charAt(i);
+      if (ch >= 0x80 || buf[tokenStart + i] != ch) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Reads the next token as a decimal integer.
+   *
+   * @param delim The delimiter between tokens.
+   * @return The integer.
+   * @throws IOException if there are no more tokens, or the token isn't an integer.
+   */
+  int nextInt(char delim) throws IOException
+  {
+    int tokenEnd = startToken(delim);
+    int tokenStart = pos;
+    pos = tokenEnd;
+
+    int i = tokenStart;
+    boolean negative = false;
+    if (buf[i] == '-' || buf[i] == '+') {
+      negative = buf[i] == '-';
+      i++;
+    }
+    if (i == tokenEnd) throw invalidNumber(tokenStart, tokenEnd);
+
+    long value = 0;
+    for (; i < tokenEnd; ++i) {
+      int digit = buf[i] - '0';
+      if (digit < 0 || digit > 9) throw invalidNumber(tokenStart, tokenEnd);
+
+      value = (value * 10) + digit;
+      if (value > Integer.MAX_VALUE + 1L) throw invalidNumber(tokenStart, tokenEnd);
+    }
+
+    if (negative) value = -value;
+    if (value > Integer.MAX_VALUE) throw invalidNumber(tokenStart, tokenEnd);
+    return (int) value;
+  }
+
+  /**
+   * Reads the next token as a decimal floating point number. Plain numbers such as "-12.34" are parsed directly from
+   * the bytes; anything else is handed to {@link Double#parseDouble(String)}. Either way the result is the same.
+   *
+   * @param delim The delimiter between tokens.
+   * @return The number.
+   * @throws IOException if there are no more tokens, or the token isn't a number.
+   */
+  double nextDouble(char delim) throws IOException
+  {
+    int tokenEnd = startToken(delim);
+    int tokenStart = pos;
+    pos = tokenEnd;
+
+    int i = tokenStart;
+    boolean negative = false;
+    if (buf[i] == '-' || buf[i] == '+') {
+      negative = buf[i] == '-';
+      i++;
+    }
+
+    long mantissa = 0;
+    int digits = 0;
+    int fractionDigits = 0;
+    boolean seenPoint = false;
+    boolean simple = true;
+
+    for (; i < tokenEnd; ++i) {
+      int ch = buf[i];
+      if (ch >= '0' && ch <= '9') {
+        if (++digits > MAX_FAST_DIGITS) {
+          simple = false;
+          break;
+        }
+        mantissa = (mantissa * 10) + (ch - '0');
+        if (seenPoint) fractionDigits++;
+      }
+      else if (ch == '.' && !seenPoint) {
+        seenPoint = true;
+      }
+      else {
+        simple = false;
+        break;
+      }
+    }
+
+    if (simple && digits > 0) {
+      double value = mantissa / POWERS_OF_TEN[fractionDigits];
+      return negative ? -value : value;
+    }
+
+    try {
+      return Double.parseDouble(new String(buf, tokenStart, tokenEnd - tokenStart, UTF8));
+    }
+    catch (NumberFormatException e) {
+      throw invalidNumber(tokenStart, tokenEnd);
+    }
+  }
+
+  private IOException invalidNumber(int tokenStart, int tokenEnd)
+  {
+    return new IOException("Invalid number \"" + new String(buf, tokenStart, tokenEnd - tokenStart, UTF8) + "\" in profile data");
+  }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.profile;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregates statistics over many profiles, and formats them as CSV.
+ * <p/>
+ * Only the aggregates are kept, so any number of profiles can be added. The OCD ("obsessive completion distinction")
+ * criteria must be set up before any profiles are added; after that, {@link #countOcd(Profile)} and
+ * {@link #toCsvRow(String, int, Profile)} may be called from any thread. {@link #add(Profile)} and the write methods
+ * must only be called from one thread at a time.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+public class ProfileStatistics
+{
+  public static final String PROFILE_CSV_HEADER = "file,profile,name,flags,playTime,levels,ocdLevels,towerHeight,totalBalls,nodeBalls,strandBalls";
+
+  private static final String OCD_BALLS = "balls";
+  private static final String OCD_MOVES = "moves";
+  private static final String OCD_TIME = "time";
+
+  private final Map<String, Ocd> ocds = new HashMap<String, Ocd>();
+
+  private final Map<String, LevelStats> levels = new TreeMap<String, LevelStats>();
+  private final Map<Integer, Integer> heightHistogram = new TreeMap<Integer, Integer>();
+
+  private int numProfiles;
+  private int numTowers;
+  private long totalBalls;
+  private long totalNodeBalls;
+  private long totalStrandBalls;
+  private double totalHeight;
+  private double maxHeight;
+
+  /**
+   * Sets the OCD criterion for a level, as found in the "ocd" attribute of the level in the island file.
+   *
+   * @param levelId The level ID, e.g. "GoingUp".
+   * @param ocd     The criterion, e.g. "balls,13", "moves,15" or "time,20".
+   * @throws IOException if the criterion is not understood.
+   */
+  public void setOcd(String levelId, String ocd) throws IOException
+  {
+    int comma = ocd.indexOf(',');
+    if (comma < 0) throw new IOException("Invalid OCD criterion " + ocd + " for level " + levelId);
+
+    String type = ocd.substring(0, comma).trim();
+    if (!type.equals(OCD_BALLS) && !type.equals(OCD_MOVES) && !type.equals(OCD_TIME)) {
+      throw new IOException("Unknown OCD type " + type + " for level " + levelId);
+    }
+
+    try {
+      ocds.put(levelId, new Ocd(type, Integer.parseInt(ocd.substring(comma + 1).trim())));
+    }
+    catch (NumberFormatException e) {
+      throw new IOException("Invalid OCD criterion " + ocd + " for level " + levelId);
+    }
+  }
+
+  /**
+   * Returns whether any OCD criteria have been set.
+   *
+   * @return true if OCD completion can be counted.
+   */
+  public boolean hasOcd()
+  {
+    return !ocds.isEmpty();
+  }
+
+  /**
+   * Returns whether the achievement meets the level's OCD criterion.
+   *
+   * @param achievement The achievement.
+   * @return true if the OCD was achieved, false if not or if the level has no known criterion.
+   */
+  public boolean isOcd(LevelAchievement achievement)
+  {
+    Ocd ocd = ocds.get(achievement.getLevelId());
+    if (ocd == null) return false;
+
+    if (ocd.type.equals(OCD_BALLS)) return achievement.getMostBalls() >= ocd.value;
+    if (ocd.type.equals(OCD_MOVES)) return achievement.getLeastMoves() <= ocd.value;
+    return achievement.getLeastTime() <= ocd.value;
+  }
+
+  /**
+   * Counts the levels on which the profile has achieved OCD.
+   *
+   * @param profile The profile.
+   * @return The number of levels.
+   */
+  public int countOcd(Profile profile)
+  {
+    int count = 0;
+    for (LevelAchievement achievement : profile.getLevelAchievements()) {
+      if (isOcd(achievement)) count++;
+    }
+    return count;
+  }
+
+  /**
+   * Formats one profile as a row of CSV matching {@link #PROFILE_CSV_HEADER}.
+   *
+   * @param file         The name of the file the profile came from.
+   * @param profileIndex The profile's slot in the file.
+   * @param profile      The profile.
+   * @return The row, without a line terminator.
+   */
+  public String toCsvRow(String file, int profileIndex, Profile profile)
+  {
+    Tower tower = profile.getTower();
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(csv(file)).append(',');
+    sb.append(profileIndex).append(',');
+    sb.append(csv(profile.getName())).append(',');
+    sb.append(profile.getFlags()).append(',');
+    sb.append(profile.getPlayTime()).append(',');
+    sb.append(profile.getLevelAchievements().size()).append(',');
+    sb.append(hasOcd() ? String.valueOf(countOcd(profile)) : "").append(',');
+    if (tower != null) {
+      sb.append(tower.getHeight()).append(',');
+      sb.append(tower.getTotalBalls()).append(',');
+      sb.append(tower.getUsedNodeBalls()).append(',');
+      sb.append(tower.getUsedStrandBalls());
+    }
+    else {
+      sb.append(",,,");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Adds a profile to the aggregates.
+   *
+   * @param profile The profile.
+   */
+  public void add(Profile profile)
+  {
+    numProfiles++;
+
+    for (LevelAchievement achievement : profile.getLevelAchievements()) {
+      LevelStats stats = levels.get(achievement.getLevelId());
+      if (stats == null) {
+        stats = new LevelStats();
+        levels.put(achievement.getLevelId(), stats);
+      }
+      stats.add(achievement, isOcd(achievement));
+    }
+
+    Tower tower = profile.getTower();
+    if (tower != null) {
+      numTowers++;
+      totalBalls += tower.getTotalBalls();
+      totalNodeBalls += tower.getUsedNodeBalls();
+      totalStrandBalls += tower.getUsedStrandBalls();
+      totalHeight += tower.getHeight();
+      if (tower.getHeight() > maxHeight) maxHeight = tower.getHeight();
+
+      Integer bucket = (int) Math.floor(tower.getHeight());
+      Integer count = heightHistogram.get(bucket);
+      heightHistogram.put(bucket, count == null ? 1 : count + 1);
+    }
+  }
+
+  public int getNumProfiles()
+  {
+    return numProfiles;
+  }
+
+  /**
+   * Writes the per-level aggregates as CSV.
+   *
+   * @param out Where to write the CSV.
+   */
+  public void writeLevels(PrintWriter out)
+  {
+    out.println("level,completed,bestBalls,meanBalls,bestMoves,meanMoves,bestTime,meanTime,ocd,ocdRate");
+    for (Map.Entry<String, LevelStats> entry : levels.entrySet()) {
+      LevelStats stats = entry.getValue();
+      out.print(csv(entry.getKey()));
+      out.print(',');
+      out.print(stats.completed);
+      out.print(',');
+      out.print(stats.bestBalls);
+      out.print(',');
+      out.print(stats.totalBalls / (double) stats.completed);
+      out.print(',');
+      out.print(stats.bestMoves);
+      out.print(',');
+      out.print(stats.totalMoves / (double) stats.completed);
+      out.print(',');
+      out.print(stats.bestTime);
+      out.print(',');
+      out.print(stats.totalTime / (double) stats.completed);
+      out.print(',');
+      if (ocds.containsKey(entry.getKey())) {
+        out.print(stats.ocd);
+        out.print(',');
+        out.print(stats.ocd / (double) stats.completed);
+      }
+      else {
+        out.print(',');
+      }
+      out.println();
+    }
+  }
+
+  /**
+   * Writes the distribution of tower heights as CSV, in buckets of one metre.
+   *
+   * @param out Where to write the CSV.
+   */
+  public void writeHeights(PrintWriter out)
+  {
+    out.println("heightFrom,heightTo,towers");
+    for (Map.Entry<Integer, Integer> entry : heightHistogram.entrySet()) {
+      out.print(entry.getKey());
+      out.print(',');
+      out.print(entry.getKey() + 1);
+      out.print(',');
+      out.println(entry.getValue());
+    }
+  }
+
+  /**
+   * Writes the overall totals as CSV.
+   *
+   * @param out Where to write the CSV.
+   */
+  public void writeSummary(PrintWriter out)
+  {
+    out.println("statistic,value");
+    out.println("profiles," + numProfiles);
+    out.println("towers," + numTowers);
+    out.println("totalBalls," + totalBalls);
+    out.println("totalNodeBalls," + totalNodeBalls);
+    out.println("totalStrandBalls," + totalStrandBalls);
+    out.println("meanBalls," + (numTowers == 0 ? 0 : totalBalls / (double) numTowers));
+    out.println("meanHeight," + (numTowers == 0 ? 0 : totalHeight / numTowers));
+    out.println("maxHeight," + maxHeight);
+  }
+
+  private static String csv(String s)
+  {
+    if (s == null) return "";
+    if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) return s;
+    return '"' + s.replace("\"", "\"\"") + '"';
+  }
+
+  private static class Ocd
+  {
+    private final String type;
+    private final int value;
+
+    private Ocd(String type, int value)
+    {
+      this.type = type;
+      this.value = value;
+    }
+  }
+
+  private static class LevelStats
+  {
+    private int completed;
+    private int ocd;
+    private int bestBalls = Integer.MIN_VALUE;
+    private int bestMoves = Integer.MAX_VALUE;
+    private int bestTime = Integer.MAX_VALUE;
+    private long totalBalls;
+    private long totalMoves;
+    private long totalTime;
+
+    private void add(LevelAchievement achievement, boolean isOcd)
+    {
+      completed++;
+      if (isOcd) ocd++;
+
+      bestBalls = Math.max(bestBalls, achievement.getMostBalls());
+      bestMoves = Math.min(bestMoves, achievement.getLeastMoves());
+      bestTime = Math.min(bestTime, achievement.getLeastTime());
+      totalBalls += achievement.getMostBalls();
+      totalMoves += achievement.getLeastMoves();
+      totalTime += achievement.getLeastTime();
+    }
+  }
+}
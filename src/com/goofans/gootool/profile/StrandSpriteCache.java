@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.profile;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the strand image already rotated and stretched, so that drawing a strand is a plain image copy instead of a
+ * transformed draw.
+ * <p/>
+ * The angle is quantised to whole degrees and the length to whole pixels. At the lengths strands are drawn at, this
+ * moves the far end of a strand by less than two pixels, which is hidden under the ball drawn there.
+ * <p/>
+ * The cache is shared by every renderer using the same {@link TowerSprites}, so it fills up over a batch of towers. Once
+ * it holds {@link #MAX_SPRITES} sprites, strands that miss are drawn directly instead.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+class StrandSpriteCache
+{
+  private static final int MAX_SPRITES = 4096;
+  private static final int MAX_LENGTH = 0xffff;
+
+  private final BufferedImage strandImage;
+  private final int strandHeight;
+  private final int strandXOffset;
+
+  private final Map<Integer, Sprite> sprites = new ConcurrentHashMap<Integer, Sprite>();
+
+  StrandSpriteCache(BufferedImage strandImage)
+  {
+    this.strandImage = strandImage;
+
+    // Strands are drawn with origin on their start point, and stretched
+    strandHeight = strandImage.getHeight();
+    strandXOffset = -(strandImage.getWidth() / 2);
+  }
+
+  /**
+   * Draws a strand between two points.
+   *
+   * @param g     The graphics to draw on. Its transform is left untouched.
+   * @param start The start of the strand, in pixels.
+   * @param end   The end of the strand, in pixels.
+   */
+  void drawStrand(Graphics2D g, Point start, Point end)
+  {
+    int dx = end.x - start.x;
+    int dy = end.y - start.y;
+
+    int degrees = (int) Math.round(Math.toDegrees(Math.atan2(dy, dx))) - 90;
+    if (degrees < 0) degrees += 360;
+    int length = (int) Math.round(Math.sqrt((dx * dx) + (dy * dy)));
+
+    if (length > MAX_LENGTH) {
+      drawDirect(g, start, Math.toRadians(degrees), length);
+      return;
+    }
+
+    Integer key = (degrees << 16) | length;
+    Sprite sprite = sprites.get(key);
+    if (sprite == null) {
+      if (sprites.size() >= MAX_SPRITES) {
+        drawDirect(g, start, Math.toRadians(degrees), length);
+        return;
+      }
+
+      // Two threads may build the same sprite at once; they're identical, so it doesn't matter which is kept
+      sprite = createSprite(Math.toRadians(degrees), length);
+      sprites.put(key, sprite);
+    }
+
+    if (sprite.image != null) {
+      g.drawImage(sprite.image, start.x + sprite.x, start.y + sprite.y, null);
+    }
+  }
+
+  private AffineTransform getTransform(double angle, int length)
+  {
+    AffineTransform transform = AffineTransform.getRotateInstance(angle);
+    transform.scale(1, length / (double) strandHeight); // don't stretch the "width"
+    return transform;
+  }
+
+  private void drawDirect(Graphics2D g, Point start, double angle, int length)
+  {
+    AffineTransform transform = AffineTransform.getTranslateInstance(start.x, start.y);
+    transform.concatenate(getTransform(angle, length));
+    transform.translate(strandXOffset, 0);
+    g.drawImage(strandImage, transform, null);
+  }
+
+  private Sprite createSprite(double angle, int length)
+  {
+    AffineTransform transform = getTransform(angle, length);
+    Rectangle bounds = transform.createTransformedShape(new Rectangle(strandXOffset, 0, strandImage.getWidth(), strandHeight)).getBounds();
+
+    Sprite sprite = new Sprite();
+    sprite.x = bounds.x;
+    sprite.y = bounds.y;
+
+    if (bounds.width > 0 && bounds.height > 0) {
+      sprite.image = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB_PRE);
+      Graphics2D g = sprite.image.createGraphics();
+      g.translate(-bounds.x, -bounds.y);
+      g.transform(transform);
+      g.drawImage(strandImage, strandXOffset, 0, null);
+      g.dispose();
+    }
+    return sprite;
+  }
+
+  /**
+   * Returns the number of sprites in the cache.
+   *
+   * @return The number of cached sprites.
+   */
+  int size()
+  {
+    return sprites.size();
+  }
+
+  /**
+   * A pre-transformed strand, and where its top-left corner lies relative to the strand's start point.
+   */
+  private static class Sprite
+  {
+    private BufferedImage image;
+    private int x;
+    private int y;
+  }
+}
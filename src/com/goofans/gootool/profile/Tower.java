@@ -5,9 +5,14 @@
 
 package com.goofans.gootool.profile;
 
-import java.util.StringTokenizer;
+import net.infotrek.util.EncodingUtil;
+
+import java.awt.geom.Rectangle2D;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.ArrayList;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.io.IOException;
 import java.text.NumberFormat;
@@ -15,6 +20,10 @@ import java.text.DecimalFormat;
 
 /**
  * A user's World of Goo Corporation tower.
+ * <p/>
+ * The balls and strands are stored column by column in parallel arrays, so a tower is a handful of objects no matter
+ * how many balls it has. {@link #getBalls()} and {@link #getStrands()} return views over the arrays; code that walks
+ * every ball should prefer the indexed accessors such as {@link #getBallX(int)}, which don't create any objects.
  * 
  * @author David Croft (davidc@goofans.com)
  * @version $Id$
@@ -26,107 +35,378 @@ public class Tower
   private static final String TOWERELEMENT_BALL = "b";
   private static final String TOWERELEMENT_STRAND = "s";
 
-  private final List<Ball> balls;
-  private final List<Strand> strands;
+  // Most towers are small, and empty in most profiles; the arrays grow as needed for bigger ones
+  private static final int INITIAL_CAPACITY = 16;
+
+  /* Balls */
+  private int numBalls;
+  private String[] ballTypes = new String[INITIAL_CAPACITY];
+  private double[] ballX = new double[INITIAL_CAPACITY];
+  private double[] ballY = new double[INITIAL_CAPACITY];
+  private double[] ballXMomentum = new double[INITIAL_CAPACITY];
+  private double[] ballYMomentum = new double[INITIAL_CAPACITY];
+  private final BitSet ballInStructure = new BitSet(INITIAL_CAPACITY);
+
+  /* Strands */
+  private int numStrands;
+  private String[] strandTypes = new String[INITIAL_CAPACITY];
+  private int[] strandFirstBall = new int[INITIAL_CAPACITY];
+  private int[] strandSecondBall = new int[INITIAL_CAPACITY];
+  private double[] strandConnectionStrength = new double[INITIAL_CAPACITY];
+  private double[] strandLength = new double[INITIAL_CAPACITY];
+  private final BitSet strandBallUsed = new BitSet(INITIAL_CAPACITY);
+
+  private final List<Ball> balls = new BallList();
+  private final List<Strand> strands = new StrandList();
 
   private transient double height;
   private transient int usedStrandBalls;
   private transient int usedNodeBalls;
   private transient int totalBalls;
   private static final String TOWER_SEP = ":";
+  private static final char SEP = ':';
 
   public Tower(String towerStr) throws IOException
   {
-    log.fine("Constructing tower from " + towerStr);
-
-    if (towerStr.charAt(0) == '_') {
-      towerStr = towerStr.substring(1);
-    }
+    this(parserFor(towerStr));
+  }
 
-    balls = new ArrayList<Ball>(300);
-    strands = new ArrayList<Strand>(300);
+  /**
+   * Reads a tower directly from the profile data.
+   *
+   * @param parser A parser over the tower's part of the profile data, after the leading "_".
+   * @throws IOException if the tower is invalid.
+   */
+  Tower(ProfileParser parser) throws IOException
+  {
+    if (log.isLoggable(Level.FINE)) log.fine("Constructing tower from " + parser.getString());
 
-    usedStrandBalls = 0;
-    totalBalls = 0;
+    String type = null;
+    String ballType = null;
+    String strandType = null;
 
-    StringTokenizer tok = new StringTokenizer(towerStr, TOWER_SEP);
-    while (tok.hasMoreTokens()) {
-      String type = tok.nextToken();
+    while (parser.hasMoreTokens(SEP)) {
+      type = parser.nextString(SEP, type);
       if (type.equals(TOWERELEMENT_BALL)) {
-        Ball ball = new Ball();
-        ball.ballType = tok.nextToken();
-        ball.xPos = Double.parseDouble(tok.nextToken());
-        ball.yPos = Double.parseDouble(tok.nextToken());
-        ball.xMomentum = Double.parseDouble(tok.nextToken());
-        ball.yMomentum = Double.parseDouble(tok.nextToken());
-        balls.add(ball);
-        totalBalls++;
+        if (numBalls == ballX.length) growBalls();
+
+        int i = numBalls;
+        ballTypes[i] = ballType = parser.nextString(SEP, ballType);
+        ballX[i] = parser.nextDouble(SEP);
+        ballY[i] = parser.nextDouble(SEP);
+        ballXMomentum[i] = parser.nextDouble(SEP);
+        ballYMomentum[i] = parser.nextDouble(SEP);
+        numBalls++;
       }
       else if (type.equals(TOWERELEMENT_STRAND)) {
-        Strand strand = new Strand();
-        strand.strandType = tok.nextToken();
-        strand.firstBall = balls.get(Integer.parseInt(tok.nextToken()));
-        strand.secondBall = balls.get(Integer.parseInt(tok.nextToken()));
-        strand.connectionStrength = Double.parseDouble(tok.nextToken());
-        strand.length = Double.parseDouble(tok.nextToken());
-        strand.ballUsed = "1".equals(tok.nextToken());
-        if (strand.ballUsed) {
-          usedStrandBalls++;
-          totalBalls++;
+        if (numStrands == strandFirstBall.length) growStrands();
+
+        int i = numStrands;
+        strandTypes[i] = strandType = parser.nextString(SEP, strandType);
+        strandFirstBall[i] = checkBall(parser.nextInt(SEP));
+        strandSecondBall[i] = checkBall(parser.nextInt(SEP));
+        strandConnectionStrength[i] = parser.nextDouble(SEP);
+        strandLength[i] = parser.nextDouble(SEP);
+        if (parser.nextInt(SEP) == 1) {
+          strandBallUsed.set(i);
         }
-        strands.add(strand);
+        numStrands++;
 
-        strand.firstBall.inStructure = true;
-        strand.secondBall.inStructure = true;
+        ballInStructure.set(strandFirstBall[i]);
+        ballInStructure.set(strandSecondBall[i]);
       }
       else {
         throw new IOException("Invalid tower element type " + type);
       }
     }
 
+    usedStrandBalls = strandBallUsed.cardinality();
+    totalBalls = numBalls + usedStrandBalls;
+
     // Only use attached balls to calculate height
     height = 0;
     usedNodeBalls = 0;
-    for (Ball ball : balls) {
-      if (ball.inStructure) {
-        usedNodeBalls++;
-        if (ball.yPos > height) height = ball.yPos;
-      }
+    for (int i = ballInStructure.nextSetBit(0); i >= 0; i = ballInStructure.nextSetBit(i + 1)) {
+      usedNodeBalls++;
+      if (ballY[i] > height) height = ballY[i];
     }
 
     height /= 100;
   }
 
+  private static ProfileParser parserFor(String towerStr)
+  {
+    byte[] bytes = EncodingUtil.stringToBytesUtf8(towerStr);
+    ProfileParser parser = new ProfileParser(bytes, 0, bytes.length);
+    parser.skip('_');
+    return parser;
+  }
+
+  private void growBalls()
+  {
+    int capacity = ballX.length * 2;
+    ballTypes = Arrays.copyOf(ballTypes, capacity);
+    ballX = Arrays.copyOf(ballX, capacity);
+    ballY = Arrays.copyOf(ballY, capacity);
+    ballXMomentum = Arrays.copyOf(ballXMomentum, capacity);
+    ballYMomentum = Arrays.copyOf(ballYMomentum, capacity);
+  }
+
+  private void growStrands()
+  {
+    int capacity = strandFirstBall.length * 2;
+    strandTypes = Arrays.copyOf(strandTypes, capacity);
+    strandFirstBall = Arrays.copyOf(strandFirstBall, capacity);
+    strandSecondBall = Arrays.copyOf(strandSecondBall, capacity);
+    strandConnectionStrength = Arrays.copyOf(strandConnectionStrength, capacity);
+    strandLength = Arrays.copyOf(strandLength, capacity);
+  }
+
+  private int checkBall(int index) throws IOException
+  {
+    if (index < 0 || index >= numBalls) throw new IOException("Strand refers to missing ball " + index);
+    return index;
+  }
+
+  /**
+   * A view of one ball in the tower.
+   */
   public class Ball
   {
-    public String ballType;
-    public double xPos;
-    public double yPos;
-    public double xMomentum;
-    public double yMomentum;
-    public boolean inStructure;
+    private final int index;
+
+    private Ball(int index)
+    {
+      this.index = index;
+    }
+
+    public int getIndex()
+    {
+      return index;
+    }
+
+    public String getBallType()
+    {
+      return ballTypes[index];
+    }
+
+    public double getX()
+    {
+      return ballX[index];
+    }
+
+    public double getY()
+    {
+      return ballY[index];
+    }
+
+    public double getXMomentum()
+    {
+      return ballXMomentum[index];
+    }
+
+    public double getYMomentum()
+    {
+      return ballYMomentum[index];
+    }
+
+    public boolean isInStructure()
+    {
+      return ballInStructure.get(index);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      return o instanceof Ball && ((Ball) o).index == index && ((Ball) o).getTower() == Tower.this;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return index;
+    }
+
+    private Tower getTower()
+    {
+      return Tower.this;
+    }
   }
 
+  /**
+   * A view of one strand in the tower.
+   */
   public class Strand
   {
-    public String strandType;
-    public Ball firstBall;
-    public Ball secondBall;
-    public double connectionStrength;
-    public double length;
-    public boolean ballUsed;
+    private final int index;
+
+    private Strand(int index)
+    {
+      this.index = index;
+    }
+
+    public int getIndex()
+    {
+      return index;
+    }
+
+    public String getStrandType()
+    {
+      return strandTypes[index];
+    }
+
+    public Ball getFirstBall()
+    {
+      return new Ball(strandFirstBall[index]);
+    }
+
+    public Ball getSecondBall()
+    {
+      return new Ball(strandSecondBall[index]);
+    }
+
+    public double getConnectionStrength()
+    {
+      return strandConnectionStrength[index];
+    }
+
+    public double getLength()
+    {
+      return strandLength[index];
+    }
+
+    public boolean isBallUsed()
+    {
+      return strandBallUsed.get(index);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      return o instanceof Strand && ((Strand) o).index == index && ((Strand) o).getTower() == Tower.this;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return index;
+    }
+
+    private Tower getTower()
+    {
+      return Tower.this;
+    }
   }
 
+  private class BallList extends AbstractList<Ball>
+  {
+    @Override
+    public Ball get(int index)
+    {
+      if (index < 0 || index >= numBalls) throw new IndexOutOfBoundsException("Ball " + index + " of " + numBalls);
+      return new Ball(index);
+    }
+
+    @Override
+    public int size()
+    {
+      return numBalls;
+    }
+  }
+
+  private class StrandList extends AbstractList<Strand>
+  {
+    @Override
+    public Strand get(int index)
+    {
+      if (index < 0 || index >= numStrands) throw new IndexOutOfBoundsException("Strand " + index + " of " + numStrands);
+      return new Strand(index);
+    }
+
+    @Override
+    public int size()
+    {
+      return numStrands;
+    }
+  }
+
+  /**
+   * Returns a read-only view of the balls. Each ball is created as it is fetched.
+   *
+   * @return The balls.
+   */
   public List<Ball> getBalls()
   {
     return balls;
   }
 
+  /**
+   * Returns a read-only view of the strands. Each strand is created as it is fetched.
+   *
+   * @return The strands.
+   */
   public List<Strand> getStrands()
   {
     return strands;
   }
 
+  public int getBallCount()
+  {
+    return numBalls;
+  }
+
+  public double getBallX(int ball)
+  {
+    return ballX[ball];
+  }
+
+  public double getBallY(int ball)
+  {
+    return ballY[ball];
+  }
+
+  public boolean isBallInStructure(int ball)
+  {
+    return ballInStructure.get(ball);
+  }
+
+  public int getStrandCount()
+  {
+    return numStrands;
+  }
+
+  public int getStrandFirstBall(int strand)
+  {
+    return strandFirstBall[strand];
+  }
+
+  public int getStrandSecondBall(int strand)
+  {
+    return strandSecondBall[strand];
+  }
+
+  /**
+   * Returns the smallest rectangle, in world coordinates, holding the centres of every ball in the structure and the
+   * origin.
+   *
+   * @return The bounds, with y increasing upwards.
+   */
+  public Rectangle2D getStructureBounds()
+  {
+    double leftBound = 0, rightBound = 0, lowerBound = 0, upperBound = 0;
+
+    for (int i = ballInStructure.nextSetBit(0); i >= 0; i = ballInStructure.nextSetBit(i + 1)) {
+      double x = ballX[i];
+      double y = ballY[i];
+      if (x < leftBound) leftBound = x;
+      if (x > rightBound) rightBound = x;
+      if (y < lowerBound) lowerBound = y;
+      if (y > upperBound) upperBound = y;
+    }
+
+    return new Rectangle2D.Double(leftBound, lowerBound, rightBound - leftBound, upperBound - lowerBound);
+  }
+
   public double getHeight()
   {
     return height;
@@ -152,7 +432,7 @@ public class Tower
   @SuppressWarnings({"StringConcatenation"})
   public String toString()
   {
-    return "Tower with " + totalBalls + " balls and " + strands.size() + " strands, used " + usedNodeBalls + " node and " + usedStrandBalls + " strand balls to make height " + height;
+    return "Tower with " + totalBalls + " balls and " + numStrands + " strands, used " + usedNodeBalls + " node and " + usedStrandBalls + " strand balls to make height " + height;
   }
 
   public String toData()
@@ -162,25 +442,25 @@ public class Tower
     NumberFormat nf2dp = new DecimalFormat("0.00");
     NumberFormat nf4dp = new DecimalFormat("0.0000");
 
-    for (Ball ball : balls) {
+    for (int i = 0; i < numBalls; ++i) {
       if (data.length() > 0) data.append(TOWER_SEP);
       data.append(TOWERELEMENT_BALL).append(TOWER_SEP);
-      data.append(ball.ballType).append(TOWER_SEP);
-      data.append(nf2dp.format(ball.xPos)).append(TOWER_SEP);
-      data.append(nf2dp.format(ball.yPos)).append(TOWER_SEP);
-      data.append(nf2dp.format(ball.xMomentum)).append(TOWER_SEP);
-      data.append(nf2dp.format(ball.yMomentum));
+      data.append(ballTypes[i]).append(TOWER_SEP);
+      data.append(nf2dp.format(ballX[i])).append(TOWER_SEP);
+      data.append(nf2dp.format(ballY[i])).append(TOWER_SEP);
+      data.append(nf2dp.format(ballXMomentum[i])).append(TOWER_SEP);
+      data.append(nf2dp.format(ballYMomentum[i]));
     }
 
-    for (Strand strand : strands) {
+    for (int i = 0; i < numStrands; ++i) {
       if (data.length() > 0) data.append(TOWER_SEP);
       data.append(TOWERELEMENT_STRAND).append(TOWER_SEP);
-      data.append(strand.strandType).append(TOWER_SEP);
-      data.append(balls.indexOf(strand.firstBall)).append(TOWER_SEP);
-      data.append(balls.indexOf(strand.secondBall)).append(TOWER_SEP);
-      data.append(nf4dp.format(strand.connectionStrength)).append(TOWER_SEP);
-      data.append(nf2dp.format(strand.length)).append(TOWER_SEP);
-      data.append(strand.ballUsed ? "1" : "0");
+      data.append(strandTypes[i]).append(TOWER_SEP);
+      data.append(strandFirstBall[i]).append(TOWER_SEP);
+      data.append(strandSecondBall[i]).append(TOWER_SEP);
+      data.append(nf4dp.format(strandConnectionStrength[i])).append(TOWER_SEP);
+      data.append(nf2dp.format(strandLength[i])).append(TOWER_SEP);
+      data.append(strandBallUsed.get(i) ? "1" : "0");
     }
 
     return data.toString();
@@ -5,12 +5,12 @@
 
 package com.goofans.gootool.profile;
 
-import com.goofans.gootool.io.GameFormat;
 import com.goofans.gootool.wog.WorldOfGoo;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ImageObserver;
 import java.io.File;
@@ -46,6 +46,9 @@ public class TowerRenderer implements ImageObserver
   private BufferedImage pretty;
   private BufferedImage thumbnail;
 
+  private final TowerSprites sprites;
+  private boolean useStrandCache = true;
+
   private final BufferedImage ballImage;
   private final BufferedImage strandImage;
   private final BufferedImage groundImage;
@@ -58,47 +61,111 @@ public class TowerRenderer implements ImageObserver
   private final int strandHeight;
   private final int strandXOffset;
 
+  /**
+   * Creates a renderer for the given tower, loading the sprites from the World of Goo directory.
+   *
+   * @param t The tower to render.
+   * @throws IOException if the sprites couldn't be loaded.
+   */
   public TowerRenderer(Tower t) throws IOException
   {
-    this.t = t;
+    this(t, new TowerSprites());
+  }
 
-    WorldOfGoo worldOfGoo = WorldOfGoo.getTheInstance();
+  /**
+   * Creates a renderer for the given tower, using an already-loaded set of sprites.
+   *
+   * @param t       The tower to render.
+   * @param sprites The sprites to draw with. They may be shared with other renderers.
+   */
+  public TowerRenderer(Tower t, TowerSprites sprites)
+  {
+    this.t = t;
+    this.sprites = sprites;
 
-    // Pick up the images out of the wog folder
-    File ballFile = worldOfGoo.getGameFile("game/res/balls/Drained/body.png");
-    ballImage = GameFormat.decodeImage(ballFile);
+    ballImage = sprites.getBallImage();
 
     // Balls need to be nudged so they are centered on the given position.
     ballNudgeX = -(ballImage.getWidth() / 2);
     ballNudgeY = -(ballImage.getHeight() / 2);
 
-    File strandFile = worldOfGoo.getGameFile("game/res/balls/Drained/spring_goo.png");
-    strandImage = GameFormat.decodeImage(strandFile);
+    strandImage = sprites.getStrandImage();
 
     // Strands need to be drawn with origin on their start point, and stretched
     strandHeight = strandImage.getHeight();
     strandXOffset = -(strandImage.getWidth() / 2);
 
-    File groundFile = worldOfGoo.getGameFile("game/res/levels/wogcd/groundTile.png");
-    groundImage = GameFormat.decodeImage(groundFile);
+    groundImage = sprites.getGroundImage();
+    skyImage = sprites.getSkyImage();
+  }
 
-    File skyFile = worldOfGoo.getGameFile("game/res/levels/wogcd/skytile.png");
-    skyImage = GameFormat.decodeImage(skyFile);
+  /**
+   * Sets whether strands are drawn from the shared cache of pre-transformed strand sprites (the default), or each
+   * strand is rotated and stretched as it is drawn. The cache is faster once it has filled up, at the cost of
+   * quantising each strand's angle to a whole degree.
+   *
+   * @param useStrandCache true to draw strands from the cache.
+   */
+  public void setStrandCacheEnabled(boolean useStrandCache)
+  {
+    this.useStrandCache = useStrandCache;
   }
 
+  /**
+   * Renders the full-size, pretty and thumbnail images.
+   */
   public void render()
   {
-    // OK go through the balls and find the one furthest left, furthest right, highest, lowest
-    double leftBound = 0, rightBound = 0, lowerBound = 0, upperBound = 0;
-
-    for (Tower.Ball ball : t.getBalls()) {
-      if (ball.inStructure) {
-        if (ball.xPos < leftBound) leftBound = ball.xPos;
-        if (ball.xPos > rightBound) rightBound = ball.xPos;
-        if (ball.yPos < lowerBound) lowerBound = ball.yPos;
-        if (ball.yPos > upperBound) upperBound = ball.yPos;
-      }
+    renderThumbnail();
+  }
+
+  /**
+   * Renders only the full-size (transparent) image, if it hasn't already been rendered.
+   *
+   * @return The full-size image.
+   */
+  public BufferedImage renderFullSize()
+  {
+    if (fullSize == null) {
+      createFullSize();
     }
+    return fullSize;
+  }
+
+  /**
+   * Renders the pretty image, along with the full-size image it is built from, if it hasn't already been rendered.
+   *
+   * @return The pretty image.
+   */
+  public BufferedImage renderPretty()
+  {
+    if (pretty == null) {
+      renderFullSize();
+      createPretty();
+    }
+    return pretty;
+  }
+
+  /**
+   * Renders the thumbnail, along with the pretty and full-size images it is built from, if it hasn't already been
+   * rendered.
+   *
+   * @return The thumbnail image.
+   */
+  public BufferedImage renderThumbnail()
+  {
+    if (thumbnail == null) {
+      renderPretty();
+      createThumbnail();
+    }
+    return thumbnail;
+  }
+
+  private void createFullSize()
+  {
+    // OK go through the balls and find the one furthest left, furthest right, highest, lowest
+    Rectangle2D bounds = t.getStructureBounds();
+    double leftBound = bounds.getMinX(), rightBound = bounds.getMaxX(), lowerBound = bounds.getMinY(), upperBound = bounds.getMaxY();
 
     log.log(Level.FINER, "leftBound = " + leftBound);
     log.log(Level.FINER, "rightBound = " + rightBound);
@@ -137,31 +204,38 @@ public class TowerRenderer implements ImageObserver
 
     drawStrands(g);
     drawBalls(g);
-
-    createPretty();
-    createThumbnail();
   }
 
   private void drawStrands(Graphics2D g)
   {
+    StrandSpriteCache strandCache = sprites.getStrandCache();
+
     // Draw Strands
-    for (Tower.Strand strand : t.getStrands()) {
+    for (int i = 0; i < t.getStrandCount(); ++i) {
+      int firstBall = t.getStrandFirstBall(i);
+      int secondBall = t.getStrandSecondBall(i);
+
       //"transform to world coords" function
-      drawStrand(g,
-              getPixelCoords(strand.firstBall.xPos, strand.firstBall.yPos),
-              getPixelCoords(strand.secondBall.xPos, strand.secondBall.yPos),
-              strandImage);
+      Point start = getPixelCoords(t.getBallX(firstBall), t.getBallY(firstBall));
+      Point end = getPixelCoords(t.getBallX(secondBall), t.getBallY(secondBall));
+
+      if (useStrandCache) {
+        strandCache.drawStrand(g, start, end);
+      }
+      else {
+        drawStrand(g, start, end, strandImage);
+      }
     }
   }
 
   private void drawBalls(Graphics2D g)
   {
     // Draw balls
-    for (Tower.Ball ball : t.getBalls()) {
-      if (ball.inStructure) {
+    for (int i = 0; i < t.getBallCount(); ++i) {
+      if (t.isBallInStructure(i)) {
 //        int x = (int) (ball.xPos + xOffset);
 //        int y = (int) (yOffset - ball.yPos);
-        Point p = getPixelCoords(ball.xPos, ball.yPos);
+        Point p = getPixelCoords(t.getBallX(i), t.getBallY(i));
         drawBall(g, p);
       }
     }
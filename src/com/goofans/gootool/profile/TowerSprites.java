@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.profile;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import com.goofans.gootool.io.GameFormat;
+import com.goofans.gootool.wog.WorldOfGoo;
+
+/**
+ * The images used to draw a World of Goo Corporation tower, decoded from the World of Goo directory.
+ * <p/>
+ * The images are only ever read once loaded, so a single set can be shared by any number of {@link TowerRenderer}s,
+ * including renderers running on different threads. The set also holds the {@link StrandSpriteCache} of pre-transformed
+ * strands, so renderers sharing a set also share the strands drawn so far.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+public class TowerSprites
+{
+  private final BufferedImage ballImage;
+  private final BufferedImage strandImage;
+  private final BufferedImage groundImage;
+  private final BufferedImage skyImage;
+
+  private final StrandSpriteCache strandCache;
+
+  /**
+   * Loads the sprites from the World of Goo directory. World of Goo must already have been located.
+   *
+   * @throws IOException if any of the images couldn't be read.
+   */
+  public TowerSprites() throws IOException
+  {
+    WorldOfGoo worldOfGoo = WorldOfGoo.getTheInstance();
+
+    ballImage = decode(worldOfGoo, "game/res/balls/Drained/body.png");
+    strandImage = decode(worldOfGoo, "game/res/balls/Drained/spring_goo.png");
+    groundImage = decode(worldOfGoo, "game/res/levels/wogcd/groundTile.png");
+    skyImage = decode(worldOfGoo, "game/res/levels/wogcd/skytile.png");
+
+    strandCache = new StrandSpriteCache(strandImage);
+  }
+
+  /**
+   * Creates a sprite set from images that have already been loaded.
+   *
+   * @param ballImage   The image of a single ball.
+   * @param strandImage The image of a strand, which is stretched between the balls.
+   * @param groundImage The ground tile, drawn along the bottom of the pretty image.
+   * @param skyImage    The sky tile, drawn behind the pretty image.
+   */
+  public TowerSprites(BufferedImage ballImage, BufferedImage strandImage, BufferedImage groundImage, BufferedImage skyImage)
+  {
+    this.ballImage = ballImage;
+    this.strandImage = strandImage;
+    this.groundImage = groundImage;
+    this.skyImage = skyImage;
+
+    strandCache = new StrandSpriteCache(strandImage);
+  }
+
+  private static BufferedImage decode(WorldOfGoo worldOfGoo, String path) throws IOException
+  {
+    File file = worldOfGoo.getGameFile(path);
+    return GameFormat.decodeImage(file);
+  }
+
+  public BufferedImage getBallImage()
+  {
+    return ballImage;
+  }
+
+  public BufferedImage getStrandImage()
+  {
+    return strandImage;
+  }
+
+  public BufferedImage getGroundImage()
+  {
+    return groundImage;
+  }
+
+  public BufferedImage getSkyImage()
+  {
+    return skyImage;
+  }
+
+  StrandSpriteCache getStrandCache()
+  {
+    return strandCache;
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.siteapi;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A local copy of the user's addin ratings on GooFans, so the rating of the selected addin can be shown without asking
+ * the site.
+ * <p/>
+ * The ratings are held in memory and looked up by addin ID. The file is only written when a rating actually changes,
+ * and is replaced in one step once it has been written completely. It holds each addin ID and its vote (0-100), one
+ * after the other.
+ * <p/>
+ * The file is a cache. If it is missing, corrupt or from a different version it is treated as empty, and the ratings
+ * are downloaded again by the {@link RatingUpdateTask}.
+ * <p/>
+ * This class is thread safe.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+public class RatingCache
+{
+  private static final Logger log = Logger.getLogger(RatingCache.class.getName());
+
+  private static final int CACHE_MAGIC = 0x474d5254; // GMRT
+  private static final int CACHE_VERSION = 1;
+
+  private final File cacheFile;
+  private final Map<String, Integer> ratings = new HashMap<String, Integer>();
+
+  /**
+   * Creates an empty cache, backed by the given file. Call {@link #load()} to read the existing ratings.
+   *
+   * @param cacheFile The file the ratings are stored in, or null to keep them in memory only.
+   */
+  public RatingCache(File cacheFile)
+  {
+    this.cacheFile = cacheFile;
+  }
+
+  /**
+   * Reads the ratings from disk. A missing or unreadable file is treated as empty.
+   *
+   * @return true if the file existed and was read.
+   */
+  public synchronized boolean load()
+  {
+    ratings.clear();
+
+    if (cacheFile == null || !cacheFile.exists()) return false;
+
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+      try {
+        if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION) {
+          log.info("Ignoring rating cache with unknown format");
+          return false;
+        }
+
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+          String addinId = in.readUTF();
+          ratings.put(addinId, (int) in.readByte());
+        }
+      }
+      finally {
+        in.close();
+      }
+
+      log.fine(ratings.size() + " ratings read from cache " + cacheFile);
+      return true;
+    }
+    catch (IOException e) {
+      log.log(Level.WARNING, "Ignoring unreadable rating cache " + cacheFile, e);
+      ratings.clear();
+      return false;
+    }
+  }
+
+  /**
+   * Returns the user's rating of an addin.
+   *
+   * @param addinId The ID of the addin.
+   * @return The vote (0-100), or null if the user hasn't rated the addin.
+   */
+  public synchronized Integer getRating(String addinId)
+  {
+    return ratings.get(addinId);
+  }
+
+  /**
+   * Sets the user's rating of one addin, writing the cache if it has changed.
+   *
+   * @param addinId The ID of the addin.
+   * @param vote    The vote (0-100).
+   */
+  public synchronized void setRating(String addinId, int vote)
+  {
+    if (!isValidVote(vote)) throw new IllegalArgumentException("Invalid vote " + vote + " for " + addinId);
+
+    Integer oldVote = ratings.put(addinId, vote);
+    if (oldVote == null || oldVote != vote) {
+      saveQuietly();
+    }
+  }
+
+  /**
+   * Replaces all the user's ratings, e.g. with those from a {@link RatingListRequest}, writing the cache if they have
+   * changed.
+   *
+   * @param newRatings The votes (0-100), by addin ID. Votes out of range are ignored.
+   */
+  public synchronized void setRatings(Map<String, Integer> newRatings)
+  {
+    Map<String, Integer> validRatings = new HashMap<String, Integer>(newRatings.size());
+    for (Map.Entry<String, Integer> rating : newRatings.entrySet()) {
+      if (isValidVote(rating.getValue())) {
+        validRatings.put(rating.getKey(), rating.getValue());
+      }
+      else {
+        log.warning("Ignoring invalid vote " + rating.getValue() + " for " + rating.getKey());
+      }
+    }
+
+    if (ratings.equals(validRatings)) return;
+
+    ratings.clear();
+    ratings.putAll(validRatings);
+    saveQuietly();
+  }
+
+  private static boolean isValidVote(int vote)
+  {
+    return vote >= 0 && vote <= 100;
+  }
+
+  private void saveQuietly()
+  {
+    try {
+      save();
+    }
+    catch (IOException e) {
+      log.log(Level.SEVERE, "Unable to write rating cache " + cacheFile, e);
+    }
+  }
+
+  private void save() throws IOException
+  {
+    if (cacheFile == null) return;
+
+    File tempFile = new File(cacheFile.getPath() + ".tmp");
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try {
+      out.writeInt(CACHE_MAGIC);
+      out.writeInt(CACHE_VERSION);
+      out.writeInt(ratings.size());
+      for (Map.Entry<String, Integer> rating : ratings.entrySet()) {
+        out.writeUTF(rating.getKey());
+        out.writeByte(rating.getValue());
+      }
+    }
+    finally {
+      out.close();
+    }
+
+    try {
+      Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException e) {
+      Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    log.fine(ratings.size() + " ratings written to cache " + cacheFile);
+  }
+}
@@ -97,7 +97,7 @@ public class Utilities
    */
   public static void writeFile(File file, byte[] bytes) throws IOException
   {
-    OutputStream os = new FileOutputStream(file);
+    OutputStream os = createFileOutputStream(file);
     try {
       os.write(bytes);
     }
@@ -117,7 +117,7 @@ public class Utilities
   {
     FileChannel in = (new FileInputStream(from)).getChannel();
     try {
-      FileChannel out = (new FileOutputStream(to)).getChannel();
+      FileChannel out = createFileOutputStream(to).getChannel();
       try {
         long count = in.size();
         if (in.transferTo(0, count, out) != count) {
@@ -135,6 +135,21 @@ public class Utilities
     to.setLastModified(from.lastModified());
   }
 
+  /**
+   * Opens an output stream to the given file. Any existing file is deleted first rather than being overwritten in place.
+   * This matters if the file is a hard link (e.g. into the original game from a custom directory with linked files),
+   * since writing through it would also change the other links.
+   *
+   * @param file The file to write to.
+   * @return A stream to the new, empty file.
+   * @throws IOException if the existing file couldn't be deleted, or the new one couldn't be created.
+   */
+  public static FileOutputStream createFileOutputStream(File file) throws IOException
+  {
+    deleteFileIfExists(file);
+    return new FileOutputStream(file);
+  }
+
   /**
    * Moves the file. May not be atomic if renameTo isn't atomic on the OS or isn't supported (e.g. separate file systems).
    *
@@ -198,10 +213,23 @@ public class Utilities
    */
   public static void copyStreams(InputStream is, OutputStream os) throws IOException
   {
-    byte[] buf = new byte[BUFSIZ];
+    copyStreams(is, os, BUFSIZ);
+  }
+
+  /**
+   * Buffered copy from one stream to another, using a buffer of the given size.
+   *
+   * @param is         The input stream.
+   * @param os         The output stream.
+   * @param bufferSize The size of the buffer, in bytes.
+   * @throws IOException if the copy failed.
+   */
+  public static void copyStreams(InputStream is, OutputStream os, int bufferSize) throws IOException
+  {
+    byte[] buf = new byte[bufferSize];
 
     int numRead;
-    while ((numRead = is.read(buf, 0, BUFSIZ)) != -1) {
+    while ((numRead = is.read(buf, 0, bufferSize)) != -1) {
       os.write(buf, 0, numRead);
     }
   }
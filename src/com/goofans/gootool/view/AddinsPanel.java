@@ -20,7 +20,6 @@ import java.beans.PropertyChangeListener;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -186,7 +185,7 @@ public class AddinsPanel implements ViewComponent, PropertyChangeListener
         ratingBar.setEnabled(true);
 
         // See if we've rated this addin
-        Integer rating = ToolPreferences.getRatings().get(addin.getId());
+        Integer rating = ToolPreferences.getRating(addin.getId());
         if (rating == null) {
           ratingBar.setRatingQuietly(0);
         }
@@ -229,9 +228,7 @@ public class AddinsPanel implements ViewComponent, PropertyChangeListener
         final int rating = (Integer) evt.getNewValue() * RATING_FACTOR;
 
         /* Update our ToolPreferences for this addin */
-        Map<String, Integer> ratings = ToolPreferences.getRatings();
-        ratings.put(addin.getId(), rating);
-        ToolPreferences.setRatings(ratings);
+        ToolPreferences.setRating(addin.getId(), rating);
 
         /* Send the rating update to the server */
         GooTool.executeTaskInThreadPool(new Runnable()
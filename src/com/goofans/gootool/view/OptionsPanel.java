@@ -49,6 +49,7 @@ public class OptionsPanel implements ViewComponent
   private JButton changeCustomDirButton;
   private JTextField profileFileText;
   private JButton changeProfileFileButton;
+  private JCheckBox linkGameFilesCheckBox;
   private JTextField goofansUsername;
   private JPasswordField goofansPassword;
   private JButton gooFansLoginButton;
@@ -86,6 +87,7 @@ public class OptionsPanel implements ViewComponent
     windowsVolumeControlCheckBox.setText(GooTool.getTextProvider().getString("options.sound.controls"));
     skipOpeningMovieCheckBox.setText(GooTool.getTextProvider().getString("options.loadScreen.skipMovie"));
     disableBillboardsCheckBox.setText(GooTool.getTextProvider().getString("options.billboards.disable"));
+    linkGameFilesCheckBox.setText(GooTool.getTextProvider().getString("options.locations.linkFiles"));
 
     gooFansLoginButton.setText(GooTool.getTextProvider().getString("options.goofans.login"));
 
@@ -224,6 +226,7 @@ public class OptionsPanel implements ViewComponent
     goofansPassword.setText(ToolPreferences.getGooFansPassword());
 
     windowsVolumeControlCheckBox.setSelected(c.isWindowsVolumeControl());
+    linkGameFilesCheckBox.setSelected(c.isLinkGameFiles());
 
     disableBillboardsCheckBox.setSelected(ToolPreferences.isBillboardDisable());
   }
@@ -247,6 +250,7 @@ public class OptionsPanel implements ViewComponent
     ToolPreferences.setGooFansPassword(new String(goofansPassword.getPassword()));
 
     c.setWindowsVolumeControl(windowsVolumeControlCheckBox.isSelected());
+    c.setLinkGameFiles(linkGameFilesCheckBox.isSelected());
 
     ToolPreferences.setBillboardDisable(disableBillboardsCheckBox.isSelected());
   }
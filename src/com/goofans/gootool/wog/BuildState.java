@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.wog;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Records how each generated file in the custom directory was built, so that the next build only has to rebuild the
+ * files whose inputs have changed (see doc/fast_build.txt).
+ * <p/>
+ * For each file, the state holds an ordered list of the inputs that produced it: typically the signature of the
+ * original game file, followed by each addin (with its version) that modified it, in the order they were applied. If
+ * the list for a file is the same as in the last build, the file in the custom directory is already correct.
+ * <p/>
+ * The state is stored in a text file, one line per file, with the path and its inputs separated by tabs. The file is
+ * deleted as soon as it has been loaded, and only written again once the build has completed, so a build that fails
+ * part way through forces a full rebuild next time rather than leaving files that are out of date.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+class BuildState
+{
+  private static final Logger log = Logger.getLogger(BuildState.class.getName());
+
+  private static final String HEADER = "# GooTool build state 1";
+  private static final char SEPARATOR = '\t';
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private final File stateFile;
+
+  private final Map<String, List<String>> lastBuild = new HashMap<String, List<String>>();
+  private final Map<String, List<String>> thisBuild = new LinkedHashMap<String, List<String>>();
+
+  /**
+   * Creates an empty build state.
+   *
+   * @param stateFile The file the state is stored in.
+   */
+  BuildState(File stateFile)
+  {
+    this.stateFile = stateFile;
+  }
+
+  /**
+   * Loads the state of the last build, if there is one, then deletes it. If the state file is missing or unreadable,
+   * every file is treated as changed.
+   *
+   * @throws IOException if the state file couldn't be deleted.
+   */
+  void loadAndInvalidate() throws IOException
+  {
+    lastBuild.clear();
+
+    if (stateFile.exists()) {
+      try {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), CHARSET));
+        try {
+          readState(reader);
+        }
+        finally {
+          reader.close();
+        }
+      }
+      catch (IOException e) {
+        log.warning("Unable to read build state, rebuilding everything: " + e.getLocalizedMessage());
+        lastBuild.clear();
+      }
+
+      if (!stateFile.delete()) {
+        throw new IOException("Unable to delete " + stateFile);
+      }
+    }
+
+    log.fine("Loaded build state for " + lastBuild.size() + " files");
+  }
+
+  private void readState(BufferedReader reader) throws IOException
+  {
+    if (!HEADER.equals(reader.readLine())) {
+      log.info("Build state is in an unknown format, ignoring it");
+      return;
+    }
+
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.length() == 0) continue;
+
+      List<String> fields = split(line);
+      lastBuild.put(fields.get(0), fields.subList(1, fields.size()));
+    }
+  }
+
+  private static List<String> split(String line)
+  {
+    List<String> fields = new ArrayList<String>();
+    int start = 0;
+    int end;
+    while ((end = line.indexOf(SEPARATOR, start)) >= 0) {
+      fields.add(line.substring(start, end));
+      start = end + 1;
+    }
+    fields.add(line.substring(start));
+    return fields;
+  }
+
+  /**
+   * Adds an input to a file in this build. Inputs must be added in the order they are applied.
+   *
+   * @param path  The path of the file, as passed to {@link WorldOfGoo#getCustomGameFile(String)}.
+   * @param input A description of the input, which must change whenever the input's effect on the file changes. It
+   *              must not contain tabs or line breaks.
+   */
+  void addInput(String path, String input)
+  {
+    if (input.indexOf(SEPARATOR) >= 0 || input.indexOf('\n') >= 0 || input.indexOf('\r') >= 0) {
+      throw new IllegalArgumentException("Invalid build input: " + input);
+    }
+
+    List<String> inputs = thisBuild.get(path);
+    if (inputs == null) {
+      inputs = new ArrayList<String>();
+      thisBuild.put(path, inputs);
+    }
+    inputs.add(input);
+  }
+
+  /**
+   * Returns the files that are generated in this build.
+   *
+   * @return The paths of the files, in the order they were first added.
+   */
+  Set<String> getPaths()
+  {
+    return Collections.unmodifiableSet(thisBuild.keySet());
+  }
+
+  /**
+   * Returns whether the file was built from exactly the same inputs last time.
+   *
+   * @param path The path of the file.
+   * @return true if the file needs no rebuilding.
+   */
+  boolean isUpToDate(String path)
+  {
+    List<String> inputs = thisBuild.get(path);
+    return inputs != null && inputs.equals(lastBuild.get(path));
+  }
+
+  /**
+   * Returns the files that were generated in the last build, but aren't in this one. These need to be restored to
+   * their original contents.
+   *
+   * @return The paths of the files.
+   */
+  Set<String> getRemovedPaths()
+  {
+    Set<String> removed = new TreeSet<String>(lastBuild.keySet());
+    removed.removeAll(thisBuild.keySet());
+    return removed;
+  }
+
+  /**
+   * Writes the state of this build, replacing the state file in one step once it has been written completely.
+   *
+   * @throws IOException if the state couldn't be written.
+   */
+  void commit() throws IOException
+  {
+    File tempFile = new File(stateFile.getPath() + ".tmp");
+
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), CHARSET));
+    try {
+      writer.write(HEADER);
+      writer.write('\n');
+
+      for (Map.Entry<String, List<String>> entry : thisBuild.entrySet()) {
+        writer.write(entry.getKey());
+        for (String input : entry.getValue()) {
+          writer.write(SEPARATOR);
+          writer.write(input);
+        }
+        writer.write('\n');
+      }
+    }
+    finally {
+      writer.close();
+    }
+
+    try {
+      Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException e) {
+      Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    log.fine("Saved build state for " + thisBuild.size() + " files");
+  }
+}
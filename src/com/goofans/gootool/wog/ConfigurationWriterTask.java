@@ -7,9 +7,10 @@ package com.goofans.gootool.wog;
 
 import javax.xml.transform.TransformerException;
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.Preferences;
@@ -25,6 +26,9 @@ import com.goofans.gootool.util.*;
 
 /**
  * Handles the actual writing of the configuration to the World of Goo directory.
+ * <p/>
+ * Builds are incremental: the inputs of every file that the addins write to are recorded in a {@link BuildState}, and
+ * only the files whose inputs have changed since the last build are restored from the original game and rebuilt.
  *
  * @author David Croft (davidc@goofans.com)
  * @version $Id$
@@ -37,10 +41,20 @@ public class ConfigurationWriterTask extends ProgressIndicatingTask
 
   private static final List<String> skippedFiles = Arrays.asList("Thumbs.db");
 
+  private static final String BUILD_STATE_FILENAME = "state.txt";
+  private static final String TEXT_FILE = "game/properties/text.xml.bin";
+  // Relative to the mirrored game directory, which getCustomGameFile() resolves for each platform
+  private static final String OPENING_MOVIE_DIR = "res/movie/2dboyLogo";
+
   private final Configuration configuration;
   private static final String IRRKLANG_DLL = "irrKlang.dll";
   private static final String REAL_IRRKLANG_DLL = "RealIrrKlang.dll";
 
+  /* Built by planBuild() */
+  private BuildState buildState;
+  private final Map<Addin, Set<String>> addinTargets = new LinkedHashMap<Addin, Set<String>>();
+  private final Set<String> pathsToBuild = new HashSet<String>();
+
   public ConfigurationWriterTask(Configuration configuration)
   {
     this.configuration = configuration;
@@ -51,17 +65,111 @@ public class ConfigurationWriterTask extends ProgressIndicatingTask
   {
     writePrivateConfig(configuration);
 
+    planBuild(configuration);
+
     copyGameFiles();
 
     writeUserConfig(configuration);
 
     installAddins(configuration);
 
+    buildState.commit();
+
     log.log(Level.INFO, "Configuration writer work complete");
   }
 
+  /*
+   * Works out which files the watermark and addins write to, and which of those need to be rebuilt. The state of the
+   * last build is deleted here, and only written again once the build is complete.
+   */
+  private void planBuild(Configuration c) throws IOException, AddinFormatException
+  {
+    beginStep("Checking which files need rebuilding", false);
+
+    WorldOfGoo worldOfGoo = WorldOfGoo.getTheInstance();
+
+    buildState = new BuildState(new File(worldOfGoo.getCustomDir(), BUILD_STATE_FILENAME));
+    buildState.loadAndInvalidate();
+
+    addinTargets.clear();
+    pathsToBuild.clear();
+
+    // The watermark is applied first, then the addins in the order they are installed
+    if (c.getWatermark().length() > 0) {
+      addBuildInput(TEXT_FILE, "watermark " + sha1(c.getWatermark()));
+    }
+
+    List<Addin> addins = getAddinsToInstall(c);
+
+    if (!ToolPreferences.isBillboardDisable()) {
+      try {
+        File addinFile = worldOfGoo.getCustomGameFile(BillboardUpdater.BILLBOARDS_GOOMOD_FILENAME);
+        if (addinFile.exists()) {
+          addins.add(AddinFactory.loadAddin(addinFile));
+        }
+      }
+      catch (IOException e) {
+        throw new AddinFormatException("Couldn't install billboard addin", e);
+      }
+    }
+
+    for (Addin addin : addins) {
+      Set<String> targets;
+      try {
+        targets = AddinInstaller.getTargets(addin);
+      }
+      catch (IOException e) {
+        throw new AddinFormatException("IOException in " + addin.getName() + ":\n" + e.getMessage(), e);
+      }
+      catch (AddinFormatException e) {
+        throw new AddinFormatException("Addin format exception in " + addin.getName() + ":\n" + e.getMessage(), e);
+      }
+      addinTargets.put(addin, targets);
+
+      // The modification time catches an addin being reinstalled without changing its version
+      String input = "addin " + addin.getId() + " " + addin.getVersion() + " " + addin.getDiskFile().lastModified();
+      for (String target : targets) {
+        addBuildInput(target, input);
+      }
+    }
+
+    for (String path : buildState.getPaths()) {
+      if (!buildState.isUpToDate(path) || !worldOfGoo.getCustomGameFile(path).exists()) {
+        pathsToBuild.add(path);
+      }
+    }
+
+    log.fine(pathsToBuild.size() + " of " + buildState.getPaths().size() + " generated files need rebuilding, " + buildState.getRemovedPaths().size() + " to restore");
+  }
+
+  /*
+   * Adds an input to a generated file. The first input of each file is the original game file it's built from, if any.
+   */
+  private void addBuildInput(String path, String input) throws IOException
+  {
+    if (!buildState.getPaths().contains(path)) {
+      File source = WorldOfGoo.getTheInstance().getGameFile(path);
+      buildState.addInput(path, source.isFile() ? "source " + source.length() + " " + source.lastModified() : "source none");
+    }
+    buildState.addInput(path, input);
+  }
+
+  private static String sha1(String s)
+  {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      return new BigInteger(1, digest.digest(s.getBytes("UTF-8"))).toString(16);
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("SHA-1 not available", e);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("UTF-8 not available", e);
+    }
+  }
+
   // Writes the "custom" folder inside WoG. Might take a long time on first run.
-  private void copyGameFiles() throws IOException
+  private void copyGameFiles() throws IOException, AddinFormatException
   {
     WorldOfGoo worldOfGoo = WorldOfGoo.getTheInstance();
     File wogDir = worldOfGoo.getWogDir();
@@ -77,76 +185,81 @@ public class ConfigurationWriterTask extends ProgressIndicatingTask
 
     beginStep("Building list of source files", false);
 
-    /* First build a list of everything to copy, so we have an estimate for the progress bar */
-    List<String> filesToCopy = new ArrayList<String>(2500);
+    GameFileMirror mirror = new GameFileMirror(wogDir, customDir, skippedFiles);
+    mirror.setLinkFiles(configuration.isLinkGameFiles());
 
     if (PlatformSupport.getPlatform() == PlatformSupport.Platform.MACOSX) {
-      getFilesInFolder(wogDir, filesToCopy, "");
+      /* Mirror the whole application bundle */
+      for (File file : wogDir.listFiles()) {
+        if (file.isDirectory()) {
+          mirror.addDirectory(file.getName());
+        }
+        else if (file.isFile() && !skippedFiles.contains(file.getName())) {
+          mirror.addFile(file.getName());
+        }
+      }
     }
     else {
       // WINDOWS/LINUX
       for (String resourceDirName : resourceDirs) {
-        File resourceDir = new File(wogDir, resourceDirName);
-        if (resourceDir.exists()) {
-          getFilesInFolder(resourceDir, filesToCopy, resourceDirName);
-        }
+        mirror.addDirectory(resourceDirName);
       }
 
       /* Add all files (but not directories) in the root directory */
       for (File file : wogDir.listFiles()) {
         if (file.isFile() && !skippedFiles.contains(file.getName())) {
-          filesToCopy.add(file.getName());
+          mirror.addFile(file.getName());
         }
       }
     }
 
-    log.fine(filesToCopy.size() + " files in source directories");
+    // Now skip what we are going to overwrite or remove anyway.
 
-    // Now truncate what we are going to overwrite or remove anyway.
-    // TODO we can also skip files that are overwritten by addins.
+    if (configuration.isSkipOpeningMovie()) {
+      mirror.exclude(worldOfGoo.getCustomGameFile(OPENING_MOVIE_DIR));
+    }
 
-    for (int i = 0; i < filesToCopy.size(); i++) {
-      String s = filesToCopy.get(i);
-      if ((configuration.isSkipOpeningMovie() && s.startsWith("game/res/movie/2dboyLogo")) // If we're skipping the opening movie
-              ) {
-        filesToCopy.remove(i);
-        i--;
+    // Generated files that are up to date are left alone. The rest, and any files that are no longer generated, are
+    // deleted so that the original is restored before the addins are applied again.
+    for (String path : buildState.getPaths()) {
+      File file = worldOfGoo.getCustomGameFile(path);
+      if (pathsToBuild.contains(path)) {
+        Utilities.deleteFileIfExists(file);
+      }
+      else {
+        mirror.skip(file);
       }
     }
-    log.fine(filesToCopy.size() + " files after skipping");
+
+    for (String path : buildState.getRemovedPaths()) {
+      Utilities.deleteFileIfExists(worldOfGoo.getCustomGameFile(path));
+    }
+
+    // Downloaded into the custom folder by BillboardUpdater, not part of the game
+    mirror.skip(worldOfGoo.getCustomGameFile(BillboardUpdater.BILLBOARDS_GOOMOD_FILENAME));
+
+    mirror.scan();
 
     beginStep("Copying game files to custom folder", true);
 
     /* Now copy original files from source directory */
 
-    int copied = 0;
-
-    for (int i = 0; i < filesToCopy.size(); i++) {
-      String fileToCopy = filesToCopy.get(i);
-      if (i % 10 == 0) {
-        progressStep((100f * i) / filesToCopy.size());
+    int copied = mirror.copy(new ProgressListener()
+    {
+      public void beginStep(String taskDescription, boolean progressAvailable)
+      {
+        ConfigurationWriterTask.this.beginStep(taskDescription, progressAvailable);
       }
 
-      File srcFile = new File(wogDir, fileToCopy);
-      File destFile = new File(customDir, fileToCopy);
+      public void progressStep(float percent)
+      {
+        ConfigurationWriterTask.this.progressStep(percent);
+      }
+    });
 
-//      System.out.println(srcFile + " -> " + destFile);
+    /* Remove files/dirs that only exist in dest dir, e.g. from addins that are no longer enabled */
 
-      if (srcFile.isDirectory()) {
-        if (!destFile.isDirectory()) {
-          if (!destFile.mkdir()) {
-            throw new IOException("Couldn't create " + destFile);
-          }
-          copied++;
-        }
-      }
-      else {
-        if (!destFile.exists() || srcFile.lastModified() != destFile.lastModified()) {
-          Utilities.copyFile(srcFile, destFile);
-          copied++;
-        }
-      }
-    }
+    int removed = mirror.removeStale();
 
     // Windows hack: If the user already had a RealIrrKlang.dll in the source directory, they must have manually
     // installed Maks' volume control in the past, so move that to irrKlang.dll (#0000219)
@@ -157,9 +270,7 @@ public class ConfigurationWriterTask extends ProgressIndicatingTask
       }
     }
 
-    // TODO remove files/dirs that only exist in dest dir
-
-    log.fine(copied + " files copied");
+    log.fine(copied + " files copied, " + removed + " stale files removed");
 
     if (PlatformSupport.getPlatform() == PlatformSupport.Platform.MACOSX) {
       // Make the EXE files executable
@@ -172,7 +283,7 @@ public class ConfigurationWriterTask extends ProgressIndicatingTask
 
       // Add the Mac icon
       InputStream is = getClass().getResourceAsStream("/customapp.icns");
-      OutputStream os = new FileOutputStream(customDir + "/Contents/Resources/gooicon.icns");
+      OutputStream os = Utilities.createFileOutputStream(new File(customDir, "Contents/Resources/gooicon.icns"));
       Utilities.copyStreams(is, os);
     }
     else if (PlatformSupport.getPlatform() == PlatformSupport.Platform.LINUX) {
@@ -192,21 +303,6 @@ public class ConfigurationWriterTask extends ProgressIndicatingTask
     progressStep(100f);
   }
 
-  private void getFilesInFolder(File file, List<String> filesToCopy, String dirStem)
-  {
-    // Copy the directory (mkdir)
-    filesToCopy.add(dirStem);
-
-    for (File f : file.listFiles()) {
-      if (f.isDirectory()) {
-        getFilesInFolder(f, filesToCopy, dirStem + "/" + f.getName());
-      }
-      else if (f.isFile() && !skippedFiles.contains(f.getName())) {
-        filesToCopy.add(dirStem + "/" + f.getName());
-      }
-    }
-  }
-
   private void writePrivateConfig(Configuration c)
   {
     beginStep("Writing tool preferences", false);
@@ -233,6 +329,7 @@ public class ConfigurationWriterTask extends ProgressIndicatingTask
     p.putInt(WorldOfGoo.PREF_UIINSET, c.getUiInset());
 
     p.putBoolean(WorldOfGoo.PREF_WINDOWS_VOLUME_CONTROL, c.isWindowsVolumeControl());
+    p.putBoolean(WorldOfGoo.PREF_LINK_GAME_FILES, c.isLinkGameFiles());
 
     StringBuilder sb = new StringBuilder();
     for (String s : c.getEnabledAddins()) {
@@ -254,26 +351,12 @@ public class ConfigurationWriterTask extends ProgressIndicatingTask
 
     /* If we're skipping opening movie, we need to remove res/movie/2dboy */
     if (c.isSkipOpeningMovie()) {
-      File movieDir = worldOfGoo.getCustomGameFile("game/res/movie/2dboyLogo/");
+      File movieDir = worldOfGoo.getCustomGameFile(OPENING_MOVIE_DIR);
       if (movieDir.exists()) {
         Utilities.rmdirAll(movieDir);
       }
     }
 
-    /* If we have a watermark, we need to modify properties/text.xml.bin */
-    if (c.getWatermark().length() > 0) {
-      File textFile = worldOfGoo.getCustomGameFile("game/properties/text.xml.bin");
-      try {
-        Merger merger = new Merger(textFile, new InputStreamReader(getClass().getResourceAsStream("/watermark.xsl")));
-        merger.setTransformParameter("watermark", c.getWatermark());
-        merger.merge();
-        merger.writeEncoded(textFile);
-      }
-      catch (TransformerException e) {
-        throw new IOException("Unable to merge watermark");
-      }
-    }
-
     /* Add new irrKlang.dll if Windows volume control enabled */
     if (PlatformSupport.getPlatform() == PlatformSupport.Platform.WINDOWS && configuration.isWindowsVolumeControl()) {
       log.log(Level.FINER, "Copying custom irrKlang.dll");
@@ -291,51 +374,103 @@ public class ConfigurationWriterTask extends ProgressIndicatingTask
     }
   }
 
-  private void installAddins(Configuration c) throws AddinFormatException
+  /*
+   * Finds the enabled addins, in the order they need to be installed. We need the addins in reverse order, as the earlier ones are higher priority.
+   */
+  private static List<Addin> getAddinsToInstall(Configuration c) throws AddinFormatException
   {
-    /* we need the addins in reverse order, as the earlier ones are higher priority */
-
-    List<String> addins = c.getEnabledAddins();
+    List<String> addinIds = c.getEnabledAddins();
+    List<Addin> addins = new ArrayList<Addin>(addinIds.size());
 
-    for (int i = addins.size() - 1; i >= 0; --i) {
-      String id = addins.get(i);
-      beginStep("Merging addin " + id, false);
+    for (int i = addinIds.size() - 1; i >= 0; --i) {
+      String id = addinIds.get(i);
 
-      List<Addin> availableAddins = WorldOfGoo.getAvailableAddins();
-      boolean addinFound = false;
-      for (Addin addin : availableAddins) {
+      Addin foundAddin = null;
+      for (Addin addin : WorldOfGoo.getAvailableAddins()) {
         if (addin.getId().equals(id)) {
-          try {
-            AddinInstaller.installAddin(addin);
-          }
-          catch (IOException e) {
-            throw new AddinFormatException("IOException in " + addin.getName() + ":\n" + e.getMessage(), e);
-          }
-          catch (AddinFormatException e) {
-            throw new AddinFormatException("Addin format exception in " + addin.getName() + ":\n" + e.getMessage(), e);
-          }
-          addinFound = true;
+          foundAddin = addin;
           break;
         }
       }
-      if (!addinFound) {
+      if (foundAddin == null) {
         throw new AddinFormatException("Couldn't locate addin " + id + " to install");
       }
+      addins.add(foundAddin);
     }
 
-    if (!ToolPreferences.isBillboardDisable()) {
-      log.info("Installing billboards goomod");
+    return addins;
+  }
+
+  /*
+   * Applies the watermark and addins to the files that need rebuilding. These have just been restored from the original
+   * game, so everything that writes to them is applied again, in order.
+   */
+  private void installAddins(Configuration c) throws IOException, AddinFormatException
+  {
+    try {
+      // Keep the game files decoded across all addins, and only write them out once at the end
+      MergeSession session = new MergeSession();
+
+      /* If we have a watermark, we need to modify properties/text.xml.bin */
+      if (c.getWatermark().length() > 0 && pathsToBuild.contains(TEXT_FILE)) {
+        File textFile = WorldOfGoo.getTheInstance().getCustomGameFile(TEXT_FILE);
+        try {
+          Merger merger = new Merger(new StringReader(session.getText(textFile)), TemplatesCache.getResourceTemplates("/watermark.xsl"));
+          merger.setTransformParameter("watermark", c.getWatermark());
+          session.setText(textFile, merger.merge());
+        }
+        catch (TransformerException e) {
+          throw new IOException("Unable to merge watermark");
+        }
+      }
+
+      // Overrides are planned across all addins, so each file is only written by the addin with the highest priority
+      beginStep("Installing addin files", false);
+      Set<String> overridden;
       try {
-        File addinFile = WorldOfGoo.getTheInstance().getCustomGameFile(BillboardUpdater.BILLBOARDS_GOOMOD_FILENAME);
-        if (addinFile.exists()) {
-          Addin addin = AddinFactory.loadAddin(addinFile);
-          AddinInstaller.installAddin(addin);
+        overridden = AddinInstaller.installOverrides(new ArrayList<Addin>(addinTargets.keySet()), pathsToBuild);
+      }
+      catch (IOException e) {
+        throw new AddinFormatException("IOException installing addin files:\n" + e.getMessage(), e);
+      }
+
+      for (Map.Entry<Addin, Set<String>> entry : addinTargets.entrySet()) {
+        Addin addin = entry.getKey();
+
+        Set<String> targets = new HashSet<String>(entry.getValue());
+        targets.retainAll(pathsToBuild);
+        // Don't compile over a file that a higher priority addin has overridden
+        targets.removeAll(overridden);
+        if (targets.isEmpty()) {
+          log.fine("Addin " + addin.getId() + " is already installed");
+          continue;
+        }
+
+        beginStep("Merging addin " + addin.getId(), false);
+
+        try {
+          AddinInstaller.installMerges(addin, session, targets);
+        }
+        catch (IOException e) {
+          throw new AddinFormatException("IOException in " + addin.getName() + ":\n" + e.getMessage(), e);
+        }
+        catch (AddinFormatException e) {
+          throw new AddinFormatException("Addin format exception in " + addin.getName() + ":\n" + e.getMessage(), e);
         }
       }
+
+      beginStep("Writing merged game files", false);
+      try {
+        session.write();
+      }
       catch (IOException e) {
-        throw new AddinFormatException("Couldn't install billboard addin", e);
+        throw new AddinFormatException("Couldn't write merged game files:\n" + e.getMessage(), e);
       }
     }
+    finally {
+      // Addin stylesheets are only reused within one build, so don't keep them in memory until the next one
+      TemplatesCache.clear();
+    }
   }
 
   @SuppressWarnings({"UseOfSystemOutOrSystemErr", "HardCodedStringLiteral", "HardcodedFileSeparator", "DuplicateStringLiteralInspection"})
@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2008, 2009, 2010, 2019 David C A Croft. All rights reserved. Your use of this computer software
+ * is permitted only in accordance with the GooTool license agreement distributed with this file.
+ */
+
+package com.goofans.gootool.wog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.goofans.gootool.util.ProgressListener;
+import com.goofans.gootool.util.Utilities;
+
+/**
+ * Mirrors directories and files from the World of Goo directory into the custom directory.
+ * <p/>
+ * A file is only copied if its size or modification time differs from the copy already in the destination. The copies
+ * are spread over a small pool of worker threads. Anything inside a mirrored directory that no longer exists in the
+ * source is removed from the destination.
+ * <p/>
+ * Destination files that are marked as skipped (for example because an addin will override them) are neither copied
+ * nor removed.
+ * <p/>
+ * In link mode, files are hard-linked to the source instead of being copied. Anything that later writes into the
+ * destination must replace the file rather than writing into it (see {@link Utilities#createFileOutputStream(File)}),
+ * otherwise the original game file would be modified too.
+ *
+ * @author David Croft (davidc@goofans.com)
+ * @version $Id$
+ */
+public class GameFileMirror
+{
+  private static final Logger log = Logger.getLogger(GameFileMirror.class.getName());
+
+  private static final int MAX_THREADS = 4;
+  private static final int PROGRESS_INTERVAL = 10;
+
+  private final Path sourceDir;
+  private final Path destDir;
+  private final List<String> skippedNames;
+
+  private final List<String> directories = new ArrayList<String>();
+  private final List<String> files = new ArrayList<String>();
+  private final List<Path> excludedPaths = new ArrayList<Path>();
+  private final Set<Path> skippedFiles = new HashSet<Path>();
+
+  /* Built by scan() */
+  private final List<Path> dirsToCreate = new ArrayList<Path>();
+  private final List<CopyJob> copyJobs = new ArrayList<CopyJob>();
+  private final Set<Path> wanted = new HashSet<Path>();
+
+  private volatile boolean linkFiles;
+  private int removed;
+
+  /**
+   * Creates a new mirror.
+   *
+   * @param sourceDir    The directory to copy from.
+   * @param destDir      The directory to copy into.
+   * @param skippedNames File and directory names that are never copied, wherever they occur (e.g. Thumbs.db).
+   */
+  public GameFileMirror(File sourceDir, File destDir, List<String> skippedNames)
+  {
+    this.sourceDir = sourceDir.toPath().toAbsolutePath().normalize();
+    this.destDir = destDir.toPath().toAbsolutePath().normalize();
+    this.skippedNames = skippedNames;
+  }
+
+  /**
+   * Adds a directory to be mirrored, along with everything under it. Stale files in this directory will be removed.
+   *
+   * @param path The directory, relative to the source directory, separated by "/".
+   */
+  public void addDirectory(String path)
+  {
+    directories.add(path);
+  }
+
+  /**
+   * Adds a single file to be mirrored.
+   *
+   * @param path The file, relative to the source directory, separated by "/".
+   */
+  public void addFile(String path)
+  {
+    files.add(path);
+  }
+
+  /**
+   * Excludes a file or directory from the mirror. It will be treated as though it doesn't exist in the source, so it will
+   * also be removed from the destination.
+   *
+   * @param destFile The file or directory, as it would appear in the destination directory.
+   */
+  public void exclude(File destFile)
+  {
+    excludedPaths.add(destFile.toPath().toAbsolutePath().normalize());
+  }
+
+  /**
+   * Marks a file in the destination as being managed by someone else. It will not be copied, and will not be removed.
+   *
+   * @param destFile The file in the destination directory.
+   */
+  public void skip(File destFile)
+  {
+    skippedFiles.add(destFile.toPath().toAbsolutePath().normalize());
+  }
+
+  /**
+   * Sets whether files should be hard-linked to the source instead of copied. If the file system doesn't support hard
+   * links (or the source and destination are on different volumes), the mirror falls back to copying.
+   *
+   * @param linkFiles true to link files, false to copy them.
+   */
+  public void setLinkFiles(boolean linkFiles)
+  {
+    this.linkFiles = linkFiles;
+  }
+
+  /**
+   * Walks the source directories to find out what needs to be mirrored, and creates any missing directories in the
+   * destination.
+   *
+   * @return The number of files found in the source.
+   * @throws IOException if the source couldn't be read, or a destination directory couldn't be created.
+   */
+  public int scan() throws IOException
+  {
+    dirsToCreate.clear();
+    copyJobs.clear();
+    wanted.clear();
+
+    dirsToCreate.add(destDir);
+
+    for (String directory : directories) {
+      Path dir = sourceDir.resolve(directory);
+      if (Files.isDirectory(dir)) {
+        scanDirectory(dir);
+      }
+    }
+
+    for (String file : files) {
+      Path path = sourceDir.resolve(file);
+      if (!isExcluded(path)) {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        addFile(path, attrs);
+      }
+    }
+
+    for (Path dir : dirsToCreate) {
+      Utilities.mkdirsOrException(dir.toFile());
+    }
+
+    log.fine(copyJobs.size() + " files to mirror from " + sourceDir + ", " + (wanted.size() - copyJobs.size()) + " directories and skipped files");
+    return copyJobs.size();
+  }
+
+  private void scanDirectory(Path dir) throws IOException
+  {
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+    {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+      {
+        if (isExcluded(dir)) return FileVisitResult.SKIP_SUBTREE;
+
+        Path destDir = toDest(dir);
+        wanted.add(destDir);
+        dirsToCreate.add(destDir);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+      {
+        if (attrs.isRegularFile() && !isExcluded(file)) {
+          addFile(file, attrs);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void addFile(Path file, BasicFileAttributes attrs)
+  {
+    Path destFile = toDest(file);
+    wanted.add(destFile);
+    if (!skippedFiles.contains(destFile)) {
+      copyJobs.add(new CopyJob(file, destFile, attrs.size(), attrs.lastModifiedTime().toMillis()));
+    }
+  }
+
+  private boolean isExcluded(Path path)
+  {
+    Path fileName = path.getFileName();
+    if (fileName != null && skippedNames.contains(fileName.toString())) return true;
+
+    Path destPath = toDest(path);
+    for (Path excludedPath : excludedPaths) {
+      if (destPath.startsWith(excludedPath)) return true;
+    }
+    return false;
+  }
+
+  private Path toDest(Path sourcePath)
+  {
+    return destDir.resolve(sourceDir.relativize(sourcePath).toString());
+  }
+
+  /**
+   * Copies all new or changed files found by {@link #scan()}, using a pool of worker threads.
+   *
+   * @param listener Notified of the progress of the copy. Always called on the calling thread.
+   * @return The number of files actually copied.
+   * @throws IOException if any file couldn't be copied. The remaining copies are abandoned.
+   */
+  public int copy(ProgressListener listener) throws IOException
+  {
+    int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    try {
+      CompletionService<Boolean> completionService = new ExecutorCompletionService<Boolean>(executor);
+      for (CopyJob copyJob : copyJobs) {
+        completionService.submit(copyJob);
+      }
+
+      int copied = 0;
+      for (int i = 0; i < copyJobs.size(); ++i) {
+        if (i % PROGRESS_INTERVAL == 0) {
+          listener.progressStep((100f * i) / copyJobs.size());
+        }
+
+        if (completionService.take().get()) {
+          copied++;
+        }
+      }
+
+      log.fine(copied + " files copied using " + threads + " threads");
+      return copied;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while copying game files");
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      log.log(Level.SEVERE, "Unable to copy game files", cause);
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new IOException("Unable to copy game files: " + cause.getLocalizedMessage(), cause);
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Removes any files and directories inside the mirrored directories that weren't found in the source by
+   * {@link #scan()}. Skipped files are left in place, along with any directories that still contain them.
+   *
+   * @return The number of files removed.
+   * @throws IOException if a stale file couldn't be removed.
+   */
+  public int removeStale() throws IOException
+  {
+    removed = 0;
+
+    for (String directory : directories) {
+      Path dir = destDir.resolve(directory);
+      if (Files.isDirectory(dir)) {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+        {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+          {
+            if (!wanted.contains(file) && !skippedFiles.contains(file)) {
+              log.finest("Removing stale file " + file);
+              Files.delete(file);
+              removed++;
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException
+          {
+            if (e != null) throw e;
+
+            if (!wanted.contains(dir)) {
+              try {
+                Files.delete(dir);
+              }
+              catch (DirectoryNotEmptyException ignored) {
+                // Still holds skipped files
+              }
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+      }
+    }
+
+    log.fine(removed + " stale files removed");
+    return removed;
+  }
+
+  /**
+   * Links or copies one file if the destination is missing or out of date. Returns true if it was linked or copied.
+   */
+  private class CopyJob implements Callable<Boolean>
+  {
+    private final Path source;
+    private final Path dest;
+    private final long size;
+    private final long lastModified;
+
+    CopyJob(Path source, Path dest, long size, long lastModified)
+    {
+      this.source = source;
+      this.dest = dest;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+
+    public Boolean call() throws IOException
+    {
+      if (linkFiles) {
+        try {
+          if (Files.exists(dest) && Files.isSameFile(source, dest)) {
+            return false;
+          }
+
+          Files.deleteIfExists(dest);
+          Files.createLink(dest, source);
+          return true;
+        }
+        catch (UnsupportedOperationException e) {
+          disableLinking(e);
+        }
+        catch (FileSystemException e) {
+          disableLinking(e);
+        }
+      }
+
+      File destFile = dest.toFile();
+      if (destFile.isFile() && destFile.length() == size && destFile.lastModified() == lastModified) {
+        return false;
+      }
+
+      Utilities.copyFile(source.toFile(), destFile);
+      return true;
+    }
+
+    private void disableLinking(Exception e)
+    {
+      if (linkFiles) {
+        linkFiles = false;
+        log.log(Level.WARNING, "Can't link game files, copying them instead", e);
+      }
+    }
+  }
+}
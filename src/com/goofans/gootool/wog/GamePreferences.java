@@ -8,6 +8,7 @@ package com.goofans.gootool.wog;
 import com.goofans.gootool.model.Configuration;
 import com.goofans.gootool.model.Language;
 import com.goofans.gootool.model.Resolution;
+import com.goofans.gootool.util.Utilities;
 import com.goofans.gootool.util.XMLUtil;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -131,6 +132,9 @@ public class GamePreferences
       throw new IOException("Unable to execute XPath: " + e.getLocalizedMessage());
     }
 
+    // Replace rather than overwrite, in case it is linked to the original game's config
+    Utilities.deleteFileIfExists(configFile);
+
     try {
       XMLUtil.writeDocumentToFile(document, configFile);
     }
@@ -9,10 +9,12 @@ import java.awt.*;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.Preferences;
@@ -21,6 +23,7 @@ import com.goofans.gootool.GooTool;
 import com.goofans.gootool.addins.Addin;
 import com.goofans.gootool.addins.AddinFactory;
 import com.goofans.gootool.addins.AddinFormatException;
+import com.goofans.gootool.addins.AddinIndex;
 import com.goofans.gootool.model.Configuration;
 import com.goofans.gootool.model.Language;
 import com.goofans.gootool.model.Resolution;
@@ -47,6 +50,8 @@ public abstract class WorldOfGoo
   protected static final String GOOMOD_EXTENSION_WITH_DOT = "." + GOOMOD_EXTENSION;
   private static final String USER_CONFIG_FILE = "game/properties/config.txt";
 
+  private static final int MAX_ADDIN_LOADER_THREADS = 4;
+
 
   private static final WorldOfGoo theInstance;
 
@@ -81,8 +86,10 @@ public abstract class WorldOfGoo
   static final String PREF_UIINSET = "ui_inset";
   static final String PREF_ADDINS = "addins";
   static final String PREF_WINDOWS_VOLUME_CONTROL = "windows_volume_control";
+  static final String PREF_LINK_GAME_FILES = "link_game_files";
 
   private static final String STORAGE_DIR_ADDINS = "addins";
+  private static final String ADDIN_INDEX_FILE = "addin-index.dat";
 
   protected WorldOfGoo()
   {
@@ -130,34 +137,91 @@ public abstract class WorldOfGoo
     return addinsDir;
   }
 
+  /**
+   * Reloads the list of available addins from the addins directory. Goomods that haven't changed since the last time
+   * are taken from the addin index; the rest are read in parallel. The addins are always listed in file name order.
+   */
   public void updateInstalledAddins()
   {
-    availableAddins = new LinkedList<Addin>();
-
     File addinsDir;
+    File indexFile;
     try {
       addinsDir = getAddinsDir();
+      indexFile = new File(PlatformSupport.getToolStorageDirectory(), ADDIN_INDEX_FILE);
     }
     catch (IOException e) {
       log.log(Level.SEVERE, "No addinsDir", e);
       throw new RuntimeException(e);
     }
 
-    File[] files = addinsDir.listFiles();
-
-    for (File file : files) {
+    List<File> addinFiles = new ArrayList<File>();
+    for (File file : addinsDir.listFiles()) {
       if (file.isFile() && file.getName().endsWith(GOOMOD_EXTENSION_WITH_DOT)) {
-        try {
-          availableAddins.add(AddinFactory.loadAddin(file));
+        addinFiles.add(file);
+      }
+    }
+    Collections.sort(addinFiles);
+
+    final AddinIndex index = new AddinIndex(indexFile);
+    index.load();
+    index.retainOnly(addinFiles);
+
+    List<Callable<Addin>> loaders = new ArrayList<Callable<Addin>>(addinFiles.size());
+    for (final File file : addinFiles) {
+      loaders.add(new Callable<Addin>()
+      {
+        public Addin call() throws Exception
+        {
+          Addin addin = index.get(file);
+          if (addin == null) {
+            addin = AddinFactory.loadAddin(file);
+            index.put(file, addin);
+          }
+          return addin;
         }
-        catch (AddinFormatException e) {
-          log.log(Level.WARNING, "Ignoring invalid addin " + file + " in addins dir", e);
+      });
+    }
+
+    int threads = Math.max(1, Math.min(MAX_ADDIN_LOADER_THREADS, Runtime.getRuntime().availableProcessors()));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    List<Addin> addins = new LinkedList<Addin>();
+    try {
+      List<Future<Addin>> results = executor.invokeAll(loaders);
+
+      for (int i = 0; i < results.size(); ++i) {
+        try {
+          addins.add(results.get(i).get());
         }
-        catch (IOException e) {
-          log.log(Level.WARNING, "Ignoring invalid addin " + file + " in addins dir", e);
+        catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof AddinFormatException || cause instanceof IOException) {
+            log.log(Level.WARNING, "Ignoring invalid addin " + addinFiles.get(i) + " in addins dir", cause);
+          }
+          else {
+            log.log(Level.SEVERE, "Unable to load addin " + addinFiles.get(i), cause);
+            throw new RuntimeException(cause);
+          }
         }
       }
     }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while loading addins", e);
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    log.fine(addins.size() + " addins loaded from " + addinFiles.size() + " files using " + threads + " threads");
+    availableAddins = addins;
+
+    try {
+      index.save();
+    }
+    catch (IOException e) {
+      log.log(Level.WARNING, "Unable to save the addin index", e);
+    }
   }
 
   public Configuration readConfiguration() throws IOException
@@ -220,6 +284,7 @@ public abstract class WorldOfGoo
     c.setUiInset(p.getInt(PREF_UIINSET, c.getUiInset()));
 
     c.setWindowsVolumeControl(p.getBoolean(PREF_WINDOWS_VOLUME_CONTROL, false));
+    c.setLinkGameFiles(p.getBoolean(PREF_LINK_GAME_FILES, false));
 
     String addins = p.get(PREF_ADDINS, null);
     if (addins != null) {
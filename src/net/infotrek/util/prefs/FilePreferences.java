@@ -5,13 +5,13 @@ import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.util.prefs.AbstractPreferences;
 import java.util.prefs.BackingStoreException;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.FileOutputStream;
 
 /**
  * Preferences implementation that stores to a user-defined file. See FilePreferencesFactory.
+ * <p/>
+ * All nodes share one in-memory copy of the file (see FilePreferencesStore). Changes are written to the file in the
+ * background shortly after they are made, or immediately on {@link #flush()}.
  *
  * @author David Croft (<a href="http://www.davidc.net">www.davidc.net</a>)
  * @version $Id$
@@ -20,9 +20,9 @@ public class FilePreferences extends AbstractPreferences
 {
   private static final Logger log = Logger.getLogger(FilePreferences.class.getName());
 
-  private final Map<String, String> root;
+  private final FilePreferencesStore store;
+  private final String path;
   private final Map<String, FilePreferences> children;
-  private boolean isRemoved = false;
 
   public FilePreferences(AbstractPreferences parent, String name)
   {
@@ -30,7 +30,12 @@ public class FilePreferences extends AbstractPreferences
 
     log.finest("Instantiating node " + name);
 
-    root = new TreeMap<String, String>();
+    store = FilePreferencesFactory.getStore();
+
+    StringBuilder sb = new StringBuilder();
+    getPath(sb);
+    path = sb.toString();
+
     children = new TreeMap<String, FilePreferences>();
 
     try {
@@ -44,44 +49,32 @@ public class FilePreferences extends AbstractPreferences
   @Override
   protected void putSpi(String key, String value)
   {
-    root.put(key, value);
-    try {
-      flush();
-    }
-    catch (BackingStoreException e) {
-      log.log(Level.SEVERE, "Unable to flush after putting " + key, e);
-    }
+    store.put(path + key, value);
   }
 
   @Override
   protected String getSpi(String key)
   {
-    return root.get(key);
+    return store.get(path + key);
   }
 
   @Override
   protected void removeSpi(String key)
   {
-    root.remove(key);
-    try {
-      flush();
-    }
-    catch (BackingStoreException e) {
-      log.log(Level.SEVERE, "Unable to flush after removing " + key, e);
-    }
+    store.remove(path + key);
   }
 
   @Override
   protected void removeNodeSpi() throws BackingStoreException
   {
-    isRemoved = true;
-    flush();
+    store.removeKeys(path);
   }
 
   @Override
   protected String[] keysSpi() throws BackingStoreException
   {
-    return root.keySet().toArray(new String[root.keySet().size()]);
+    List<String> keys = store.getKeys(path);
+    return keys.toArray(new String[keys.size()]);
   }
 
   @Override
@@ -106,39 +99,11 @@ public class FilePreferences extends AbstractPreferences
   {
     if (isRemoved()) return;
 
-    File file = FilePreferencesFactory.getPreferencesFile();
-    if (!file.exists()) return;
-
-    synchronized (file) {
-      Properties p = new Properties();
-      try {
-        FileInputStream is = new FileInputStream(file);
-        try {
-          p.load(is);
-        }
-        finally {
-          is.close();
-        }
-      }
-      catch (IOException e) {
-        throw new BackingStoreException(e);
-      }
-
-      StringBuilder sb = new StringBuilder();
-      getPath(sb);
-      String path = sb.toString();
-
-      Enumeration<?> pnen = p.propertyNames();
-      while (pnen.hasMoreElements()) {
-        String propKey = (String) pnen.nextElement();
-        if (propKey.startsWith(path)) {
-          String subKey = propKey.substring(path.length());
-          // Only load immediate descendants
-          if (subKey.indexOf('.') == -1) {
-            root.put(subKey, p.getProperty(propKey));
-          }
-        }
-      }
+    try {
+      store.sync();
+    }
+    catch (IOException e) {
+      throw new BackingStoreException(e);
     }
   }
 
@@ -154,64 +119,11 @@ public class FilePreferences extends AbstractPreferences
   @Override
   protected void flushSpi() throws BackingStoreException
   {
-    File file = FilePreferencesFactory.getPreferencesFile();
-
-    synchronized (file) {
-      Properties p = new Properties();
-      try {
-
-        StringBuilder sb = new StringBuilder();
-        getPath(sb);
-        String path = sb.toString();
-
-        if (file.exists()) {
-          FileInputStream is = new FileInputStream(file);
-          try {
-            p.load(is);
-          }
-          finally {
-            is.close();
-          }
-
-          List<String> toRemove = new ArrayList<String>();
-
-          // Make a list of all direct children of this node to be removed
-          final Enumeration<?> pnen = p.propertyNames();
-          while (pnen.hasMoreElements()) {
-            String propKey = (String) pnen.nextElement();
-            if (propKey.startsWith(path)) {
-              String subKey = propKey.substring(path.length());
-              // Only do immediate descendants
-              if (subKey.indexOf('.') == -1) {
-                toRemove.add(propKey);
-              }
-            }
-          }
-
-          // Remove them now that the enumeration is done with
-          for (String propKey : toRemove) {
-            p.remove(propKey);
-          }
-        }
-
-        // If this node hasn't been removed, add back in any values
-        if (!isRemoved) {
-          for (String s : root.keySet()) {
-            p.setProperty(path + s, root.get(s));
-          }
-        }
-
-        FileOutputStream os = new FileOutputStream(file);
-        try {
-          p.store(os, "FilePreferences");
-        }
-        finally {
-          os.close();
-        }
-      }
-      catch (IOException e) {
-        throw new BackingStoreException(e);
-      }
+    try {
+      store.flush();
+    }
+    catch (IOException e) {
+      throw new BackingStoreException(e);
     }
   }
 }
@@ -58,6 +58,16 @@ public class FilePreferencesFactory implements PreferencesFactory
     return preferencesFile;
   }
 
+  private static FilePreferencesStore store;
+
+  static synchronized FilePreferencesStore getStore()
+  {
+    if (store == null) {
+      store = new FilePreferencesStore(getPreferencesFile());
+    }
+    return store;
+  }
+
   @SuppressWarnings({"UseOfSystemOutOrSystemErr", "HardCodedStringLiteral", "DuplicateStringLiteralInspection"})
   public static void main(String[] args) throws BackingStoreException
   {
@@ -0,0 +1,245 @@
+package net.infotrek.util.prefs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The contents of the preferences file, held in memory and shared by every node of the preferences tree. Keys are
+ * stored with the path of their node in front, as they appear in the file.
+ * <p/>
+ * Changes are made in memory, and written to the file on a background thread shortly afterwards, so a burst of changes
+ * costs only one write. The file is written to a temporary file which then replaces the original, so it is never left
+ * half written. The file is only read again if its modification time or size has changed since it was last read or
+ * written; any changes that haven't been written yet are kept.
+ * <p/>
+ * Changes still waiting to be written when the JVM exits are written by a shutdown hook.
+ *
+ * @author David Croft (<a href="http://www.davidc.net">www.davidc.net</a>)
+ * @version $Id$
+ */
+class FilePreferencesStore
+{
+  private static final Logger log = Logger.getLogger(FilePreferencesStore.class.getName());
+
+  private static final long FLUSH_DELAY = 500; // milliseconds
+
+  private final File file;
+
+  private final SortedMap<String, String> entries = new TreeMap<String, String>();
+  private final Map<String, String> pending = new HashMap<String, String>(); // null value means removed
+
+  private long fileModified = -1;
+  private long fileLength = -1;
+  private boolean flushScheduled;
+
+  private final ScheduledExecutorService executor;
+
+  FilePreferencesStore(File file)
+  {
+    this.file = file;
+
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread thread = new Thread(r, "FilePreferences writer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    Runtime.getRuntime().addShutdownHook(new Thread("FilePreferences shutdown")
+    {
+      @Override
+      public void run()
+      {
+        try {
+          flush();
+        }
+        catch (IOException e) {
+          log.log(Level.SEVERE, "Unable to write preferences to " + FilePreferencesStore.this.file + " on exit", e);
+        }
+      }
+    });
+  }
+
+  synchronized String get(String key)
+  {
+    return entries.get(key);
+  }
+
+  synchronized void put(String key, String value)
+  {
+    entries.put(key, value);
+    pending.put(key, value);
+    scheduleFlush();
+  }
+
+  synchronized void remove(String key)
+  {
+    entries.remove(key);
+    pending.put(key, null);
+    scheduleFlush();
+  }
+
+  /**
+   * Returns the keys of one node, without the node's path.
+   *
+   * @param path The node's path, ending with a period, or empty for the root node.
+   * @return The keys.
+   */
+  synchronized List<String> getKeys(String path)
+  {
+    List<String> keys = new ArrayList<String>();
+    for (String key : entries.subMap(path, path + Character.MAX_VALUE).keySet()) {
+      String subKey = key.substring(path.length());
+      // Only immediate descendants
+      if (subKey.indexOf('.') == -1) {
+        keys.add(subKey);
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Removes all the keys of one node.
+   *
+   * @param path The node's path, ending with a period, or empty for the root node.
+   */
+  synchronized void removeKeys(String path)
+  {
+    for (String subKey : getKeys(path)) {
+      remove(path + subKey);
+    }
+  }
+
+  /**
+   * Reads the file again if it has changed since it was last read or written, then writes any changes.
+   *
+   * @throws IOException if the file couldn't be read or written.
+   */
+  synchronized void sync() throws IOException
+  {
+    if (isFileChanged()) {
+      load();
+    }
+    flush();
+  }
+
+  /**
+   * Writes any changes to the file now, rather than waiting for the background write.
+   *
+   * @throws IOException if the file couldn't be written.
+   */
+  synchronized void flush() throws IOException
+  {
+    if (pending.isEmpty()) return;
+
+    // Keep any changes made to the file by someone else since we read it
+    if (isFileChanged()) {
+      load();
+    }
+
+    Properties p = new Properties();
+    p.putAll(entries);
+
+    File tempFile = new File(file.getPath() + ".tmp");
+    FileOutputStream os = new FileOutputStream(tempFile);
+    try {
+      p.store(os, "FilePreferences");
+    }
+    finally {
+      os.close();
+    }
+
+    try {
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException e) {
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    log.finest("Wrote " + pending.size() + " changed preferences to " + file);
+
+    pending.clear();
+    fileModified = file.lastModified();
+    fileLength = file.length();
+  }
+
+  private boolean isFileChanged()
+  {
+    return file.exists() && (file.lastModified() != fileModified || file.length() != fileLength);
+  }
+
+  private void load() throws IOException
+  {
+    long modified = file.lastModified();
+    long length = file.length();
+
+    Properties p = new Properties();
+    FileInputStream is = new FileInputStream(file);
+    try {
+      p.load(is);
+    }
+    finally {
+      is.close();
+    }
+
+    entries.clear();
+    for (String name : p.stringPropertyNames()) {
+      entries.put(name, p.getProperty(name));
+    }
+
+    // Changes that haven't been written yet take priority over the file
+    for (Map.Entry<String, String> change : pending.entrySet()) {
+      if (change.getValue() == null) {
+        entries.remove(change.getKey());
+      }
+      else {
+        entries.put(change.getKey(), change.getValue());
+      }
+    }
+
+    log.finest("Read " + entries.size() + " preferences from " + file);
+
+    fileModified = modified;
+    fileLength = length;
+  }
+
+  private void scheduleFlush()
+  {
+    if (flushScheduled) return;
+    flushScheduled = true;
+
+    executor.schedule(new Runnable()
+    {
+      public void run()
+      {
+        try {
+          flushScheduled();
+        }
+        catch (IOException e) {
+          log.log(Level.SEVERE, "Unable to write preferences to " + file, e);
+        }
+      }
+    }, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void flushScheduled() throws IOException
+  {
+    flushScheduled = false;
+    flush();
+  }
+}